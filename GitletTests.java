@@ -7,28 +7,46 @@ import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Permission;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import static org.junit.Assert.*;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -282,6 +300,21 @@ public class GitletTests {
         }
     }
 
+    /**
+     * Writes text into a file in the current testing directory.
+     *
+     * @param dst      -- filename to write to; may exist
+     * @param contents -- text to write
+     */
+    public static void writeContents(String dst, String contents) {
+        try {
+            OG_OUT.println("Write " + contents.length() + " characters to testing file " + dst);
+            Files.writeString(Path.of(dst), contents);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Deletes a file from the current testing directory.
      *
@@ -296,6 +329,20 @@ public class GitletTests {
         }
     }
 
+    /**
+     * Returns the text in a file in the current testing directory.
+     *
+     * @param path -- filename to read; must exist
+     * @return the file's contents
+     */
+    public static String readContents(String path) {
+        try {
+            return Files.readString(Path.of(path));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Asserts that a file exists in the current testing directory.
      *
@@ -457,6 +504,49 @@ public class GitletTests {
         return checkOutputRegex(pattern);
     }
 
+    /**
+     * Starts the given Gitlet command in a separate JVM, so that it can
+     * contend for locks with this one or with other commands.
+     *
+     * @param directory         -- where to run it, relative to the testing directory
+     * @param lockTimeoutMillis -- how long the command waits for a lock
+     * @param args
+     * @return the running command
+     */
+    public static Process startGitletProcess(String directory, long lockTimeoutMillis,
+                                             String... args) {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dgitlet.lockTimeoutMillis=" + lockTimeoutMillis,
+                "-cp", System.getProperty("java.class.path"), "gitlet.Main"));
+        command.addAll(Arrays.asList(args));
+        OG_OUT.println("(cd " + directory + " && " + COMMAND_BASE + createCommand(args) + " &)");
+        try {
+            return new ProcessBuilder(command)
+                    .directory(new File(System.getProperty("user.dir"), directory))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits for a command started by startGitletProcess to finish.
+     *
+     * @param process
+     * @return what it printed
+     */
+    public static String processOutput(Process process) {
+        try {
+            String output = new String(process.getInputStream().readAllBytes());
+            process.waitFor();
+            return normalizeStdOut(output).stripTrailing();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static void i_prelude1() {
         gitletCommand(new String[]{"init"}, "");
     }
@@ -1498,4 +1588,1441 @@ public class GitletTests {
         assertFileEquals(NOTF, "F.txt");
         assertFileEquals(G, "G.txt");
     }
+
+    /**
+     * Returns the names and contents of the files in the testing directory.
+     *
+     * @return the working files, by name
+     */
+    public static Map<String, String> workingFiles() throws IOException {
+        Map<String, String> files = new TreeMap<>();
+        try (var paths = Files.list(Path.of("."))) {
+            for (Path path : paths.filter(Files::isRegularFile).toList()) {
+                files.put(path.getFileName().toString(), Files.readString(path));
+            }
+        }
+        return files;
+    }
+
+    @Test
+    public void test45_generatedRepository() throws IOException {
+        String[] options = {"--commits", "40", "--branches", "2", "--merge-rate", "0.2",
+                "--files", "12", "--files-per-commit", "3", "--max-size", "2000", "--seed", "7"};
+        gitlet.RepoGenerator.main(options.clone());
+        getOutput();
+        gitletCommandP(new String[]{"status"}, """
+                === Branches ===
+                (?:\\*?(?:main|branch1|branch2)\\n){3}
+                === Staged Files ===
+
+                === Removed Files ===
+
+                === Modifications Not Staged For Commit ===
+
+                === Untracked Files ===
+
+                """);
+        runGitletCommand(new String[]{"global-log"});
+        assertEquals(40, Pattern.compile("^Synthetic commit \\d+$", Pattern.MULTILINE)
+                .matcher(getOutput()).results().count());
+        runGitletCommand(new String[]{"log"});
+        String history = getOutput().replaceAll(COMMIT_HEAD, "");
+        Map<String, String> files = workingFiles();
+
+        // The same options and seed build the same history and files again
+        recursivelyCleanWD();
+        gitlet.RepoGenerator.main(options.clone());
+        getOutput();
+        runGitletCommand(new String[]{"log"});
+        assertEquals(history, getOutput().replaceAll(COMMIT_HEAD, ""));
+        assertEquals(files, workingFiles());
+        gitlet.RepoGenerator.main(options.clone());
+        checkOutput("A Gitlet version-control system already exists in the current directory.");
+    }
+
+    /**
+     * Runs the given Gitlet command and returns what it printed on stderr.
+     * Its standard output is captured as usual.
+     *
+     * @param args
+     * @return the standard error output
+     */
+    public static String gitletErrorOutput(String... args) {
+        PrintStream err = System.err;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(captured, true));
+        try {
+            runGitletCommand(args);
+        } finally {
+            System.setErr(err);
+        }
+        return captured.toString().strip();
+    }
+
+    /**
+     * Returns the value of the named counter in a --trace summary, or 0 if
+     * the summary does not mention it.
+     *
+     * @param trace -- the JSON summary
+     * @param name  -- the counter
+     */
+    public static long traceCounter(String trace, String name) {
+        Matcher m = Pattern.compile("\"" + name + "\":(\\d+)").matcher(trace);
+        return m.find() ? Long.parseLong(m.group(1)) : 0;
+    }
+
+    @Test
+    public void test46_traceCounters() {
+        i_setup2();
+        writeFile(WUG2, "f.txt");
+        String trace = gitletErrorOutput("--trace", "add", "f.txt");
+        checkOutput("");
+        assertTrue(trace, trace.matches("\\{\"command\":\"add\",\"wallNanos\":\\d+,"
+                + "\"counters\":\\{(?:\"\\w+\":\\d+,?)*\\},\"phases\":\\{.*\\}\\}"));
+        assertTrue(traceCounter(trace, "filesStatted") > 0);
+        assertTrue(traceCounter(trace, "bytesCopied") > 0);
+        trace = gitletErrorOutput("--trace", "commit", "Change f.txt");
+        checkOutput("");
+        assertTrue(traceCounter(trace, "objectsWritten") > 0);
+        assertTrue(trace, trace.contains("\"commit.blobs\":{\"calls\":1,\"nanos\":"));
+        // Tracing is opt-in
+        assertEquals("", gitletErrorOutput("add", "g.txt"));
+        checkOutput("");
+    }
+
+    @Test
+    public void test47_flightRecorderEvents() throws IOException, InterruptedException,
+            NoSuchAlgorithmException {
+        i_prelude1();
+        writeFile(WUG, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        Path recording = Path.of(System.getProperty("user.dir"), "commit.jfr");
+        Process commit = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-XX:StartFlightRecording:filename=" + recording,
+                "-cp", System.getProperty("java.class.path"), "gitlet.Main", "commit", "One file")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        assertEquals(0, commit.waitFor());
+        List<String> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+            String type = event.getEventType().getName();
+            if (type.equals("gitlet.Command")) {
+                events.add(type + " " + event.getString("command"));
+            } else if (type.equals("gitlet.ObjectWrite") || type.equals("gitlet.ObjectRead")) {
+                events.add(type + " " + event.getString("objectType") + " "
+                        + event.getString("id") + " " + event.getLong("size"));
+            } else if (type.equals("gitlet.IndexLoad")) {
+                events.add(type + " " + event.getInt("added") + " " + event.getInt("removed"));
+            }
+        }
+        String wug = HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(WUG)));
+        assertTrue(events.toString(), events.contains("gitlet.Command commit"));
+        assertTrue(events.toString(), events.contains("gitlet.IndexLoad 1 0"));
+        assertTrue(events.toString(), events.contains(
+                "gitlet.ObjectWrite blob " + wug + " " + Files.size(WUG)));
+        assertTrue(events.toString(), events.stream().anyMatch(
+                event -> event.startsWith("gitlet.ObjectWrite commit ")));
+        assertTrue(events.toString(), events.stream().anyMatch(
+                event -> event.startsWith("gitlet.ObjectRead commit ")));
+    }
+
+    @Test
+    public void test48_commitCacheAcrossCommands() throws ReflectiveOperationException {
+        i_setup2();
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        // A long-lived caller keeps one Repository, and with it one cache
+        Class<?> traceClass = Class.forName("gitlet.Trace");
+        Constructor<?> newTrace = traceClass.getDeclaredConstructor(boolean.class, File.class);
+        newTrace.setAccessible(true);
+        Object trace = newTrace.newInstance(true, null);
+        Method summary = traceClass.getDeclaredMethod("toJson", String.class);
+        summary.setAccessible(true);
+        gitlet.Repository repository =
+                gitlet.Repository.class.getConstructor(traceClass).newInstance(trace);
+        repository.log();
+        String log = getOutput();
+        String first = (String) summary.invoke(trace, "log");
+        long objectsRead = traceCounter(first, "objectsRead");
+        assertTrue(first, objectsRead > 0);
+        repository.log();
+        assertEquals(log, getOutput());
+        String second = (String) summary.invoke(trace, "log");
+        assertEquals(objectsRead, traceCounter(second, "objectsRead"));
+        assertTrue(second, traceCounter(second, "cacheHits")
+                > traceCounter(first, "cacheHits"));
+    }
+
+    @Test
+    public void test49_existingBlobsNotRewritten() {
+        i_setup2();
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        long old = System.currentTimeMillis() - 10_000;
+        File[] blobs = new File(".gitlet/blobs").listFiles();
+        for (File blob : blobs) {
+            assertTrue(blob.setLastModified(old));
+        }
+        writeFile(WUG, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        String trace = gitletErrorOutput("--trace", "commit", "Change f.txt back");
+        checkOutput("");
+        assertEquals(1, traceCounter(trace, "blobWritesSkipped"));
+        assertEquals(Set.of(blobs), Set.of(new File(".gitlet/blobs").listFiles()));
+        for (File blob : blobs) {
+            assertEquals(old, blob.lastModified());
+        }
+    }
+
+    @Test
+    public void test50_largeFiles() throws IOException {
+        i_prelude1();
+        byte[] original = new byte[5 << 20];
+        new Random(31).nextBytes(original);
+        Files.write(Path.of("large.bin"), original);
+        gitletCommand(new String[]{"add", "large.bin"}, "");
+        gitletCommand(new String[]{"commit", "Large file"}, "");
+        Matcher m = gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                Large file
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD) + ARBLINES);
+        String first = m.group(1);
+        // Same size, one bit apart
+        byte[] changed = original.clone();
+        changed[changed.length / 2] ^= 1;
+        Files.write(Path.of("large.bin"), changed);
+        gitletCommandP(new String[]{"status"}, ARBLINES
+                + "=== Modifications Not Staged For Commit ===\nlarge.bin \\(modified\\)\n"
+                + ARBLINES);
+        gitletCommand(new String[]{"add", "large.bin"}, "");
+        gitletCommand(new String[]{"commit", "Flip one bit"}, "");
+        gitletCommand(new String[]{"restore", first, "--", "large.bin"}, "");
+        assertTrue(Arrays.equals(original, Files.readAllBytes(Path.of("large.bin"))));
+        gitletCommand(new String[]{"restore", "--", "large.bin"}, "");
+        assertTrue(Arrays.equals(changed, Files.readAllBytes(Path.of("large.bin"))));
+        gitletCommand(new String[]{"add", "large.bin"}, "");
+        gitletCommand(new String[]{"status"}, """
+                === Branches ===
+                *main
+
+                === Staged Files ===
+
+                === Removed Files ===
+
+                === Modifications Not Staged For Commit ===
+
+                === Untracked Files ===
+
+                """);
+    }
+
+    @Test
+    public void test51_diffWorkingFile() {
+        i_prelude1();
+        writeContents("f.txt", "a\nb\nc\nd\ne\nf\ng\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "seven lines"}, "");
+        gitletCommand(new String[]{"diff"}, "");
+        writeContents("f.txt", "a\nB\nc\nd\ne\nf\ng\nh\n");
+        gitletCommand(new String[]{"diff"}, """
+                diff --git a/f.txt b/f.txt
+                --- a/f.txt
+                +++ b/f.txt
+                @@ -1,7 +1,8 @@
+                 a
+                -b
+                +B
+                 c
+                 d
+                 e
+                 f
+                 g
+                +h
+                """);
+        gitletCommand(new String[]{"diff", "--staged"}, "");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"diff", "--staged"}, """
+                diff --git a/f.txt b/f.txt
+                --- a/f.txt
+                +++ b/f.txt
+                @@ -1,7 +1,8 @@
+                 a
+                -b
+                +B
+                 c
+                 d
+                 e
+                 f
+                 g
+                +h
+                """);
+        gitletCommand(new String[]{"commit", "eight lines"}, "");
+        gitletCommand(new String[]{"diff"}, "");
+        gitletCommand(new String[]{"diff", "--staged"}, "");
+    }
+
+    @Test
+    public void test52_diffSeparateHunks() {
+        i_prelude1();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= 20; i += 1) {
+            lines.append(i).append("\n");
+        }
+        writeContents("s.txt", lines.toString());
+        gitletCommand(new String[]{"add", "s.txt"}, "");
+        gitletCommand(new String[]{"commit", "twenty lines"}, "");
+        writeContents("s.txt", lines.toString()
+                .replace("\n2\n", "\ntwo\n")
+                .replace("\n18\n", "\neighteen\n") + "last");
+        gitletCommand(new String[]{"diff"}, """
+                diff --git a/s.txt b/s.txt
+                --- a/s.txt
+                +++ b/s.txt
+                @@ -1,5 +1,5 @@
+                 1
+                -2
+                +two
+                 3
+                 4
+                 5
+                @@ -15,6 +15,7 @@
+                 15
+                 16
+                 17
+                -18
+                +eighteen
+                 19
+                 20
+                +last
+                \\ No newline at end of file
+                """);
+    }
+
+    @Test
+    public void test53_diffIsMinimal() {
+        i_prelude1();
+        writeContents("m.txt", "A\nB\nC\nA\nB\nB\nA\n");
+        gitletCommand(new String[]{"add", "m.txt"}, "");
+        gitletCommand(new String[]{"commit", "abcabba"}, "");
+        // The shortest edit script from ABCABBA to CBABAC has five edits
+        writeContents("m.txt", "C\nB\nA\nB\nA\nC\n");
+        gitletCommand(new String[]{"diff"}, """
+                diff --git a/m.txt b/m.txt
+                --- a/m.txt
+                +++ b/m.txt
+                @@ -1,7 +1,6 @@
+                -A
+                +C
+                 B
+                -C
+                 A
+                 B
+                -B
+                 A
+                +C
+                """);
+    }
+
+    @Test
+    public void test54_diffCommits() {
+        i_prelude1();
+        writeContents("f.txt", "a\nb\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "add f"}, "");
+        writeContents("n.txt", "x\n");
+        gitletCommand(new String[]{"add", "n.txt"}, "");
+        gitletCommand(new String[]{"rm", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "replace f with n"}, "");
+        Matcher m = gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                replace f with n
+
+                ===
+                ${COMMIT_HEAD}
+                add f
+                ${ARBLINES}
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD)
+                .replace("${ARBLINES}", ARBLINES));
+        String second = m.group(1);
+        String first = m.group(2);
+        gitletCommand(new String[]{"diff", first, second}, """
+                diff --git a/f.txt b/f.txt
+                --- a/f.txt
+                +++ /dev/null
+                @@ -1,2 +0,0 @@
+                -a
+                -b
+                diff --git a/n.txt b/n.txt
+                --- /dev/null
+                +++ b/n.txt
+                @@ -0,0 +1 @@
+                +x
+                """);
+        gitletCommand(new String[]{"diff", first, "0000000"}, "No commit with that id exists.");
+    }
+
+    @Test
+    public void test55_lineMergeClean() {
+        i_prelude1();
+        writeContents("f.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\n");
+        writeContents("s.txt", "same\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"add", "s.txt"}, "");
+        gitletCommand(new String[]{"commit", "base"}, "");
+        gitletCommand(new String[]{"branch", "other"}, "");
+        writeContents("f.txt", "one\n2\n3\n4\n5\n6\n7\n8\n9\n");
+        writeContents("s.txt", "changed\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"add", "s.txt"}, "");
+        gitletCommand(new String[]{"commit", "change the first line"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeContents("f.txt", "1\n2\n3\n4\n5\n6\n7\n8\nnine\n10\n");
+        writeContents("s.txt", "changed\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"add", "s.txt"}, "");
+        gitletCommand(new String[]{"commit", "change the last line"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        // Changes to different lines, and the same change on both sides, merge cleanly
+        gitletCommand(new String[]{"merge", "other"}, "");
+        assertEquals("one\n2\n3\n4\n5\n6\n7\n8\nnine\n10\n", readContents("f.txt"));
+        assertEquals("changed\n", readContents("s.txt"));
+        i_blankStatus2();
+    }
+
+    @Test
+    public void test56_lineMergeConflictRegion() {
+        i_prelude1();
+        writeContents("f.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "base"}, "");
+        gitletCommand(new String[]{"branch", "other"}, "");
+        writeContents("f.txt", "1\n2\n3\n4\nfive-main\n6\n7\n8\n9\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "change line five"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeContents("f.txt", "one\n2\n3\n4\nfive-other\n6\n7\n8\n9\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "change lines one and five"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        // Only the lines both sides changed are in conflict
+        gitletCommand(new String[]{"merge", "other"}, "Encountered a merge conflict.");
+        assertEquals("""
+                one
+                2
+                3
+                4
+                <<<<<<< HEAD
+                five-main
+                =======
+                five-other
+                >>>>>>>
+                6
+                7
+                8
+                9
+                """, readContents("f.txt"));
+        gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                Merged other into main\\.
+
+                ${ARBLINES}
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD)
+                .replace("${ARBLINES}", ARBLINES));
+    }
+
+    @Test
+    public void test57_mergeNoCheckout() {
+        i_setup2();
+        gitletCommand(new String[]{"branch", "other"}, "");
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeFile(WUG3, "h.txt");
+        gitletCommand(new String[]{"add", "h.txt"}, "");
+        gitletCommand(new String[]{"commit", "Add h.txt"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        // An untracked file in the way does not matter, since the working
+        // directory is neither read nor written
+        writeFile(NOTWUG, "h.txt");
+        gitletCommand(new String[]{"merge", "other"},
+                "There is an untracked file in the way; delete it, or add and commit it first.");
+        gitletCommand(new String[]{"merge", "--no-checkout", "other"}, "");
+        assertFileEquals(NOTWUG, "h.txt");
+        gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                Merged other into main\\.
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD) + ARBLINES);
+        gitletCommand(new String[]{"restore", "--", "h.txt"}, "");
+        assertFileEquals(WUG3, "h.txt");
+        assertFileEquals(WUG2, "f.txt");
+    }
+
+    @Test
+    public void test58_diffRenameAndCopy() {
+        i_prelude1();
+        writeContents("a.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n");
+        writeContents("k.txt", "kept\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"add", "k.txt"}, "");
+        gitletCommand(new String[]{"commit", "base"}, "");
+        writeContents("b.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\nten\n");
+        writeContents("c.txt", "kept\n");
+        writeContents("u.txt", "unrelated\n");
+        gitletCommand(new String[]{"rm", "a.txt"}, "");
+        gitletCommand(new String[]{"add", "b.txt"}, "");
+        gitletCommand(new String[]{"add", "c.txt"}, "");
+        gitletCommand(new String[]{"add", "u.txt"}, "");
+        // Nine of ten lines are shared, so a.txt to b.txt is a rename;
+        // c.txt is an exact copy of the kept k.txt
+        gitletCommand(new String[]{"diff", "--staged"}, """
+                diff --git a/a.txt b/b.txt
+                similarity index 90%
+                rename from a.txt
+                rename to b.txt
+                --- a/a.txt
+                +++ b/b.txt
+                @@ -7,4 +7,4 @@
+                 7
+                 8
+                 9
+                -10
+                +ten
+                diff --git a/k.txt b/c.txt
+                similarity index 100%
+                copy from k.txt
+                copy to c.txt
+                diff --git a/u.txt b/u.txt
+                --- /dev/null
+                +++ b/u.txt
+                @@ -0,0 +1 @@
+                +unrelated
+                """);
+    }
+
+    @Test
+    public void test59_mergeFollowsRename() {
+        i_prelude1();
+        writeContents("a.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "base"}, "");
+        gitletCommand(new String[]{"branch", "other"}, "");
+        writeContents("b.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n");
+        gitletCommand(new String[]{"rm", "a.txt"}, "");
+        gitletCommand(new String[]{"add", "b.txt"}, "");
+        gitletCommand(new String[]{"commit", "rename a.txt to b.txt"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeContents("a.txt", "one\n2\n3\n4\n5\n6\n7\n8\n9\n10\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "edit a.txt"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        // The edit made to a.txt on other lands in b.txt
+        gitletCommand(new String[]{"merge", "other"}, "");
+        assertFileDoesNotExist("a.txt");
+        assertEquals("one\n2\n3\n4\n5\n6\n7\n8\n9\n10\n", readContents("b.txt"));
+        i_blankStatus2();
+    }
+
+    @Test
+    public void test60_logLimitAndDates() {
+        i_setup2();
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        gitletCommandP(new String[]{"log", "-n", "1"}, """
+                ===
+                ${COMMIT_HEAD}
+                Change f.txt
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        gitletCommandP(new String[]{"log", "--since", "2000-01-01"}, """
+                ===
+                ${COMMIT_HEAD}
+                Change f.txt
+
+                ===
+                ${COMMIT_HEAD}
+                Two files
+
+                ===
+                ${COMMIT_HEAD}
+                initial commit
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        gitletCommand(new String[]{"log", "--until", "2000-01-01T00:00:00"}, "");
+        gitletCommand(new String[]{"log", "--since", "2999-01-01"}, "");
+        gitletCommandP(new String[]{"log", "--since", "2000-01-01", "-n", "1"}, """
+                ===
+                ${COMMIT_HEAD}
+                Change f.txt
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        gitletCommand(new String[]{"log", "--since", "yesterday"}, "Incorrect operands.");
+        gitletCommand(new String[]{"log", "-n"}, "Incorrect operands.");
+    }
+
+    @Test
+    public void test61_globalLogAndFindOrder() {
+        i_prelude1();
+        for (int i = 0; i < 24; i += 1) {
+            writeContents("f.txt", "version " + i + "\n");
+            gitletCommand(new String[]{"add", "f.txt"}, "");
+            gitletCommand(new String[]{"commit", i % 3 == 0 ? "Same message" : "Version " + i},
+                    "");
+        }
+        runGitletCommand(new String[]{"log"});
+        // The serial scan printed commits in the order their IDs are listed
+        Map<String, String> entries = new TreeMap<>();
+        for (String entry : getOutput().split("(?m)^(?====\\n)")) {
+            entries.put(entry.substring("===\ncommit ".length(), "===\ncommit ".length() + 40),
+                    entry);
+        }
+        assertEquals(25, entries.size());
+        runGitletCommand(new String[]{"global-log"});
+        assertEquals(String.join("", entries.values()), getOutput());
+        StringBuilder found = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getValue().endsWith("\nSame message\n\n")) {
+                found.append(entry.getKey()).append("\n");
+            }
+        }
+        runGitletCommand(new String[]{"find", "Same message"});
+        assertEquals(found.toString(), getOutput());
+    }
+
+    @Test
+    public void test62_clone() throws IOException {
+        i_setup2();
+        gitletCommand(new String[]{"branch", "other"}, "");
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        gitletCommand(new String[]{"clone", ".", "full"}, "");
+        assertFileEquals(WUG2, "full/f.txt");
+        assertFileEquals(NOTWUG, "full/g.txt");
+        assertEquals(processOutput(startGitletProcess(".", 10_000, "status")),
+                processOutput(startGitletProcess("full", 10_000, "status")));
+        assertEquals(processOutput(startGitletProcess(".", 10_000, "global-log")),
+                processOutput(startGitletProcess("full", 10_000, "global-log")));
+        try (var ours = Files.list(Path.of(".gitlet/commits"));
+             var theirs = Files.list(Path.of("full/.gitlet/commits"))) {
+            assertEquals(ours.count(), theirs.count());
+        }
+        // A shared clone reads our objects instead of having its own
+        gitletCommand(new String[]{"clone", "--shared", ".", "shared"}, "");
+        assertFileEquals(WUG2, "shared/f.txt");
+        assertFileExists("shared/.gitlet/alternates");
+        try (var theirs = Files.list(Path.of("shared/.gitlet/commits"))) {
+            assertEquals(0, theirs.count());
+        }
+        String log = processOutput(startGitletProcess("shared", 10_000, "log"));
+        assertTrue(log.contains("\nChange f.txt\n") && log.contains("\nTwo files\n"));
+        gitletCommand(new String[]{"clone", ".", "full"},
+                "Destination path already exists and is not an empty directory.");
+        gitletCommand(new String[]{"clone", "nowhere", "elsewhere"}, "Remote directory not found.");
+    }
+
+    @Test
+    public void test63_blame() throws IOException {
+        i_prelude1();
+        writeContents("f.txt", "a\nb\nc\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "one"}, "");
+        writeContents("f.txt", "a\nB\nc\nd\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "two"}, "");
+        Matcher m = gitletCommandP(new String[]{"log", "-n", "2"}, """
+                ===
+                ${COMMIT_HEAD}
+                two
+
+                ===
+                ${COMMIT_HEAD}
+                one
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        String two = m.group(1).substring(0, 8);
+        String one = m.group(2).substring(0, 8);
+        String blame = """
+                ${ONE} \\([^)]* 1\\) a
+                ${TWO} \\([^)]* 2\\) B
+                ${ONE} \\([^)]* 3\\) c
+                ${TWO} \\([^)]* 4\\) d
+                """;
+        gitletCommandP(new String[]{"blame", "f.txt"},
+                blame.replace("${ONE}", one).replace("${TWO}", two));
+        try (var files = Files.list(Path.of(".gitlet/blame-cache"))) {
+            assertEquals(1, files.count());
+        }
+        // Blaming again after another commit starts from the cached result
+        writeContents("f.txt", "A\nB\nc\nd\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "three"}, "");
+        m = gitletCommandP(new String[]{"log", "-n", "1"}, """
+                ===
+                ${COMMIT_HEAD}
+                three
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        String three = m.group(1).substring(0, 8);
+        gitletCommandP(new String[]{"blame", "f.txt"}, """
+                ${THREE} \\([^)]* 1\\) A
+                ${TWO} \\([^)]* 2\\) B
+                ${ONE} \\([^)]* 3\\) c
+                ${TWO} \\([^)]* 4\\) d
+                """.replace("${ONE}", one).replace("${TWO}", two).replace("${THREE}", three));
+        gitletCommand(new String[]{"blame", "g.txt"}, "File does not exist in that commit.");
+    }
+
+    @Test
+    public void test64_logFileFiltersNeverMiss() {
+        i_prelude1();
+        Set<Integer> touched = Set.of(0, 7, 19, 33, 40, 47);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 48; i += 1) {
+            writeContents("n" + i + ".txt", "file " + i + "\n");
+            gitletCommand(new String[]{"add", "n" + i + ".txt"}, "");
+            if (i == 40) {
+                gitletCommand(new String[]{"rm", "target.txt"}, "");
+            } else if (touched.contains(i)) {
+                writeContents("target.txt", "version " + i + "\n");
+                gitletCommand(new String[]{"add", "target.txt"}, "");
+            }
+            gitletCommand(new String[]{"commit", "commit " + i}, "");
+            if (touched.contains(i)) {
+                expected.insert(0, "===\n" + COMMIT_HEAD + "\ncommit " + i + "\n\n");
+            }
+        }
+        // Both the records appended by commit and those rewritten by gc
+        assertFileExists(".gitlet/commit-graph");
+        gitletCommandP(new String[]{"log", "--", "target.txt"}, expected.toString());
+        gitletCommand(new String[]{"gc"}, "Removed 0 objects, 0 bytes.");
+        gitletCommandP(new String[]{"log", "--", "target.txt"}, expected.toString());
+        // Without records every commit is read and compared in full
+        assertTrue(new File(".gitlet/commit-graph").delete());
+        gitletCommandP(new String[]{"log", "--", "target.txt"}, expected.toString());
+        gitletCommand(new String[]{"log", "--", "nowhere.txt"}, "");
+    }
+
+    @Test
+    public void test65_stash() {
+        i_setup2();
+        gitletCommand(new String[]{"stash", "list"}, "");
+        gitletCommand(new String[]{"stash", "pop"}, "No stash entries found.");
+        gitletCommand(new String[]{"stash", "push"}, "No local changes to save.");
+        writeFile(WUG2, "f.txt");
+        writeFile(WUG3, "g.txt");
+        gitletCommand(new String[]{"add", "g.txt"}, "");
+        writeFile(NOTWUG, "h.txt");
+        gitletCommandP(new String[]{"stash", "push"},
+                "Saved working directory and index state WIP on main: [0-9a-f]{7} Two files");
+        assertFileEquals(WUG, "f.txt");
+        assertFileEquals(NOTWUG, "g.txt");
+        assertFileEquals(NOTWUG, "h.txt");
+        gitletCommand(new String[]{"status"}, """
+                === Branches ===
+                *main
+
+                === Staged Files ===
+
+                === Removed Files ===
+
+                === Modifications Not Staged For Commit ===
+
+                === Untracked Files ===
+                h.txt
+
+                """);
+        gitletCommandP(new String[]{"stash", "list"},
+                "stash@\\{0\\}: WIP on main: [0-9a-f]{7} Two files");
+        // Popping after the branch moved on keeps the new commit's files
+        writeFile(WUG, "k.txt");
+        gitletCommand(new String[]{"add", "k.txt"}, "");
+        gitletCommand(new String[]{"commit", "Add k.txt"}, "");
+        gitletCommandP(new String[]{"stash", "pop"}, "Dropped stash@\\{0\\} \\([0-9a-f]+\\)");
+        assertFileEquals(WUG2, "f.txt");
+        assertFileEquals(WUG3, "g.txt");
+        assertFileEquals(WUG, "k.txt");
+        gitletCommand(new String[]{"status"}, """
+                === Branches ===
+                *main
+
+                === Staged Files ===
+                g.txt
+
+                === Removed Files ===
+
+                === Modifications Not Staged For Commit ===
+                f.txt (modified)
+
+                === Untracked Files ===
+                h.txt
+
+                """);
+        gitletCommand(new String[]{"stash", "list"}, "");
+
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Popped"}, "");
+        writeFile(WUG, "f.txt");
+        gitletCommandP(new String[]{"stash", "push"},
+                "Saved working directory and index state WIP on main: [0-9a-f]{7} Popped");
+        assertFileEquals(WUG2, "f.txt");
+        writeFile(NOTWUG, "f.txt");
+        gitletCommand(new String[]{"stash", "pop"},
+                "Your local changes to f.txt would be overwritten; commit or stash them first.");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        gitletCommand(new String[]{"stash", "pop"}, "Encountered a merge conflict.");
+        assertTrue(readContents("f.txt").startsWith("<<<<<<<"));
+        gitletCommandP(new String[]{"stash", "list"},
+                "stash@\\{0\\}: WIP on main: [0-9a-f]{7} Popped");
+    }
+
+    /**
+     * Runs status in a repository whose only branch is main and whose only
+     * untracked file is h.txt.
+     *
+     * @param modifications the expected "Modifications Not Staged For
+     *                      Commit" lines
+     */
+    public static void i_statusWithModifications(String... modifications) {
+        StringBuilder lines = new StringBuilder();
+        for (String modification : modifications) {
+            lines.append(modification).append("\n");
+        }
+        gitletCommand(new String[]{"status"}, """
+                === Branches ===
+                *main
+
+                === Staged Files ===
+
+                === Removed Files ===
+
+                === Modifications Not Staged For Commit ===
+                ${MODIFICATIONS}
+                === Untracked Files ===
+                h.txt
+
+                """.replace("${MODIFICATIONS}", lines.toString()));
+    }
+
+    @Test
+    public void test66_statCacheAndMonitorInvalidation() throws IOException, InterruptedException {
+        i_setup2();
+        writeFile(NOTWUG, "h.txt");
+        long old = System.currentTimeMillis() - 10_000;
+        assertTrue(new File("f.txt").setLastModified(old));
+        assertTrue(new File("g.txt").setLastModified(old));
+        i_statusWithModifications();
+        assertFileExists(".gitlet/stat-cache");
+        // An edit that keeps the size right after the cache was written
+        writeContents("f.txt", readContents("f.txt").replace("wug", "wux"));
+        i_statusWithModifications("f.txt (modified)");
+        assertTrue(new File("f.txt").setLastModified(old + 5_000));
+        i_statusWithModifications("f.txt (modified)");
+        writeFile(WUG, "f.txt");
+        assertTrue(new File("f.txt").setLastModified(old));
+        i_statusWithModifications();
+
+        // With a monitor running, clean files are not even statted, so
+        // only the monitor's journal can reveal these edits
+        Process monitor = startGitletProcess(".", 10_000, "monitor");
+        try {
+            BufferedReader output = new BufferedReader(new InputStreamReader(monitor.getInputStream()));
+            assertTrue(output.readLine().startsWith("Monitoring "));
+            i_statusWithModifications();
+            i_statusWithModifications();
+            writeContents("f.txt", readContents("f.txt").replace("wug", "wux"));
+            i_statusWithModifications("f.txt (modified)");
+            writeFile(WUG, "f.txt");
+            assertTrue(new File("f.txt").setLastModified(old));
+            i_statusWithModifications();
+            writeContents("g.txt", readContents("g.txt").replace("wug", "wux"));
+            i_statusWithModifications("g.txt (modified)");
+            writeFile(NOTWUG, "g.txt");
+            assertTrue(new File("g.txt").setLastModified(old));
+            i_statusWithModifications();
+        } finally {
+            monitor.destroy();
+            monitor.waitFor(10, TimeUnit.SECONDS);
+        }
+        // Once it stops, every file is looked at again
+        writeContents("g.txt", readContents("g.txt").replace("wug", "wux"));
+        i_statusWithModifications("g.txt (modified)");
+    }
+
+    @Test
+    public void test67_logFollowsFirstParents() {
+        i_prelude1();
+        gitletCommand(new String[]{"branch", "other"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeFile(WUG, "o.txt");
+        gitletCommand(new String[]{"add", "o.txt"}, "");
+        gitletCommand(new String[]{"commit", "other one"}, "");
+        writeFile(NOTWUG, "o.txt");
+        gitletCommand(new String[]{"add", "o.txt"}, "");
+        gitletCommand(new String[]{"commit", "other two"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        writeFile(WUG, "m.txt");
+        gitletCommand(new String[]{"add", "m.txt"}, "");
+        gitletCommand(new String[]{"commit", "main one"}, "");
+        gitletCommand(new String[]{"merge", "other"}, "");
+        writeFile(WUG2, "m.txt");
+        gitletCommand(new String[]{"add", "m.txt"}, "");
+        gitletCommand(new String[]{"commit", "main two"}, "");
+        // The commits made on other are not first parents of main
+        gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                main two
+
+                ===
+                ${COMMIT_HEAD}
+                Merged other into main\\.
+
+                ===
+                ${COMMIT_HEAD}
+                main one
+
+                ===
+                ${COMMIT_HEAD}
+                initial commit
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        gitletCommandP(new String[]{"log", "-n", "2"}, """
+                ===
+                ${COMMIT_HEAD}
+                main two
+
+                ===
+                ${COMMIT_HEAD}
+                Merged other into main\\.
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        gitletCommand(new String[]{"switch", "other"}, "");
+        gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                other two
+
+                ===
+                ${COMMIT_HEAD}
+                other one
+
+                ===
+                ${COMMIT_HEAD}
+                initial commit
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+    }
+
+    /**
+     * Runs gc --prune-now with no grace period, so that the objects just
+     * made unreachable are deleted too, and checks its output.
+     *
+     * @param expected -- a pattern for the output
+     */
+    public static void i_pruneNow(String expected) {
+        System.setProperty("gitlet.pruneNowGraceSeconds", "0");
+        try {
+            gitletCommandP(new String[]{"gc", "--prune-now"}, expected);
+        } finally {
+            System.clearProperty("gitlet.pruneNowGraceSeconds");
+        }
+    }
+
+    /**
+     * Makes a merge history on main, clones it into "remote" and adds
+     * that as remote r, then resets main to the first commit and prunes
+     * the rest, so that fetching main from r must send them back.
+     *
+     * @return The IDs of the merge commit and the first commit.
+     */
+    public static String[] i_prunedRemote() {
+        i_prelude1();
+        writeFile(WUG, "a.txt");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "one"}, "");
+        gitletCommand(new String[]{"branch", "other"}, "");
+        writeFile(NOTWUG, "b.txt");
+        gitletCommand(new String[]{"add", "b.txt"}, "");
+        gitletCommand(new String[]{"commit", "two"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeFile(WUG2, "c.txt");
+        gitletCommand(new String[]{"add", "c.txt"}, "");
+        gitletCommand(new String[]{"commit", "three"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        gitletCommand(new String[]{"merge", "other"}, "");
+        Matcher m = gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                Merged other into main\\.
+
+                ===
+                ${COMMIT_HEAD}
+                two
+
+                ===
+                ${COMMIT_HEAD}
+                one
+
+                ===
+                ${COMMIT_HEAD}
+                initial commit
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        String merged = m.group(1);
+        String one = m.group(3);
+        gitletCommand(new String[]{"clone", ".", "remote"}, "");
+        gitletCommand(new String[]{"add-remote", "r", "remote/.gitlet"}, "");
+        gitletCommand(new String[]{"rm-branch", "other"}, "");
+        gitletCommand(new String[]{"reset", one}, "");
+        // Two commits on main, one on other, the merge, and two blobs
+        i_pruneNow("Removed 5 objects, \\d+ bytes\\.");
+        assertFileDoesNotExist(".gitlet/commits/" + merged);
+        return new String[]{merged, one};
+    }
+
+    @Test
+    public void test68_fetchAndPushMergeHistory() {
+        String merged = i_prunedRemote()[0];
+        gitletCommand(new String[]{"fetch", "r", "main"}, "");
+        assertFileExists(".gitlet/commits/" + merged);
+        gitletCommand(new String[]{"merge", "r/main"}, "Current branch fast-forwarded.");
+        assertFileEquals(WUG, "a.txt");
+        assertFileEquals(NOTWUG, "b.txt");
+        assertFileEquals(WUG2, "c.txt");
+        writeFile(WUG3, "d.txt");
+        gitletCommand(new String[]{"add", "d.txt"}, "");
+        gitletCommand(new String[]{"commit", "four"}, "");
+        Matcher m = gitletCommandP(new String[]{"log", "-n", "1"}, """
+                ===
+                ${COMMIT_HEAD}
+                four
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        gitletCommand(new String[]{"push", "r", "main"}, "");
+        assertFileExists("remote/.gitlet/commits/" + m.group(1));
+    }
+
+    @Test
+    public void test69_fetchRejectsForgedPack() throws IOException {
+        String[] ids = i_prunedRemote();
+        String merged = ids[0];
+        String one = ids[1];
+        // A commit stored under another commit's ID. The remote's objects
+        // are hard links to ours, so they are replaced, never written to.
+        Path tip = Path.of("remote/.gitlet/commits", merged);
+        byte[] tipContents = Files.readAllBytes(tip);
+        Files.delete(tip);
+        Files.copy(Path.of(".gitlet/commits", one), tip);
+        gitletCommand(new String[]{"fetch", "r", "main"}, "Pack is corrupt.");
+        assertFileDoesNotExist(".gitlet/commits/" + merged);
+        Files.delete(tip);
+        Files.write(tip, tipContents);
+        // Blobs that do not match their IDs
+        List<Path> blobs;
+        try (var files = Files.list(Path.of("remote/.gitlet/blobs"))) {
+            blobs = files.toList();
+        }
+        List<byte[]> blobContents = new ArrayList<>();
+        for (Path blob : blobs) {
+            blobContents.add(Files.readAllBytes(blob));
+            Files.delete(blob);
+            Files.writeString(blob, "forged");
+        }
+        gitletCommand(new String[]{"fetch", "r", "main"}, "Pack is corrupt.");
+        assertFileDoesNotExist(".gitlet/commits/" + merged);
+        try (var files = Files.list(Path.of(".gitlet"))) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+        }
+        for (int i = 0; i < blobs.size(); i += 1) {
+            Files.write(blobs.get(i), blobContents.get(i));
+        }
+        gitletCommand(new String[]{"fetch", "r", "main"}, "");
+        assertFileExists(".gitlet/commits/" + merged);
+    }
+
+    @Test
+    public void test70_bundleRoundTrip() {
+        String merged = i_prunedRemote()[0];
+        gitletCommand(new String[]{"fetch", "r", "main"}, "");
+        gitletCommand(new String[]{"bundle", "create", "main.bundle", "r/main"}, "");
+        gitletCommand(new String[]{"rm-remote", "r"}, "");
+        i_pruneNow("Removed 5 objects, \\d+ bytes\\.");
+        gitletCommand(new String[]{"bundle", "unbundle", "main.bundle"}, merged + " bundle/r/main");
+        gitletCommand(new String[]{"merge", "bundle/r/main"}, "Current branch fast-forwarded.");
+        assertFileEquals(NOTWUG, "b.txt");
+        assertFileEquals(WUG2, "c.txt");
+    }
+
+    @Test
+    public void test71_unbundleRejectsForgedBundle() throws IOException {
+        String merged = i_prunedRemote()[0];
+        gitletCommand(new String[]{"fetch", "r", "main"}, "");
+        gitletCommand(new String[]{"bundle", "create", "main.bundle", "r/main"}, "");
+        gitletCommand(new String[]{"rm-remote", "r"}, "");
+        i_pruneNow("Removed 5 objects, \\d+ bytes\\.");
+        String bundle = Files.readString(Path.of("main.bundle"), StandardCharsets.ISO_8859_1);
+        // A branch name that would point outside the repository
+        Files.writeString(Path.of("forged.bundle"), bundle.replace(" r/main\n", " ../../../../x\n"),
+                StandardCharsets.ISO_8859_1);
+        gitletCommand(new String[]{"bundle", "unbundle", "forged.bundle"}, "Bundle is corrupt.");
+        assertFileDoesNotExist("x");
+        assertFileDoesNotExist(".gitlet/commits/" + merged);
+        // An object ID that is a path
+        int tip = bundle.lastIndexOf(merged);
+        String forged = bundle.substring(0, tip) + "../".repeat(12) + "evil"
+                + bundle.substring(tip + merged.length());
+        Files.writeString(Path.of("forged.bundle"), forged, StandardCharsets.ISO_8859_1);
+        gitletCommand(new String[]{"bundle", "unbundle", "forged.bundle"}, "Pack is corrupt.");
+        assertFalse(Files.exists(Path.of("/evil")));
+        assertFileDoesNotExist(".gitlet/commits/" + merged);
+    }
+
+    @Test
+    public void test72_gcPruneNowKeepsYoungTempFiles() {
+        i_prelude1();
+        // A blob another command has written but not yet renamed into place
+        writeContents(".gitlet/blobs/blob123.tmp", "pending");
+        gitletCommand(new String[]{"gc", "--prune-now"}, "Removed 0 objects, 0 bytes.");
+        assertFileExists(".gitlet/blobs/blob123.tmp");
+        // One left behind by a command interrupted long ago
+        assertTrue(new File(".gitlet/blobs/blob123.tmp")
+                .setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(15)));
+        gitletCommand(new String[]{"gc", "--prune-now"}, "Removed 1 objects, 7 bytes.");
+        assertFileDoesNotExist(".gitlet/blobs/blob123.tmp");
+    }
+
+    @Test
+    public void test73_restoreAndRemotesTakeLock() throws IOException {
+        i_setup2();
+        writeFile(NOTWUG, "f.txt");
+        String locked = "Another Gitlet command is changing the repository; try again later.";
+        try (FileChannel channel = FileChannel.open(Path.of(".gitlet/index.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            assertEquals(locked, processOutput(startGitletProcess(".", 100, "restore", "--", "f.txt")));
+            assertEquals(locked, processOutput(startGitletProcess(".", 100, "add-remote", "r", "x")));
+        }
+        assertFileEquals(NOTWUG, "f.txt");
+        assertFileDoesNotExist(".gitlet/remotes/r");
+        gitletCommand(new String[]{"restore", "--", "f.txt"}, "");
+        assertFileEquals(WUG, "f.txt");
+        gitletCommand(new String[]{"add-remote", "r", "remote/.gitlet"}, "");
+        gitletCommand(new String[]{"rm-remote", "r"}, "");
+        assertFileDoesNotExist(".gitlet/remotes/r");
+        try (var files = Files.list(Path.of(".gitlet"))) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().startsWith("rm-remote")));
+        }
+    }
+
+    @Test
+    public void test74_concurrentPushesToOneBranch() {
+        i_setup2();
+        gitletCommand(new String[]{"branch", "topic"}, "");
+        gitletCommand(new String[]{"clone", ".", "a"}, "");
+        gitletCommand(new String[]{"clone", ".", "b"}, "");
+        for (String clone : List.of("a", "b")) {
+            writeContents(clone + "/" + clone + ".txt", clone);
+            assertEquals("", processOutput(startGitletProcess(clone, 10_000, "add", clone + ".txt")));
+            assertEquals("", processOutput(startGitletProcess(clone, 10_000, "commit", "from " + clone)));
+        }
+        // Exactly one of two pushes to the same branch moves it
+        Process pushA = startGitletProcess("a", 10_000, "push", "origin", "main");
+        Process pushB = startGitletProcess("b", 10_000, "push", "origin", "main");
+        List<String> outputs = List.of(processOutput(pushA), processOutput(pushB));
+        assertTrue(outputs.contains(""));
+        assertTrue(outputs.contains("Please pull down remote changes before pushing."));
+        String winner = outputs.get(0).isEmpty() ? "a" : "b";
+        gitletCommandP(new String[]{"log", "-n", "1"}, """
+                ===
+                ${COMMIT_HEAD}
+                from ${WINNER}
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD).replace("${WINNER}", winner));
+        // A push racing the removal of its branch never leaves the branch
+        // behind without a tip
+        Process push = startGitletProcess(winner, 10_000, "push", "origin", "topic");
+        Process remove = startGitletProcess(".", 10_000, "rm-branch", "topic");
+        processOutput(push);
+        assertEquals("", processOutput(remove));
+        if (new File(".gitlet/latestCommits/topic").exists()) {
+            assertFileExists(".gitlet/latestCommits/topic/tip");
+        }
+    }
+
+    /**
+     * Returns lines "line 1" to "line n", each ending in a newline, with
+     * the given lines replaced.
+     *
+     * @param n       -- number of lines
+     * @param changes -- line numbers followed by their new text
+     */
+    public static String numberedLines(int n, Object... changes) {
+        String[] lines = new String[n];
+        for (int i = 0; i < n; i += 1) {
+            lines[i] = "line " + (i + 1) + "\n";
+        }
+        for (int i = 0; i < changes.length; i += 2) {
+            lines[(Integer) changes[i] - 1] = changes[i + 1] + "\n";
+        }
+        return String.join("", lines);
+    }
+
+    @Test
+    public void test75_chunkedBlobs() throws IOException {
+        System.setProperty("gitlet.chunkThreshold", "4096");
+        System.setProperty("gitlet.chunkSize", "512");
+        try {
+            i_prelude1();
+            writeContents("a.txt", numberedLines(2000));
+            gitletCommand(new String[]{"add", "a.txt"}, "");
+            gitletCommand(new String[]{"commit", "base"}, "");
+            try (var files = Files.list(Path.of(".gitlet/manifests"))) {
+                assertEquals(1, files.count());
+            }
+            gitletCommand(new String[]{"branch", "other"}, "");
+            writeContents("a.txt", numberedLines(2000, 10, "ten"));
+            gitletCommand(new String[]{"add", "a.txt"}, "");
+            gitletCommand(new String[]{"commit", "change line 10"}, "");
+            gitletCommand(new String[]{"switch", "other"}, "");
+            writeContents("a.txt", numberedLines(2000, 1990, "nineteen ninety"));
+            gitletCommand(new String[]{"add", "a.txt"}, "");
+            gitletCommand(new String[]{"commit", "change line 1990"}, "");
+            gitletCommand(new String[]{"switch", "main"}, "");
+            // Chunked versions are merged line by line
+            gitletCommand(new String[]{"merge", "other"}, "");
+            String merged = numberedLines(2000, 10, "ten", 1990, "nineteen ninety");
+            assertEquals(merged, readContents("a.txt"));
+            writeContents("a.txt", numberedLines(2000, 10, "ten", 1000, "thousand", 1990,
+                    "nineteen ninety"));
+            gitletCommand(new String[]{"diff"}, """
+                    diff --git a/a.txt b/a.txt
+                    --- a/a.txt
+                    +++ b/a.txt
+                    @@ -997,7 +997,7 @@
+                     line 997
+                     line 998
+                     line 999
+                    -line 1000
+                    +thousand
+                     line 1001
+                     line 1002
+                     line 1003
+                    """);
+            gitletCommand(new String[]{"restore", "--", "a.txt"}, "");
+            assertEquals(merged, readContents("a.txt"));
+            gitletCommand(new String[]{"diff"}, "");
+            // Nothing is assembled on disk along the way
+            try (var files = Files.walk(Path.of(".gitlet"))) {
+                assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+            }
+        } finally {
+            System.clearProperty("gitlet.chunkThreshold");
+            System.clearProperty("gitlet.chunkSize");
+        }
+    }
+
+    @Test
+    public void test76_blobIdsInCommits() throws IOException, NoSuchAlgorithmException {
+        i_setup2();
+        String wug = HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(WUG)));
+        String notwug = HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(NOTWUG)));
+        assertFileEquals(WUG, ".gitlet/blobs/" + wug);
+        assertFileEquals(NOTWUG, ".gitlet/blobs/" + notwug);
+        Matcher m = gitletCommandP(new String[]{"log", "-n", "1"}, """
+                ===
+                ${COMMIT_HEAD}
+                Two files
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        String twoFiles = m.group(1);
+        // Commits still store blob IDs as hex strings
+        String commit = new String(Files.readAllBytes(Path.of(".gitlet/commits", twoFiles)),
+                StandardCharsets.ISO_8859_1);
+        assertTrue(commit.contains(wug) && commit.contains(notwug));
+
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        gitletCommand(new String[]{"gc", "--prune-now"}, "Removed 0 objects, 0 bytes.");
+        gitletCommand(new String[]{"restore", twoFiles.substring(0, 8), "--", "f.txt"}, "");
+        assertFileEquals(WUG, "f.txt");
+        gitletCommand(new String[]{"restore", twoFiles.toUpperCase(), "--", "f.txt"},
+                "No commit with that id exists.");
+        gitletCommand(new String[]{"restore", "--", "f.txt"}, "");
+        assertFileEquals(WUG2, "f.txt");
+        m = gitletCommandP(new String[]{"log", "-n", "1"}, """
+                ===
+                ${COMMIT_HEAD}
+                Change f.txt
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        gitletCommandP(new String[]{"diff", twoFiles, m.group(1)},
+                ARBLINES + "-This is a wug\\.\n\\+Another wug\\.\n");
+    }
+
+    /**
+     * Runs the given Gitlet command, which must stop with an internal
+     * error.
+     *
+     * @param args
+     * @param message -- the error's message
+     */
+    public static void gitletCommandError(String[] args, String message) {
+        try {
+            runGitletCommand(args);
+        } catch (RuntimeException e) {
+            assertEquals(message, e.getCause().getMessage());
+            return;
+        }
+        fail("no error from " + createCommand(args));
+    }
+
+    @Test
+    public void test77_failedBlobWriteIsNotRecorded() throws IOException, NoSuchAlgorithmException {
+        i_prelude1();
+        writeFile(WUG, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        // A blob store the blob cannot be moved into
+        Files.delete(Path.of(".gitlet/blobs"));
+        writeContents(".gitlet/blobs", "");
+        gitletCommandError(new String[]{"commit", "One file"}, "Internal error writing blob.");
+        try (var files = Files.list(Path.of(".gitlet"))) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+        }
+        gitletCommandP(new String[]{"log"}, """
+                ===
+                ${COMMIT_HEAD}
+                initial commit
+
+                """
+                .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+        Files.delete(Path.of(".gitlet/blobs"));
+        Files.createDirectory(Path.of(".gitlet/blobs"));
+        gitletCommand(new String[]{"commit", "One file"}, "");
+        String wug = HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(WUG)));
+        assertFileEquals(WUG, ".gitlet/blobs/" + wug);
+    }
+
+    @Test
+    public void test78_failedChunkWriteLeavesNothing() throws IOException {
+        System.setProperty("gitlet.chunkThreshold", "4096");
+        System.setProperty("gitlet.chunkSize", "512");
+        try {
+            i_prelude1();
+            writeContents("a.txt", numberedLines(2000));
+            gitletCommand(new String[]{"add", "a.txt"}, "");
+            // A chunk store the chunks cannot be moved into
+            Files.delete(Path.of(".gitlet/chunks"));
+            writeContents(".gitlet/chunks", "");
+            gitletCommandError(new String[]{"commit", "base"}, "Internal error writing blob.");
+            try (var files = Files.walk(Path.of(".gitlet"))) {
+                assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+            }
+            assertEquals(0, new File(".gitlet/manifests").list().length);
+            gitletCommandP(new String[]{"log"}, """
+                    ===
+                    ${COMMIT_HEAD}
+                    initial commit
+
+                    """
+                    .replace("${COMMIT_HEAD}", COMMIT_HEAD));
+            Files.delete(Path.of(".gitlet/chunks"));
+            Files.createDirectory(Path.of(".gitlet/chunks"));
+            gitletCommand(new String[]{"commit", "base"}, "");
+            writeContents("a.txt", "changed\n");
+            gitletCommand(new String[]{"restore", "--", "a.txt"}, "");
+            assertEquals(numberedLines(2000), readContents("a.txt"));
+        } finally {
+            System.clearProperty("gitlet.chunkThreshold");
+            System.clearProperty("gitlet.chunkSize");
+        }
+    }
+
+    @Test
+    public void test79_gcPruneNowKeepsYoungObjects() {
+        i_setup2();
+        gitletCommand(new String[]{"branch", "other"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Change f.txt"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        gitletCommand(new String[]{"rm-branch", "other"}, "");
+        // Just written, as if by an add or fetch running at the same time
+        gitletCommand(new String[]{"gc", "--prune-now"}, "Removed 0 objects, 0 bytes.");
+        long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        for (String dir : new String[]{".gitlet/commits", ".gitlet/blobs"}) {
+            for (File file : new File(dir).listFiles()) {
+                assertTrue(file.setLastModified(old));
+            }
+        }
+        gitletCommandP(new String[]{"gc", "--prune-now"}, "Removed 2 objects, \\d+ bytes\\.");
+        gitletCommand(new String[]{"restore", "--", "f.txt"}, "");
+        assertFileEquals(WUG, "f.txt");
+    }
+
+    @Test
+    public void test80_lockHeldInThisProcess() throws IOException {
+        i_setup2();
+        writeFile(NOTWUG, "f.txt");
+        String locked = "Another Gitlet command is changing the repository; try again later.";
+        System.setProperty("gitlet.lockTimeoutMillis", "100");
+        // Held through another channel of the same process
+        try (FileChannel channel = FileChannel.open(Path.of(".gitlet/index.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            String trace = gitletErrorOutput("--trace", "restore", "--", "f.txt");
+            checkOutput(locked);
+            assertTrue(trace, traceCounter(trace, "lockContended") > 1);
+        } finally {
+            System.clearProperty("gitlet.lockTimeoutMillis");
+        }
+        assertFileEquals(NOTWUG, "f.txt");
+        gitletCommand(new String[]{"restore", "--", "f.txt"}, "");
+        assertFileEquals(WUG, "f.txt");
+    }
+
+    @Test
+    public void test81_blameWithoutBranch() {
+        i_setup2();
+        writeContents(".gitlet/HEAD", "missing");
+        gitletCommand(new String[]{"blame", "f.txt"},
+                "Branch directory is empty or does not exist.");
+        writeContents(".gitlet/HEAD", "main");
+        gitletCommandP(new String[]{"blame", "f.txt"}, "[0-9a-f]{8} .*\\n");
+    }
 }
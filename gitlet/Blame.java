@@ -0,0 +1,307 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Finds, for every line of a file in a commit, the commit that introduced
+ * it. The walk goes backwards through history, newest commit first, with
+ * the lines still unexplained at each commit. A commit passes to a parent
+ * every line the parent already had and is blamed for the rest:
+ *
+ *     - if a parent has the file with the same blob ID, every line passes
+ *       to it at once, without reading the file, so the long runs of
+ *       commits that leave a file alone cost one map lookup each;
+ *     - otherwise the parent's and the commit's versions are diffed, and
+ *       the lines outside the diff's edits pass to the parent.
+ *
+ * The walk ends when every line is blamed, or early for the lines of a
+ * commit whose blame was computed before: a cache, keyed by commit, gives
+ * the origins of all lines of the file as of that commit. Blaming a file
+ * again after a few more commits therefore only walks those commits.
+ *
+ * Renames are not followed: a file's history starts where its name
+ * appears.
+ *
+ * @author Zien Zeng
+ */
+class Blame {
+
+    /** Trace counter for commits the walk visited. */
+    static final String COMMITS = "blameCommits";
+    /** Trace counter for versions of the file that were diffed. */
+    static final String DIFFS = "blameDiffs";
+    /** Trace counter for walks cut short by the cache. */
+    static final String CACHE_HITS = "blameCacheHits";
+
+    /**
+     * The commit that introduced a line, and the line's index in that
+     * commit's version of the file.
+     */
+    static class Origin {
+        final String commitID;
+        final int line;
+
+        Origin(String commitID, int line) {
+            this.commitID = commitID;
+            this.line = line;
+        }
+    }
+
+    /**
+     * A commit the walk has reached, with the lines it still has to
+     * explain.
+     */
+    private static class Suspect {
+        final Commit commit;
+        final ObjectId blobID;
+        /** For each line of this version, the line of the result, or -1. */
+        final int[] target;
+        /** This version's lines, if already read. */
+        List<String> lines;
+
+        Suspect(Commit commit, ObjectId blobID, int lineCount) {
+            this.commit = commit;
+            this.blobID = blobID;
+            this.target = new int[lineCount];
+            Arrays.fill(target, -1);
+        }
+    }
+
+    /**
+     * Creates a blame of one file.
+     *
+     * @param fileName  The file's name.
+     * @param commits   Returns the commit with a given full ID.
+     * @param blobLines Returns the lines of the blob with a given ID.
+     * @param cache     Returns the cached origins of the file's lines as of
+     *                  a commit, or null if none are cached.
+     * @param trace     Receives counters.
+     */
+    Blame(String fileName, Function<String, Commit> commits,
+          Function<ObjectId, List<String>> blobLines, Function<String, Origin[]> cache,
+          Trace trace) {
+        this.fileName = fileName;
+        this.commits = commits;
+        this.blobLines = blobLines;
+        this.cache = cache;
+        this.trace = trace;
+    }
+
+    /**
+     * Returns the origin of every line of the file as of a commit.
+     *
+     * @param commitID The full ID of a commit containing the file.
+     * @return The origins, one per line.
+     */
+    Origin[] run(String commitID) {
+        Commit start = commits.apply(commitID);
+        ObjectId blobID = start.getFileBlobs().get(fileName);
+        List<String> lines = blobLines.apply(blobID);
+        Origin[] result = new Origin[lines.size()];
+        Suspect first = new Suspect(start, blobID, lines.size());
+        first.lines = lines;
+        for (int i = 0; i < lines.size(); i += 1) {
+            first.target[i] = i;
+        }
+        suspects.put(commitID, first);
+        queue.add(first);
+        while (!queue.isEmpty()) {
+            Suspect suspect = queue.poll();
+            suspects.remove(suspect.commit.returnID());
+            trace.count(COMMITS, 1);
+            if (!hasPendingLines(suspect) || resolveFromCache(suspect, result)) {
+                continue;
+            }
+            passToParents(suspect);
+            for (int i = 0; i < suspect.target.length; i += 1) {
+                if (suspect.target[i] >= 0) {
+                    result[suspect.target[i]] = new Origin(suspect.commit.returnID(), i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns origins in the cache's text form: one line per run of lines
+     * from the same commit at consecutive lines there, as the commit ID,
+     * the first line and the run's length.
+     *
+     * @param origins The origins of a file's lines.
+     * @return The text.
+     */
+    static String encode(Origin[] origins) {
+        StringBuilder text = new StringBuilder();
+        int i = 0;
+        while (i < origins.length) {
+            int j = i + 1;
+            while (j < origins.length && origins[j].commitID.equals(origins[i].commitID)
+                    && origins[j].line == origins[i].line + (j - i)) {
+                j += 1;
+            }
+            text.append(origins[i].commitID).append(' ').append(origins[i].line)
+                    .append(' ').append(j - i).append('\n');
+            i = j;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the origins written by encode.
+     *
+     * @param text The cache's text.
+     * @return The origins, or null if the text is malformed.
+     */
+    static Origin[] decode(String text) {
+        List<Origin> origins = new ArrayList<>();
+        try {
+            for (String run : text.split("\n")) {
+                if (run.isEmpty()) {
+                    continue;
+                }
+                String[] fields = run.split(" ");
+                int line = Integer.parseInt(fields[1]);
+                int count = Integer.parseInt(fields[2]);
+                for (int i = 0; i < count; i += 1) {
+                    origins.add(new Origin(fields[0], line + i));
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException excp) {
+            return null;
+        }
+        return origins.toArray(new Origin[0]);
+    }
+
+    /**
+     * Returns whether any line of a suspect is still unexplained. A parent
+     * is queued before its lines are passed, and may end up with none.
+     */
+    private static boolean hasPendingLines(Suspect suspect) {
+        for (int line : suspect.target) {
+            if (line >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills in the result for a suspect's lines from the cache.
+     *
+     * @return true if the cache had the suspect's commit.
+     */
+    private boolean resolveFromCache(Suspect suspect, Origin[] result) {
+        Origin[] cached = cache.apply(suspect.commit.returnID());
+        if (cached == null || cached.length != suspect.target.length) {
+            return false;
+        }
+        trace.count(CACHE_HITS, 1);
+        for (int i = 0; i < cached.length; i += 1) {
+            if (suspect.target[i] >= 0) {
+                result[suspect.target[i]] = cached[i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes every line of a suspect that one of its parents already had
+     * to that parent, clearing it from the suspect's targets. A parent
+     * with the same blob takes every line, and then no diff is needed.
+     */
+    private void passToParents(Suspect suspect) {
+        List<Commit> parents = new ArrayList<>(2);
+        Commit commit = suspect.commit;
+        if (commit.getParentID() != null) {
+            parents.add(commits.apply(commit.getParentID()));
+        }
+        if (commit.isMerge() && !commit.getMergeParentID().equals(commit.getParentID())) {
+            parents.add(commits.apply(commit.getMergeParentID()));
+        }
+        for (Commit parent : parents) {
+            if (suspect.blobID.equals(parent.getFileBlobs().get(fileName))) {
+                Suspect taker = suspectFor(parent, suspect.blobID, suspect.target.length);
+                for (int i = 0; i < suspect.target.length; i += 1) {
+                    pass(suspect, i, taker, i);
+                }
+                return;
+            }
+        }
+        for (Commit parent : parents) {
+            ObjectId parentBlobID = parent.getFileBlobs().get(fileName);
+            if (parentBlobID == null) {
+                continue;
+            }
+            if (suspect.lines == null) {
+                suspect.lines = blobLines.apply(suspect.blobID);
+            }
+            List<String> parentLines = blobLines.apply(parentBlobID);
+            trace.count(DIFFS, 1);
+            Suspect taker = suspectFor(parent, parentBlobID, parentLines.size());
+            if (taker.lines == null) {
+                taker.lines = parentLines;
+            }
+            int a = 0;
+            int b = 0;
+            for (Diff.Edit edit : Diff.diff(parentLines, suspect.lines)) {
+                while (b < edit.bStart) {
+                    pass(suspect, b++, taker, a++);
+                }
+                a = edit.aEnd;
+                b = edit.bEnd;
+            }
+            while (b < suspect.lines.size()) {
+                pass(suspect, b++, taker, a++);
+            }
+        }
+        suspect.lines = null;
+    }
+
+    /**
+     * Moves a suspect's line to a parent's line, unless that parent line
+     * already stands for another line of the result, which can happen
+     * when a merge duplicates a line; the suspect then keeps it.
+     */
+    private static void pass(Suspect from, int fromLine, Suspect to, int toLine) {
+        if (from.target[fromLine] >= 0 && to.target[toLine] < 0) {
+            to.target[toLine] = from.target[fromLine];
+            from.target[fromLine] = -1;
+        }
+    }
+
+    /**
+     * Returns the pending suspect for a commit, creating and queueing it
+     * if the walk has not reached the commit yet.
+     */
+    private Suspect suspectFor(Commit commit, ObjectId blobID, int lineCount) {
+        Suspect suspect = suspects.get(commit.returnID());
+        if (suspect == null) {
+            suspect = new Suspect(commit, blobID, lineCount);
+            suspects.put(commit.returnID(), suspect);
+            queue.add(suspect);
+        }
+        return suspect;
+    }
+
+    /** The file being blamed. */
+    private final String fileName;
+    /** Loads commits by ID. */
+    private final Function<String, Commit> commits;
+    /** Reads the lines of a blob. */
+    private final Function<ObjectId, List<String>> blobLines;
+    /** Looks up cached results. */
+    private final Function<String, Origin[]> cache;
+    /** Receives counters. */
+    private final Trace trace;
+    /** Suspects not yet visited, by commit ID. */
+    private final Map<String, Suspect> suspects = new HashMap<>();
+    /** Suspects not yet visited, newest commit first. */
+    private final PriorityQueue<Suspect> queue = new PriorityQueue<>(
+            (x, y) -> y.commit.getTimestamp().compareTo(x.commit.getTimestamp()));
+}
@@ -0,0 +1,188 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a stream into content-defined chunks, FastCDC style, so that an
+ * edit to a large file changes only the chunks around it: chunk
+ * boundaries depend on the bytes near them, not on their offsets, and so
+ * move with the data when bytes are inserted or removed before them.
+ *
+ * A rolling "gear" hash is updated with each byte as
+ *
+ *     hash = (hash << 1) + gear[byte]
+ *
+ * and a boundary is cut after the first byte where the hash has zeros in
+ * every bit of a mask. No boundary is looked for in the first minimum
+ * size bytes of a chunk, and one is forced at the maximum size. Between
+ * the minimum and the average size a mask with more bits is used, and
+ * past the average one with fewer, which keeps chunk sizes close to the
+ * average (normalized chunking). The gear table is generated from a fixed
+ * seed, so the same data is always cut at the same places.
+ *
+ * The stream is read through a buffer of twice the maximum chunk size
+ * and never held in memory whole.
+ *
+ * Large blobs are stored as their chunks plus a manifest, which lists a
+ * chunk ID and length per line in order; the blob's contents are the
+ * chunks concatenated.
+ *
+ * @author Zien Zeng
+ */
+class Chunker {
+
+    /** Default average chunk size in bytes. */
+    static final int DEFAULT_AVERAGE_SIZE = 64 << 10;
+
+    /** Extra mask bits used below the average size, fewer above it. */
+    private static final int NORMALIZATION = 2;
+
+    /**
+     * Creates a chunker for a stream.
+     *
+     * @param in          The stream to split; read to its end, not closed.
+     * @param averageSize The desired average chunk size, a power of two
+     *                    of at least 256 bytes. Chunks are between a
+     *                    quarter and four times this size.
+     */
+    Chunker(InputStream in, int averageSize) {
+        if (Integer.bitCount(averageSize) != 1 || averageSize < 256) {
+            throw new IllegalArgumentException("average chunk size must be a power of two");
+        }
+        this.in = in;
+        this.minSize = averageSize / 4;
+        this.averageSize = averageSize;
+        this.maxSize = averageSize * 4;
+        this.buffer = new byte[2 * maxSize];
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.smallMask = highBits(bits + NORMALIZATION);
+        this.largeMask = highBits(bits - NORMALIZATION);
+        this.gear = new long[256];
+        long seed = 0x6769746c6574L;
+        for (int i = 0; i < gear.length; i += 1) {
+            // SplitMix64
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            gear[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Returns the next chunk of the stream.
+     *
+     * @return The chunk's bytes, or null at the end of the stream.
+     */
+    byte[] next() throws IOException {
+        fill();
+        int available = end - start;
+        if (available == 0) {
+            return null;
+        }
+        int length = cut(available);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Returns the length of the chunk starting at the buffer's start,
+     * given how many bytes are available.
+     */
+    private int cut(int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int limit = Math.min(available, maxSize);
+        int normal = Math.min(limit, averageSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + gear[buffer[start + i] & 0xff];
+            if ((hash & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i += 1) {
+            hash = (hash << 1) + gear[buffer[start + i] & 0xff];
+            if ((hash & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Reads until the buffer holds a maximum-size chunk past its start or
+     * the stream ends, first moving the unread bytes to the front.
+     */
+    private void fill() throws IOException {
+        if (end - start >= maxSize || eof) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                eof = true;
+                return;
+            }
+            end += n;
+        }
+    }
+
+    /**
+     * Returns a mask of the given number of the hash's high bits, which
+     * depend on the most recent 64 bytes.
+     */
+    private static long highBits(int bits) {
+        return -1L << (64 - bits);
+    }
+
+    /**
+     * Returns the chunk IDs listed in a manifest, in order.
+     *
+     * @param manifest The manifest file.
+     * @return The chunk IDs.
+     */
+    static List<String> readManifest(File manifest) {
+        List<String> chunkIDs = new ArrayList<>();
+        for (String line : Utils.readContentsAsString(manifest).split("\n")) {
+            if (!line.isEmpty()) {
+                chunkIDs.add(line.substring(0, Utils.UID_LENGTH));
+            }
+        }
+        return chunkIDs;
+    }
+
+    /** The stream being split. */
+    private final InputStream in;
+    /** Smallest chunk size, except for the last chunk. */
+    private final int minSize;
+    /** Size at which the mask changes. */
+    private final int averageSize;
+    /** Largest chunk size. */
+    private final int maxSize;
+    /** Mask used before the average size. */
+    private final long smallMask;
+    /** Mask used after the average size. */
+    private final long largeMask;
+    /** Random value added to the hash for each byte value. */
+    private final long[] gear;
+    /** Bytes read from the stream. */
+    private final byte[] buffer;
+    /** Start of the unreturned bytes in the buffer. */
+    private int start;
+    /** End of the bytes read into the buffer. */
+    private int end;
+    /** Whether the stream has ended. */
+    private boolean eof;
+}
@@ -1,5 +1,9 @@
 package gitlet;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.Serializable;
 import java.util.*;
 
@@ -14,43 +18,60 @@ import static gitlet.Utils.sha1;
  * @author Zien Zeng
  */
 public class Commit implements Serializable {
+    /**
+     * The version of the first serialized form, in which a commit held its
+     * parents themselves; kept so that commits written then still read.
+     */
+    private static final long serialVersionUID = -7949781895459153845L;
+
     /**
      * The message of this Commit.
      */
     private String message;
     private boolean isMerge;
-    private Commit mergeParent;
     private Date timestamp;
-    private Commit parent;
-    private Map<String, String> fileBlobs;
+    /**
+     * The IDs of the parents, rather than the parents themselves, so that
+     * reading a commit never reads its history.
+     */
+    private String parentID;
+    private String mergeParentID;
+    /**
+     * The blob of each file, by ID rather than by hex string, which
+     * halves the memory a tree entry takes. An ID's string form is its
+     * hex, so the map prints, and the commit's ID hashes, as before; and
+     * it is serialized as a map of hex strings, as it always was, so
+     * commits read and write as before.
+     */
+    private Map<String, ObjectId> fileBlobs;
     private String ID;
 
     public Commit(String message) {
         this.message = message;
         this.timestamp = new Date();
-        this.parent = null;
+        this.parentID = null;
         this.fileBlobs = new HashMap<>();
         this.isMerge = false;
-        this.mergeParent = null;
+        this.mergeParentID = null;
         this.ID = getID();
     }
 
     public Commit(String message, Commit parent) {
         this.message = message;
         this.timestamp = new Date();
-        this.parent = parent;
+        this.parentID = parent.returnID();
         this.fileBlobs = new HashMap<>();
         this.isMerge = false;
-        this.mergeParent = null;
+        this.mergeParentID = null;
     }
 
     public Commit(String message, Commit parent, Commit mergeParent) {
         this.message = message;
         this.timestamp = new Date();
-        this.parent = parent;
+        this.parentID = parent.returnID();
         this.fileBlobs = new HashMap<>();
         this.isMerge = true;
-        this.mergeParent = mergeParent;
+        this.mergeParentID = mergeParent.returnID();
     }
 
     public String returnID() {
@@ -61,10 +82,10 @@ public class Commit implements Serializable {
         List<Object> vals = new ArrayList<>();
         vals.add(message);
         vals.add(timestamp.toString());
-        vals.add(parent != null ? parent.getID() : "");
+        vals.add(parentID != null ? parentID : "");
         String blobsString = fileBlobs.toString();
         vals.add(blobsString);
-        vals.add(mergeParent != null ? mergeParent.getID() : "");
+        vals.add(mergeParentID != null ? mergeParentID : "");
         return sha1(vals);
     }
 
@@ -77,24 +98,78 @@ public class Commit implements Serializable {
         return timestamp;
     }
 
-    public Commit getParent() {
-        return parent;
+    public String getParentID() {
+        return parentID;
     }
 
-    public Map<String, String> getFileBlobs() {
+    public Map<String, ObjectId> getFileBlobs() {
         return fileBlobs;
     }
 
-    public void setFileBlobs(Map<String, String> fileBlobs) {
+    public void setFileBlobs(Map<String, ObjectId> fileBlobs) {
         this.fileBlobs = fileBlobs;
         this.ID = getID();
     }
 
-    public Commit getMergeParent() {
-        return mergeParent;
+    public String getMergeParentID() {
+        return mergeParentID;
     }
 
     public boolean isMerge() {
         return isMerge;
     }
+
+    /**
+     * Writes the commit in its serialized form, with blob IDs as hex
+     * strings in place of the IDs themselves.
+     *
+     * @param out The stream to write to.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        HashMap<String, String> blobs = new HashMap<>(fileBlobs.size() * 4 / 3 + 1);
+        for (Map.Entry<String, ObjectId> entry : fileBlobs.entrySet()) {
+            blobs.put(entry.getKey(), entry.getValue().toString());
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("message", message);
+        fields.put("isMerge", isMerge);
+        fields.put("timestamp", timestamp);
+        fields.put("parentID", parentID);
+        fields.put("mergeParentID", mergeParentID);
+        fields.put("fileBlobs", blobs);
+        fields.put("ID", ID);
+        out.writeFields();
+    }
+
+    /**
+     * Reads a commit in either serialized form. Commits written before
+     * parents were stored by ID hold their parents, and so their whole
+     * history, in "parent" and "mergeParent" fields; their parents' IDs
+     * are taken from those and the parents themselves dropped.
+     *
+     * @param in The stream holding the commit.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        ObjectStreamClass form = fields.getObjectStreamClass();
+        message = (String) fields.get("message", null);
+        isMerge = fields.get("isMerge", false);
+        timestamp = (Date) fields.get("timestamp", null);
+        @SuppressWarnings("unchecked")
+        Map<String, String> blobs = (Map<String, String>) fields.get("fileBlobs", null);
+        fileBlobs = new HashMap<>(blobs.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> entry : blobs.entrySet()) {
+            fileBlobs.put(entry.getKey(), ObjectId.fromHex(entry.getValue()));
+        }
+        ID = (String) fields.get("ID", null);
+        if (form.getField("parentID") != null) {
+            parentID = (String) fields.get("parentID", null);
+            mergeParentID = (String) fields.get("mergeParentID", null);
+        } else {
+            Commit parent = (Commit) fields.get("parent", null);
+            Commit mergeParent = (Commit) fields.get("mergeParent", null);
+            parentID = parent == null ? null : parent.returnID();
+            mergeParentID = mergeParent == null ? null : mergeParent.returnID();
+        }
+    }
 }
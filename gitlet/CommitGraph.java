@@ -0,0 +1,312 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A file describing commits without their file maps, so that history can
+ * be walked without deserializing commits. Each commit's record holds its
+ * ID, its parents' IDs, its date, and a Bloom filter of the names of the
+ * files it changed relative to its first parent. A file-history query
+ * checks the filter first and only loads the commits whose filter may
+ * contain the file; a filter never misses a changed file, so every other
+ * commit is skipped without being read.
+ *
+ * The file is a sequence of records, each
+ *
+ *     payload length (int), payload, CRC-32 of the payload (int)
+ *
+ * with the payload
+ *
+ *     flags (byte: 1 = has parent, 2 = has merge parent),
+ *     ID, parent ID, merge parent ID (40 ASCII bytes each, if present),
+ *     date in milliseconds (long),
+ *     filter length in bytes (short, -1 if the commit changed too many
+ *     files to have one), filter.
+ *
+ * Records are appended as commits are made, each with a single write, so
+ * concurrent writers never interleave. A reader stops at the first record
+ * that is incomplete or fails its check, which is at worst the one being
+ * written. Commits without a record, such as fetched ones, are simply
+ * read in full; garbage collection rewrites the file with a record for
+ * every reachable commit.
+ *
+ * A filter has ten bits per changed file and is probed with seven hashes
+ * derived from two 32-bit MurmurHash3 values of the file name, which
+ * gives about one false positive per hundred unchanged files.
+ *
+ * @author Zien Zeng
+ */
+class CommitGraph {
+
+    /** Name of the file in a .gitlet directory. */
+    static final String FILE_NAME = "commit-graph";
+
+    /** Trace counter for commits skipped on their filter. */
+    static final String FILTER_SKIPS = "bloomSkips";
+    /** Trace counter for commits whose filter matched a file they did not change. */
+    static final String FILTER_FALSE_POSITIVES = "bloomFalsePositives";
+
+    /** Bits in a filter per changed file. */
+    private static final int BITS_PER_PATH = 10;
+    /** Number of bits probed per file name. */
+    private static final int HASHES = 7;
+    /** Most changed files a commit may have and still get a filter. */
+    private static final int MAX_CHANGED_PATHS = 512;
+    /** Smallest filter, in bytes. */
+    private static final int MIN_FILTER_BYTES = 8;
+    /** Seeds of the two file name hashes. */
+    private static final int SEED1 = 0x293ae76f;
+    private static final int SEED2 = 0x7e646e2c;
+
+    /**
+     * One commit's record.
+     */
+    static class Entry {
+        final String id;
+        final String parentID;
+        final String mergeParentID;
+        final long timestamp;
+        /** The filter of changed file names, or null if it has none. */
+        final byte[] filter;
+
+        Entry(String id, String parentID, String mergeParentID, long timestamp,
+              byte[] filter) {
+            this.id = id;
+            this.parentID = parentID;
+            this.mergeParentID = mergeParentID;
+            this.timestamp = timestamp;
+            this.filter = filter;
+        }
+
+        /**
+         * Returns whether this commit may have changed a file relative to
+         * its first parent. False means it certainly did not.
+         *
+         * @param fileName The file's name.
+         * @return false if the file is certainly unchanged.
+         */
+        boolean mayHaveChanged(String fileName) {
+            if (filter == null) {
+                return true;
+            }
+            byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+            int h1 = murmur3(name, SEED1);
+            int h2 = murmur3(name, SEED2);
+            int bits = 8 * filter.length;
+            for (int i = 0; i < HASHES; i += 1) {
+                int bit = Integer.remainderUnsigned(h1 + i * h2, bits);
+                if ((filter[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns a record for a commit.
+     *
+     * @param commitID     The commit's ID.
+     * @param commit       The commit.
+     * @param changedPaths The names of the files it added, changed or
+     *                     removed relative to its first parent.
+     * @return The record.
+     */
+    static Entry entry(String commitID, Commit commit, Collection<String> changedPaths) {
+        byte[] filter = null;
+        if (changedPaths.size() <= MAX_CHANGED_PATHS) {
+            int bytes = Math.max(MIN_FILTER_BYTES, (changedPaths.size() * BITS_PER_PATH + 7) / 8);
+            filter = new byte[bytes];
+            int bits = 8 * bytes;
+            for (String path : changedPaths) {
+                byte[] name = path.getBytes(StandardCharsets.UTF_8);
+                int h1 = murmur3(name, SEED1);
+                int h2 = murmur3(name, SEED2);
+                for (int i = 0; i < HASHES; i += 1) {
+                    int bit = Integer.remainderUnsigned(h1 + i * h2, bits);
+                    filter[bit >>> 3] |= (byte) (1 << (bit & 7));
+                }
+            }
+        }
+        return new Entry(commitID, commit.getParentID(),
+                commit.isMerge() ? commit.getMergeParentID() : null,
+                commit.getTimestamp().getTime(), filter);
+    }
+
+    /**
+     * Reads every intact record of a commit-graph file.
+     *
+     * @param file The file.
+     * @return The records by commit ID; empty if the file does not exist.
+     */
+    static Map<String, Entry> read(File file) {
+        Map<String, Entry> entries = new HashMap<>();
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (NoSuchFileException excp) {
+            return entries;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+        CRC32 crc = new CRC32();
+        byte[] id = new byte[Utils.UID_LENGTH];
+        try {
+            while (in.remaining() >= Integer.BYTES) {
+                int length = in.getInt();
+                if (length < 0 || in.remaining() < length + Integer.BYTES) {
+                    break;
+                }
+                crc.reset();
+                crc.update(in.array(), in.position(), length);
+                int end = in.position() + length;
+                if (in.getInt(end) != (int) crc.getValue()) {
+                    break;
+                }
+                int flags = in.get();
+                in.get(id);
+                String commitID = new String(id, StandardCharsets.US_ASCII);
+                String parentID = null;
+                String mergeParentID = null;
+                if ((flags & 1) != 0) {
+                    in.get(id);
+                    parentID = new String(id, StandardCharsets.US_ASCII);
+                }
+                if ((flags & 2) != 0) {
+                    in.get(id);
+                    mergeParentID = new String(id, StandardCharsets.US_ASCII);
+                }
+                long timestamp = in.getLong();
+                int filterLength = in.getShort();
+                byte[] filter = null;
+                if (filterLength >= 0) {
+                    filter = new byte[filterLength];
+                    in.get(filter);
+                }
+                entries.put(commitID,
+                        new Entry(commitID, parentID, mergeParentID, timestamp, filter));
+                in.position(end + Integer.BYTES);
+            }
+        } catch (BufferUnderflowException excp) {
+            // A record shorter than its fields; ignore it and the rest
+        }
+        return entries;
+    }
+
+    /**
+     * Appends a record to a commit-graph file in one write, creating the
+     * file if needed.
+     *
+     * @param file  The file.
+     * @param entry The record.
+     */
+    static void append(File file, Entry entry) {
+        try {
+            Files.write(file.toPath(), encode(entry), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Replaces a commit-graph file with the given records, atomically.
+     *
+     * @param file    The file.
+     * @param entries The records.
+     */
+    static void write(File file, Collection<Entry> entries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Entry entry : entries) {
+            out.writeBytes(encode(entry));
+        }
+        Refs.publish(file, out.toByteArray());
+    }
+
+    /**
+     * Returns a record's bytes, framed with its length and checksum.
+     */
+    private static byte[] encode(Entry entry) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(payload)) {
+            data.writeByte((entry.parentID != null ? 1 : 0)
+                    | (entry.mergeParentID != null ? 2 : 0));
+            data.write(entry.id.getBytes(StandardCharsets.US_ASCII));
+            if (entry.parentID != null) {
+                data.write(entry.parentID.getBytes(StandardCharsets.US_ASCII));
+            }
+            if (entry.mergeParentID != null) {
+                data.write(entry.mergeParentID.getBytes(StandardCharsets.US_ASCII));
+            }
+            data.writeLong(entry.timestamp);
+            data.writeShort(entry.filter == null ? -1 : entry.filter.length);
+            if (entry.filter != null) {
+                data.write(entry.filter);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteBuffer record = ByteBuffer.allocate(payload.size() + 2 * Integer.BYTES);
+        record.putInt(payload.size());
+        record.put(payload.toByteArray());
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Returns the 32-bit MurmurHash3 of data.
+     */
+    private static int murmur3(byte[] data, int seed) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        int h = seed;
+        int blocks = data.length / 4;
+        for (int i = 0; i < blocks; i += 1) {
+            int k = (data[4 * i] & 0xff) | (data[4 * i + 1] & 0xff) << 8
+                    | (data[4 * i + 2] & 0xff) << 16 | (data[4 * i + 3] & 0xff) << 24;
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+        int tail = 4 * blocks;
+        int remaining = data.length - tail;
+        if (remaining > 0) {
+            int k = data[tail] & 0xff;
+            if (remaining > 1) {
+                k ^= (data[tail + 1] & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                k ^= (data[tail + 2] & 0xff) << 16;
+            }
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            h ^= k;
+        }
+        h ^= data.length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
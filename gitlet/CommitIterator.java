@@ -0,0 +1,180 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Walks the history behind one or more commits lazily, loading each
+ * commit by ID only when the walk reaches it and keeping no reference to
+ * it once it has been returned. Three orders are supported:
+ *
+ *     FIRST_PARENT  the first tip and its first parents, newest first;
+ *                   holds one commit ID at a time.
+ *     DATE          every ancestor once, newest commit date first; holds
+ *                   the walk's frontier and the IDs already visited.
+ *     TOPOLOGICAL   every ancestor once, never a commit before one of its
+ *                   children; holds a child count per ancestor ID, which
+ *                   a first pass over the history computes.
+ *
+ * Commits come from a loader, normally a repository's commit reader, so
+ * whether they stay in memory afterwards is up to the loader's cache.
+ *
+ * @author Zien Zeng
+ */
+class CommitIterator implements Iterator<Commit> {
+
+    /** Follow first parents only. */
+    static final int FIRST_PARENT = 0;
+    /** Visit all ancestors, newest first. */
+    static final int DATE = 1;
+    /** Visit all ancestors, children before parents. */
+    static final int TOPOLOGICAL = 2;
+
+    /**
+     * Creates an iterator over the history of the given commits.
+     *
+     * @param loader Returns the commit with a given full ID.
+     * @param tips   The IDs of the commits to start from.
+     * @param order  FIRST_PARENT, DATE or TOPOLOGICAL.
+     */
+    CommitIterator(Function<String, Commit> loader, Collection<String> tips, int order) {
+        this.loader = loader;
+        this.order = order;
+        switch (order) {
+            case FIRST_PARENT:
+                this.next = tips.isEmpty() ? null : tips.iterator().next();
+                break;
+            case DATE:
+                for (String tip : tips) {
+                    if (seen.add(tip)) {
+                        frontier.add(loader.apply(tip));
+                    }
+                }
+                break;
+            case TOPOLOGICAL:
+                countChildren(tips);
+                for (String tip : tips) {
+                    Integer count = children.get(tip);
+                    if (count != null && count == 0) {
+                        children.remove(tip);
+                        ready.push(tip);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown order " + order);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        switch (order) {
+            case FIRST_PARENT:
+                return next != null;
+            case DATE:
+                return !frontier.isEmpty();
+            default:
+                return !ready.isEmpty();
+        }
+    }
+
+    @Override
+    public Commit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Commit commit;
+        switch (order) {
+            case FIRST_PARENT:
+                commit = loader.apply(next);
+                next = commit.getParentID();
+                return commit;
+            case DATE:
+                commit = frontier.poll();
+                for (String parentID : parents(commit)) {
+                    if (seen.add(parentID)) {
+                        frontier.add(loader.apply(parentID));
+                    }
+                }
+                return commit;
+            default:
+                commit = loader.apply(ready.pop());
+                // Push in reverse so the first parent is visited first
+                List<String> parents = parents(commit);
+                for (int i = parents.size() - 1; i >= 0; i -= 1) {
+                    String parentID = parents.get(i);
+                    int remaining = children.get(parentID) - 1;
+                    if (remaining == 0) {
+                        children.remove(parentID);
+                        ready.push(parentID);
+                    } else {
+                        children.put(parentID, remaining);
+                    }
+                }
+                return commit;
+        }
+    }
+
+    /**
+     * Counts, for every commit reachable from tips, how many of its
+     * children are reachable from tips, loading each commit once and
+     * keeping only its ID.
+     */
+    private void countChildren(Collection<String> tips) {
+        Deque<String> pending = new ArrayDeque<>();
+        for (String tip : tips) {
+            if (children.putIfAbsent(tip, 0) == null) {
+                pending.push(tip);
+            }
+        }
+        while (!pending.isEmpty()) {
+            for (String parentID : parents(loader.apply(pending.pop()))) {
+                Integer count = children.get(parentID);
+                if (count == null) {
+                    pending.push(parentID);
+                    count = 0;
+                }
+                children.put(parentID, count + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the IDs of a commit's parents, first parent first.
+     */
+    private static List<String> parents(Commit commit) {
+        List<String> parents = new ArrayList<>(2);
+        if (commit.getParentID() != null) {
+            parents.add(commit.getParentID());
+        }
+        if (commit.isMerge() && !commit.getMergeParentID().equals(commit.getParentID())) {
+            parents.add(commit.getMergeParentID());
+        }
+        return parents;
+    }
+
+    /** Loads commits by ID. */
+    private final Function<String, Commit> loader;
+    /** The walk order. */
+    private final int order;
+    /** FIRST_PARENT: the ID of the next commit, or null at the root. */
+    private String next;
+    /** DATE: loaded commits waiting to be returned, newest first. */
+    private final PriorityQueue<Commit> frontier =
+            new PriorityQueue<>((a, b) -> b.getTimestamp().compareTo(a.getTimestamp()));
+    /** DATE: IDs of every commit added to the frontier. */
+    private final ObjectIdSet seen = new ObjectIdSet();
+    /** TOPOLOGICAL: unreturned children of each commit not yet ready. */
+    private final Map<String, Integer> children = new HashMap<>();
+    /** TOPOLOGICAL: IDs of commits whose children have all been returned. */
+    private final Deque<String> ready = new ArrayDeque<>();
+}
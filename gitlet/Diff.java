@@ -0,0 +1,352 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A line-based difference engine using Myers' O(ND) algorithm in its
+ * linear-space, divide-and-conquer form, with unified-diff output.
+ * Lines are kept with their terminators and decoded as ISO-8859-1, so
+ * any file round-trips byte for byte and binary files never fail to
+ * decode.
+ *
+ * @author Zien Zeng
+ */
+class Diff {
+
+    /** Number of unchanged lines shown around each change. */
+    static final int CONTEXT = 3;
+
+    /**
+     * A replacement of lines [aStart, aEnd) of the old version by lines
+     * [bStart, bEnd) of the new one. Either range may be empty.
+     */
+    static class Edit {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /**
+     * Returns the lines of a file, each with its line terminator. The last
+     * line lacks one if the file does not end with a newline.
+     *
+     * @param file The file to read.
+     * @return Its lines.
+     */
+    static List<String> readLines(File file) {
+        if (file == null) {
+            return new ArrayList<>();
+        }
+        try {
+            return splitLines(Files.readAllBytes(file.toPath()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Returns the lines of a stream, read to its end, each with its line
+     * terminator. The stream is not closed.
+     *
+     * @param in The stream to read.
+     * @return Its lines.
+     */
+    static List<String> readLines(InputStream in) {
+        try {
+            return splitLines(in.readAllBytes());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Splits contents into lines, each with its line terminator.
+     */
+    private static List<String> splitLines(byte[] contents) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < contents.length; i += 1) {
+            if (contents[i] == '\n') {
+                lines.add(new String(contents, start, i + 1 - start, StandardCharsets.ISO_8859_1));
+                start = i + 1;
+            }
+        }
+        if (start < contents.length) {
+            lines.add(new String(contents, start, contents.length - start,
+                    StandardCharsets.ISO_8859_1));
+        }
+        return lines;
+    }
+
+    /**
+     * Returns a shortest edit script turning a into b, as edits in
+     * increasing order.
+     *
+     * @param a The old lines.
+     * @param b The new lines.
+     * @return The edits.
+     */
+    static List<Edit> diff(List<String> a, List<String> b) {
+        return new Diff(a, b).edits();
+    }
+
+    /**
+     * Writes a unified diff of a and b, as computed by diff, to out.
+     * Nothing is written when the edit list is empty.
+     *
+     * @param out   Where to write.
+     * @param aName The old file's name in the header, e.g. "a/f.txt".
+     * @param bName The new file's name in the header.
+     * @param a     The old lines.
+     * @param b     The new lines.
+     * @param edits The edits turning a into b.
+     */
+    static void writeUnified(OutputStream out, String aName, String bName,
+                             List<String> a, List<String> b, List<Edit> edits)
+            throws IOException {
+        if (edits.isEmpty()) {
+            return;
+        }
+        write(out, "--- " + aName + "\n");
+        write(out, "+++ " + bName + "\n");
+        int first = 0;
+        while (first < edits.size()) {
+            // Group edits whose context regions touch into one hunk
+            int last = first;
+            while (last + 1 < edits.size()
+                    && edits.get(last + 1).aStart - edits.get(last).aEnd <= 2 * CONTEXT) {
+                last += 1;
+            }
+            Edit start = edits.get(first);
+            Edit end = edits.get(last);
+            int aFrom = Math.max(0, start.aStart - CONTEXT);
+            int bFrom = Math.max(0, start.bStart - CONTEXT);
+            int aTo = Math.min(a.size(), end.aEnd + CONTEXT);
+            int bTo = Math.min(b.size(), end.bEnd + CONTEXT);
+            write(out, "@@ -" + range(aFrom, aTo) + " +" + range(bFrom, bTo) + " @@\n");
+            int i = aFrom;
+            for (int e = first; e <= last; e += 1) {
+                Edit edit = edits.get(e);
+                for (; i < edit.aStart; i += 1) {
+                    writeLine(out, ' ', a.get(i));
+                }
+                for (int k = edit.aStart; k < edit.aEnd; k += 1) {
+                    writeLine(out, '-', a.get(k));
+                }
+                for (int k = edit.bStart; k < edit.bEnd; k += 1) {
+                    writeLine(out, '+', b.get(k));
+                }
+                i = edit.aEnd;
+            }
+            for (; i < aTo; i += 1) {
+                writeLine(out, ' ', a.get(i));
+            }
+            first = last + 1;
+        }
+    }
+
+    /**
+     * Returns the unified-diff description of lines [from, to).
+     */
+    private static String range(int from, int to) {
+        int count = to - from;
+        int start = count == 0 ? from : from + 1;
+        return count == 1 ? Integer.toString(start) : start + "," + count;
+    }
+
+    /**
+     * Writes one diff line with the given prefix, marking a missing final
+     * newline as git does.
+     */
+    private static void writeLine(OutputStream out, char prefix, String line)
+            throws IOException {
+        out.write(prefix);
+        write(out, line);
+        if (!line.endsWith("\n")) {
+            write(out, "\n\\ No newline at end of file\n");
+        }
+    }
+
+    /**
+     * Writes s to out byte for byte.
+     */
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Prepares to compare a and b. Every distinct line is numbered so that
+     * the search compares ints rather than strings. Lines in the common
+     * prefix and suffix, which is most of them when two versions of a file
+     * differ a little, are compared once as strings and given numbers of
+     * their own without being hashed.
+     */
+    private Diff(List<String> a, List<String> b) {
+        int prefix = 0;
+        int limit = Math.min(a.size(), b.size());
+        while (prefix < limit && a.get(prefix).equals(b.get(prefix))) {
+            prefix += 1;
+        }
+        int suffix = 0;
+        while (suffix < limit - prefix
+                && a.get(a.size() - 1 - suffix).equals(b.get(b.size() - 1 - suffix))) {
+            suffix += 1;
+        }
+        Map<String, Integer> numbers = new HashMap<>();
+        this.a = number(a, prefix, suffix, numbers);
+        this.b = number(b, prefix, suffix, numbers);
+        this.aMatch = new int[a.size()];
+        Arrays.fill(aMatch, -1);
+    }
+
+    /**
+     * Returns the numbers of lines, numbering new lines as they appear.
+     * The first prefix and last suffix lines get negative numbers that
+     * depend only on their distance from the start or end, so that they
+     * match exactly the same lines of the other side.
+     */
+    private static int[] number(List<String> lines, int prefix, int suffix,
+                                Map<String, Integer> numbers) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < prefix; i += 1) {
+            result[i] = -1 - i;
+        }
+        for (int i = prefix; i < result.length - suffix; i += 1) {
+            Integer n = numbers.putIfAbsent(lines.get(i), numbers.size());
+            result[i] = n == null ? numbers.size() - 1 : n;
+        }
+        for (int k = 0; k < suffix; k += 1) {
+            result[result.length - 1 - k] = -1 - prefix - k;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the edits turning a into b.
+     */
+    private List<Edit> edits() {
+        match(0, a.length, 0, b.length);
+        List<Edit> result = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && aMatch[i] == j) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < a.length && aMatch[i] < 0) {
+                i += 1;
+            }
+            j = i < a.length ? aMatch[i] : b.length;
+            result.add(new Edit(aStart, i, bStart, j));
+        }
+        return result;
+    }
+
+    /**
+     * Records in aMatch a longest common subsequence of a[aLo, aHi) and
+     * b[bLo, bHi).
+     */
+    private void match(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aMatch[aLo] = bLo;
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+            aMatch[aHi] = bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+        match(aLo, snake[0], bLo, snake[1]);
+        for (int x = snake[0], y = snake[1]; x < snake[2]; x += 1, y += 1) {
+            aMatch[x] = y;
+        }
+        match(snake[2], aHi, snake[3], bHi);
+    }
+
+    /**
+     * Returns {x, y, u, v} such that the diagonal run from (x, y) to
+     * (u, v) lies on a shortest edit path through the given region, found
+     * by running the forward and reverse searches until they overlap.
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        int[] forward = new int[2 * max + 3];
+        int[] reverse = new int[2 * max + 3];
+        for (int d = 0; d <= max; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                int r = delta - k;
+                if (odd && r >= -(d - 1) && r <= d - 1
+                        && x + reverse[offset + r] >= n) {
+                    return new int[] {aLo + startX, bLo + startY, aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && reverse[offset + k - 1] < reverse[offset + k + 1])
+                        ? reverse[offset + k + 1] : reverse[offset + k - 1] + 1;
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                reverse[offset + k] = x;
+                int f = delta - k;
+                if (!odd && f >= -d && f <= d
+                        && x + forward[offset + f] >= n) {
+                    return new int[] {aHi - x, bHi - y, aHi - startX, bHi - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+
+    /** Line numbers of the old version. */
+    private final int[] a;
+    /** Line numbers of the new version. */
+    private final int[] b;
+    /** For each old line, the index of the new line it matches, or -1. */
+    private final int[] aMatch;
+}
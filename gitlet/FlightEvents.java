@@ -0,0 +1,166 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.AnnotationElement;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventFactory;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.ValueDescriptor;
+
+/** JDK Flight Recorder events for Gitlet operations.
+ *
+ *  Each event type is a duration event in the "Gitlet" category, so a
+ *  recording shows command, object, checkout, merge-base, index-load and
+ *  lock-wait spans next to GC and file I/O.  A typical use is
+ *
+ *      Event event = events.begin(FlightEvents.OBJECT_READ);
+ *      ... read the object ...
+ *      events.commit(event, "commit", id, size);
+ *
+ *  where the values passed to commit fill the event's fields in the order
+ *  they are declared below.
+ *
+ *  The event classes are defined at run time through EventFactory rather
+ *  than as Event subclasses: JFR adds a mutable static handler field to
+ *  every compiled Event subclass, and Gitlet classes must not carry static
+ *  state.  Nothing is defined until Flight Recorder has been started, and
+ *  until then begin returns null and commit ignores it, so the cost with
+ *  recording off is one static flag read per event.
+ *
+ *  Every factory defines a new event type, even under a name already
+ *  defined, and a static holder would be static state, so the factories
+ *  are held by the instance: a process creates one FlightEvents and
+ *  shares it with every Repository it opens, which then define each
+ *  type once between them.
+ *
+ *  @author Zien Zeng
+ */
+class FlightEvents {
+
+    /** A whole command: command name. */
+    static final int COMMAND = 0;
+    /** An object read from the store: type, id, size. */
+    static final int OBJECT_READ = 1;
+    /** An object written to the store: type, id, size. */
+    static final int OBJECT_WRITE = 2;
+    /** A file checked out of the store: file name, blob id, size. */
+    static final int CHECKOUT = 3;
+    /** A merge-base computation: current head, given head, merge base. */
+    static final int MERGE_BASE = 4;
+    /** A staging-area load: files staged for addition, for removal. */
+    static final int INDEX_LOAD = 5;
+    /** A wait for the repository lock: lock file, attempts made. */
+    static final int LOCK_WAIT = 6;
+
+    /** Number of event types. */
+    private static final int TYPES = 7;
+
+    /** Returns a started event of type TYPE, or null if Flight Recorder
+     *  is not recording that type. */
+    Event begin(int type) {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        Event event = factory(type).newEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /** Ends EVENT, as returned by begin, and commits it with field values
+     *  VALUES if it passes the recording's thresholds.  Does nothing if
+     *  EVENT is null. */
+    void commit(Event event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            for (int i = 0; i < values.length; i += 1) {
+                event.set(i, values[i]);
+            }
+            event.commit();
+        }
+    }
+
+    /** Returns the factory for events of type TYPE, defining it on first
+     *  use. */
+    private synchronized EventFactory factory(int type) {
+        if (factories[type] == null) {
+            factories[type] = define(type);
+        }
+        return factories[type];
+    }
+
+    /** Defines the event type TYPE. */
+    private static EventFactory define(int type) {
+        List<ValueDescriptor> fields = new ArrayList<>();
+        switch (type) {
+            case COMMAND:
+                fields.add(field(String.class, "command", "Command", false));
+                return create("Command", "Gitlet Command", fields);
+            case OBJECT_READ:
+            case OBJECT_WRITE:
+                fields.add(field(String.class, "objectType", "Object Type", false));
+                fields.add(field(String.class, "id", "Object ID", false));
+                fields.add(field(long.class, "size", "Size", true));
+                return type == OBJECT_READ
+                        ? create("ObjectRead", "Gitlet Object Read", fields)
+                        : create("ObjectWrite", "Gitlet Object Write", fields);
+            case CHECKOUT:
+                fields.add(field(String.class, "fileName", "File Name", false));
+                fields.add(field(String.class, "blobId", "Blob ID", false));
+                fields.add(field(long.class, "size", "Size", true));
+                return create("Checkout", "Gitlet Checkout", fields);
+            case MERGE_BASE:
+                fields.add(field(String.class, "current", "Current Head", false));
+                fields.add(field(String.class, "given", "Given Head", false));
+                fields.add(field(String.class, "mergeBase", "Merge Base", false));
+                return create("MergeBase", "Gitlet Merge Base", fields);
+            case INDEX_LOAD:
+                fields.add(field(int.class, "added", "Staged For Addition", false));
+                fields.add(field(int.class, "removed", "Staged For Removal", false));
+                return create("IndexLoad", "Gitlet Index Load", fields);
+            case LOCK_WAIT:
+                fields.add(field(String.class, "lockFile", "Lock File", false));
+                fields.add(field(int.class, "attempts", "Attempts", false));
+                return create("LockWait", "Gitlet Lock Wait", fields);
+            default:
+                throw new IllegalArgumentException("unknown event type " + type);
+        }
+    }
+
+    /** Returns a field descriptor of class TYPE called NAME, labelled
+     *  LABEL, measured in bytes iff BYTES. */
+    private static ValueDescriptor field(Class<?> type, String name, String label,
+                                         boolean bytes) {
+        List<AnnotationElement> annotations = new ArrayList<>();
+        annotations.add(new AnnotationElement(Label.class, label));
+        if (bytes) {
+            annotations.add(new AnnotationElement(DataAmount.class, DataAmount.BYTES));
+        }
+        return new ValueDescriptor(type, name, annotations);
+    }
+
+    /** Returns a factory for the event gitlet.NAME labelled LABEL with
+     *  FIELDS. */
+    private static EventFactory create(String name, String label,
+                                       List<ValueDescriptor> fields) {
+        List<AnnotationElement> annotations = new ArrayList<>();
+        annotations.add(new AnnotationElement(Name.class, "gitlet." + name));
+        annotations.add(new AnnotationElement(Label.class, label));
+        annotations.add(new AnnotationElement(Category.class, new String[] {"Gitlet"}));
+        return EventFactory.create(annotations, fields);
+    }
+
+    /** Factories defined so far, indexed by event type. */
+    private final EventFactory[] factories = new EventFactory[TYPES];
+}
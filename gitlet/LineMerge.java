@@ -0,0 +1,135 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A diff3-style three-way merge of line lists. Changes each side made to
+ * the common ancestor are found with Diff; changes touching different
+ * parts of the ancestor are both applied, changes both sides made
+ * identically are applied once, and only the regions where the two sides
+ * changed the same or adjacent ancestor lines differently become conflicts,
+ * marked as
+ *
+ *     <<<<<<< HEAD
+ *     current lines
+ *     =======
+ *     given lines
+ *     >>>>>>>
+ *
+ * When the two sides disagree about the whole file this is the same output
+ * as a whole-file conflict.
+ *
+ * @author Zien Zeng
+ */
+class LineMerge {
+
+    /**
+     * Merges the changes from base to current and from base to given.
+     *
+     * @param base    The common ancestor's lines.
+     * @param current The current branch's lines.
+     * @param given   The given branch's lines.
+     */
+    LineMerge(List<String> base, List<String> current, List<String> given) {
+        List<Diff.Edit> ours = Diff.diff(base, current);
+        List<Diff.Edit> theirs = Diff.diff(base, given);
+        int i = 0;
+        int j = 0;
+        int basePos = 0;
+        // Net line-count change made by each side's edits merged so far
+        int oursShift = 0;
+        int theirsShift = 0;
+        while (i < ours.size() || j < theirs.size()) {
+            // Start a region at the earliest remaining edit and extend it
+            // while edits from either side overlap or touch it
+            int lo = j >= theirs.size()
+                    || (i < ours.size() && ours.get(i).aStart <= theirs.get(j).aStart)
+                    ? ours.get(i).aStart : theirs.get(j).aStart;
+            int hi = lo;
+            int oursFirst = i;
+            int theirsFirst = j;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                if (i < ours.size() && ours.get(i).aStart <= hi) {
+                    hi = Math.max(hi, ours.get(i).aEnd);
+                    i += 1;
+                    grew = true;
+                }
+                if (j < theirs.size() && theirs.get(j).aStart <= hi) {
+                    hi = Math.max(hi, theirs.get(j).aEnd);
+                    j += 1;
+                    grew = true;
+                }
+            }
+            for (; basePos < lo; basePos += 1) {
+                lines.add(base.get(basePos));
+            }
+            int oursChange = change(ours, oursFirst, i);
+            int theirsChange = change(theirs, theirsFirst, j);
+            List<String> oursLines = current.subList(lo + oursShift, hi + oursShift + oursChange);
+            List<String> theirsLines = given.subList(lo + theirsShift,
+                    hi + theirsShift + theirsChange);
+            if (theirsFirst == j) {
+                lines.addAll(oursLines);
+            } else if (oursFirst == i || oursLines.equals(theirsLines)) {
+                lines.addAll(theirsLines);
+            } else {
+                conflicts += 1;
+                lines.add("<<<<<<< HEAD\n");
+                lines.addAll(oursLines);
+                lines.add("=======\n");
+                lines.addAll(theirsLines);
+                lines.add(">>>>>>>\n");
+            }
+            oursShift += oursChange;
+            theirsShift += theirsChange;
+            basePos = hi;
+        }
+        for (; basePos < base.size(); basePos += 1) {
+            lines.add(base.get(basePos));
+        }
+    }
+
+    /**
+     * Returns the net number of lines added by edits[from, to).
+     */
+    private static int change(List<Diff.Edit> edits, int from, int to) {
+        int result = 0;
+        for (int k = from; k < to; k += 1) {
+            Diff.Edit edit = edits.get(k);
+            result += (edit.bEnd - edit.bStart) - (edit.aEnd - edit.aStart);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of conflict regions in the result.
+     *
+     * @return The number of conflicts.
+     */
+    int conflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Returns the merged file contents, conflict markers included.
+     *
+     * @return The merged bytes.
+     */
+    byte[] contents() {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (String line : lines) {
+            result.writeBytes(line.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return result.toByteArray();
+    }
+
+    /** The merged lines. */
+    private final List<String> lines = new ArrayList<>();
+    /** Number of conflict regions. */
+    private int conflicts;
+}
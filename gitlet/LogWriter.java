@@ -0,0 +1,90 @@
+package gitlet;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Renders commits as log, global-log and find print them. Output goes
+ * through one large buffer and is only pushed to the underlying stream
+ * when the buffer fills or flush is called, and dates are formatted with
+ * a single immutable formatter created with the writer, so the cost per
+ * commit is little more than the bytes written.
+ *
+ * @author Zien Zeng
+ */
+class LogWriter implements Flushable {
+
+    /** The date format used in log entries. */
+    static final String DATE_PATTERN = "EEE MMM d HH:mm:ss yyyy Z";
+
+    /** Size of the output buffer in chars. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Creates a writer rendering onto the given stream in the platform's
+     * default charset.
+     *
+     * @param out The stream to write to, usually System.out.
+     */
+    LogWriter(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+        this.dateFormat = DateTimeFormatter.ofPattern(DATE_PATTERN)
+                .withZone(ZoneId.systemDefault());
+    }
+
+    /**
+     * Writes one log entry for a commit.
+     *
+     * @param commit The commit to write.
+     */
+    void write(Commit commit) throws IOException {
+        out.write("===\n");
+        out.write("commit ");
+        out.write(commit.returnID());
+        out.write('\n');
+
+        if (commit.isMerge()) {
+            // 打印合并信息
+            out.write("Merge: ");
+            out.write(commit.getParentID(), 0, 7);
+            out.write(' ');
+            out.write(commit.getMergeParentID(), 0, 7);
+            out.write('\n');
+        }
+
+        out.write("Date: ");
+        dateFormat.formatTo(commit.getTimestamp().toInstant(), out);
+        out.write('\n');
+        out.write(commit.getMessage());
+        out.write("\n\n");
+    }
+
+    /**
+     * Writes a line of text.
+     *
+     * @param line The line, without its terminator.
+     */
+    void writeLine(String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    /**
+     * Pushes everything written so far to the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** The buffered output. */
+    private final Writer out;
+    /** Formatter for commit dates in the default time zone. */
+    private final DateTimeFormatter dateFormat;
+}
@@ -1,5 +1,14 @@
 package gitlet;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
+
+import jdk.jfr.Event;
+
 /**
  * Driver class for Gitlet, a subset of the Git version-control system.
  *
@@ -10,12 +19,71 @@ public class Main {
     /**
      * Usage: java gitlet.Main ARGS, where ARGS contains
      * <COMMAND> <OPERAND1> <OPERAND2> ...
+     * A leading --trace prints counters and timings for the command
+     * on stderr once it finishes.
      */
     public static void main(String[] args) {
+        boolean traceRequested = args.length > 0 && args[0].equals("--trace");
+        if (traceRequested) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         if (args.length == 0) {
             System.out.println("Please enter a command.");
             return;
         }
+        String firstArg = args[0];
+        Repository repository = new Repository(Trace.fromEnvironment(traceRequested));
+        Event command = repository.getEvents().begin(FlightEvents.COMMAND);
+        try {
+            if (isWriteCommand(firstArg) && Repository.GITLET_DIR.exists()) {
+                try (RepositoryLock lock = repository.lock()) {
+                    if (lock == null) {
+                        System.out.println(Repository.LOCKED_MESSAGE);
+                        return;
+                    }
+                    run(repository, args);
+                }
+            } else {
+                run(repository, args);
+            }
+        } finally {
+            repository.getEvents().commit(command, firstArg);
+            repository.getTrace().report(firstArg);
+        }
+    }
+
+    /**
+     * Returns whether COMMAND changes the staging area, HEAD, the
+     * working files or the remotes of the repository it runs in, and so
+     * must hold the repository lock. Commands that only move branches, such as fetch
+     * and push, rely on compare-and-swap branch updates instead, and
+     * commands that only read never wait for the lock.
+     */
+    private static boolean isWriteCommand(String command) {
+        switch (command) {
+            case "add":
+            case "commit":
+            case "restore":
+            case "rm":
+            case "rm-branch":
+            case "switch":
+            case "reset":
+            case "merge":
+            case "add-remote":
+            case "rm-remote":
+            case "pull":
+            case "gc":
+            case "stash":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Runs the command in ARGS on REPOSITORY.
+     */
+    private static void run(Repository repository, String[] args) {
         String firstArg = args[0];
         switch (firstArg) {
             case "":
@@ -23,65 +91,156 @@ public class Main {
                 return;
             case "init":
                 validTest(1, args.length);
-                Repository.init();
+                repository.init();
                 break;
             case "add":
                 validTest(2, args.length);
-                Repository.addFileToStaging(args[1]);
+                repository.addFileToStaging(args[1]);
                 break;
             case "commit":
                 validTest(2, args.length);
-                Repository.commit(args[1]);
+                repository.commit(args[1]);
                 break;
             case "restore":
                 if (args.length == 3 && args[1].equals("--")) {
-                    Repository.restore(args[2]);
+                    repository.restore(args[2]);
                 } else if (args.length == 4 && args[2].equals("--")) {
-                    Repository.restore(args[1], args[3]);
+                    repository.restore(args[1], args[3]);
                 } else {
                     System.out.println("Incorrect operands.");
                     return;
                 }
                 break;
             case "log":
-                validTest(1, args.length);
-                Repository.log();
+                runLog(repository, args);
                 break;
             case "global-log":
                 validTest(1, args.length);
-                Repository.globalLog();
+                repository.globalLog();
                 break;
             case "rm":
                 validTest(2, args.length);
-                Repository.rm(args[1]);
+                repository.rm(args[1]);
                 break;
             case "status":
                 validTest(1, args.length);
-                Repository.status();
+                repository.status();
                 break;
             case "find":
                 validTest(2, args.length);
-                Repository.find(args[1]);
+                repository.find(args[1]);
                 break;
             case "branch":
                 validTest(2, args.length);
-                Repository.createNewBranch(args[1]);
+                repository.createNewBranch(args[1]);
                 break;
             case "rm-branch":
                 validTest(2, args.length);
-                Repository.removeBranch(args[1]);
+                repository.removeBranch(args[1]);
                 break;
             case "switch":
                 validTest(2, args.length);
-                Repository.switchBranch(args[1]);
+                repository.switchBranch(args[1]);
                 break;
             case "reset":
                 validTest(2, args.length);
-                Repository.reset(args[1]);
+                repository.reset(args[1]);
+                break;
+            case "diff":
+                if (args.length == 1) {
+                    repository.diff();
+                } else if (args.length == 2
+                        && (args[1].equals("--staged") || args[1].equals("--cached"))) {
+                    repository.diffStaged();
+                } else if (args.length == 3) {
+                    repository.diff(args[1], args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                break;
+            case "blame":
+                validTest(2, args.length);
+                repository.blame(args[1]);
                 break;
             case "merge":
+                if (args.length == 2) {
+                    repository.merge(args[1]);
+                } else if (args.length == 3 && args[1].equals("--no-checkout")) {
+                    repository.merge(args[2], false);
+                } else {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                break;
+            case "add-remote":
+                validTest(3, args.length);
+                repository.addRemote(args[1], args[2]);
+                break;
+            case "rm-remote":
                 validTest(2, args.length);
-                Repository.merge(args[1]);
+                repository.removeRemote(args[1]);
+                break;
+            case "fetch":
+                validTest(3, args.length);
+                repository.fetch(args[1], args[2]);
+                break;
+            case "push":
+                validTest(3, args.length);
+                repository.push(args[1], args[2]);
+                break;
+            case "pull":
+                validTest(3, args.length);
+                repository.pull(args[1], args[2]);
+                break;
+            case "bundle":
+                if (args.length == 4 && args[1].equals("create")) {
+                    repository.createBundle(args[2], args[3], null);
+                } else if (args.length == 6 && args[1].equals("create")
+                        && args[4].equals("--since-commit")) {
+                    repository.createBundle(args[2], args[3], args[5]);
+                } else if (args.length == 3 && args[1].equals("unbundle")) {
+                    repository.unbundle(args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                break;
+            case "stash":
+                if (args.length == 2 && args[1].equals("push")) {
+                    repository.stashPush();
+                } else if (args.length == 2 && args[1].equals("pop")) {
+                    repository.stashPop();
+                } else if (args.length == 2 && args[1].equals("list")) {
+                    repository.stashList();
+                } else {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                break;
+            case "monitor":
+                validTest(1, args.length);
+                repository.monitor();
+                break;
+            case "gc":
+                if (args.length == 1) {
+                    repository.gc(false);
+                } else if (args.length == 2 && args[1].equals("--prune-now")) {
+                    repository.gc(true);
+                } else {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                break;
+            case "clone":
+                if (args.length == 3) {
+                    repository.cloneRepository(args[1], args[2], false);
+                } else if (args.length == 4 && args[1].equals("--shared")) {
+                    repository.cloneRepository(args[2], args[3], true);
+                } else {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
                 break;
             default:
                 System.out.println("No command with that name exists.");
@@ -89,6 +248,63 @@ public class Main {
         }
     }
 
+    /**
+     * Runs log with the options in ARGS: -n <count>, --since <date> and
+     * --until <date>, where a date is yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss in
+     * the local time zone, and -- <file> last to show only the commits
+     * that changed that file.
+     */
+    private static void runLog(Repository repository, String[] args) {
+        int limit = Integer.MAX_VALUE;
+        Date since = null;
+        Date until = null;
+        String fileName = null;
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    System.out.println("Incorrect operands.");
+                    return;
+                }
+                switch (args[i]) {
+                    case "--":
+                        if (i + 2 != args.length) {
+                            System.out.println("Incorrect operands.");
+                            return;
+                        }
+                        fileName = args[i + 1];
+                        break;
+                    case "-n":
+                        limit = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--since":
+                        since = parseDate(args[i + 1]);
+                        break;
+                    case "--until":
+                        until = parseDate(args[i + 1]);
+                        break;
+                    default:
+                        System.out.println("Incorrect operands.");
+                        return;
+                }
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        repository.log(limit, since, until, fileName);
+    }
+
+    /**
+     * Returns the local date or date-time S as a Date. A bare date means
+     * the start of that day.
+     */
+    private static Date parseDate(String s) {
+        LocalDateTime time = s.contains("T")
+                ? LocalDateTime.parse(s)
+                : LocalDate.parse(s).atStartOfDay();
+        return Date.from(time.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
     public static void validTest(int expected, int actual) {
         if (expected != actual) {
             System.out.println("Incorrect operands.");
@@ -0,0 +1,303 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the working directory and journals the names of the files
+ * that change, so that commands can learn which files may have changed
+ * since they last looked instead of examining every file.
+ *
+ * The monitor is a long-running process ("gitlet monitor") that holds
+ * an operating system lock on .gitlet/monitor.lock for as long as it
+ * runs, and appends one name per line, in one write per batch of events,
+ * to .gitlet/monitor-journal. The journal's first line names a session.
+ * A session starts when the monitor starts, when the watch service
+ * overflows and events may have been lost, and when the journal grows
+ * past MAX_JOURNAL_BYTES; the journal is then replaced, atomically, by
+ * one holding just the new session's name.
+ *
+ * A client remembers the session and the position in the journal up to
+ * which it has seen changes, and asks for the names journaled since. If
+ * the session is another one, anything may have changed and the client
+ * must look at every file; the same holds if no monitor runs. Events
+ * reach the journal a little after the changes that cause them, so
+ * before reading it a client creates a cookie file in the working
+ * directory and waits for its name to be journaled: changes made before
+ * the cookie are then journaled before it.
+ *
+ * @author Zien Zeng
+ */
+class Monitor {
+
+    /** Name of the journal in a .gitlet directory. */
+    static final String JOURNAL = "monitor-journal";
+    /** Name of the file locked by a running monitor. */
+    static final String LOCK = "monitor.lock";
+
+    /** Trace counter for changed names read from the journal. */
+    static final String CHANGES = "monitorChanges";
+    /** Trace counter for queries answered with "anything may have changed". */
+    static final String RESCANS = "monitorRescans";
+
+    /** Start of the names of cookie files. */
+    private static final String COOKIE_PREFIX = ".gitlet-cookie-";
+    /** Journal size past which the monitor starts a new session. */
+    private static final long MAX_JOURNAL_BYTES = 256 << 10;
+    /** How long a client waits for its cookie, in milliseconds. */
+    private static final long SYNC_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * What changed since a client's last query: the session and journal
+     * position to ask from next time, and the names journaled since the
+     * last query, or null if anything may have changed.
+     */
+    static class Changes {
+        final String session;
+        final long position;
+        final Set<String> names;
+
+        Changes(String session, long position, Set<String> names) {
+            this.session = session;
+            this.position = position;
+            this.names = names;
+        }
+    }
+
+    /**
+     * Creates a monitor, or a client of one, for a working directory.
+     *
+     * @param workDir   The working directory.
+     * @param gitletDir Its .gitlet directory.
+     * @param trace     Receives counters.
+     */
+    Monitor(File workDir, File gitletDir, Trace trace) {
+        this.workDir = workDir;
+        this.journal = Utils.join(gitletDir, JOURNAL);
+        this.lock = Utils.join(gitletDir, LOCK);
+        this.trace = trace;
+    }
+
+    /**
+     * Watches the working directory and journals its changes until the
+     * process is stopped or the directory goes away.
+     */
+    void run() {
+        try (FileChannel channel = FileChannel.open(lock.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock held = channel.tryLock();
+             WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            if (held == null) {
+                System.out.println("A monitor is already running.");
+                return;
+            }
+            workDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            startSession();
+            System.out.println("Monitoring " + workDir.getPath());
+            while (true) {
+                WatchKey key = watcher.take();
+                StringBuilder names = new StringBuilder();
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        overflow = true;
+                    } else {
+                        String name = event.context().toString();
+                        if (!name.equals(Repository.GITLET_DIR.getName())) {
+                            names.append(name).append('\n');
+                        }
+                    }
+                }
+                if (overflow || journal.length() > MAX_JOURNAL_BYTES) {
+                    startSession();
+                } else if (names.length() > 0) {
+                    Files.write(journal.toPath(), names.toString().getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Replaces the journal with one for a new session.
+     */
+    private void startSession() {
+        String session = Long.toHexString(ThreadLocalRandom.current().nextLong()) + "\n";
+        Refs.publish(journal, session.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns what changed in the working directory since a previous
+     * query.
+     *
+     * @param session  The session of the previous query, or null if there
+     *                 was none.
+     * @param position The journal position returned by the previous query.
+     * @return The changes, with null names if anything may have changed;
+     *         or null if no monitor is running or it did not answer in
+     *         time.
+     */
+    Changes changes(String session, long position) {
+        if (!isRunning()) {
+            return null;
+        }
+        Changes changes = read(session, position);
+        if (changes == null || changes.names == null) {
+            // Everything is looked at after this point anyway
+            trace.count(RESCANS, 1);
+            return changes;
+        }
+        String cookie = COOKIE_PREFIX + ProcessHandle.current().pid() + "-" + System.nanoTime();
+        File cookieFile = Utils.join(workDir, cookie);
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+        try {
+            cookieFile.createNewFile();
+            while (true) {
+                changes = read(session, position);
+                if (changes == null || changes.names == null) {
+                    trace.count(RESCANS, 1);
+                    return changes;
+                }
+                if (changes.names.remove(cookie)) {
+                    changes.names.removeIf(Monitor::isCookie);
+                    trace.count(CHANGES, changes.names.size());
+                    return changes;
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    return null;
+                }
+                Thread.sleep(1);
+            }
+        } catch (IOException excp) {
+            return null;
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            cookieFile.delete();
+        }
+    }
+
+    /**
+     * Returns whether a name is that of a client's cookie file, which is
+     * not a working file.
+     *
+     * @param fileName A name in the working directory.
+     * @return true for a cookie.
+     */
+    static boolean isCookie(String fileName) {
+        return fileName.startsWith(COOKIE_PREFIX);
+    }
+
+    /**
+     * Returns whether a monitor holds the lock. The file is locked shared,
+     * which fails while the monitor holds it exclusively.
+     */
+    private boolean isRunning() {
+        trace.count(Trace.FILES_STATTED, 1);
+        if (!lock.exists()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lock.toPath(), StandardOpenOption.READ)) {
+            FileLock shared = channel.tryLock(0, Long.MAX_VALUE, true);
+            if (shared == null) {
+                return true;
+            }
+            shared.release();
+            return false;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the journal's complete lines past a position.
+     *
+     * @param session  The session the position belongs to, or null.
+     * @param position The position.
+     * @return The names past the position, or null names if the journal
+     *         belongs to another session; null if there is no journal.
+     */
+    private Changes read(String session, long position) {
+        try {
+            byte[] contents = Files.readAllBytes(journal.toPath());
+            trace.count(Trace.BYTES_READ, contents.length);
+            int headerEnd = indexOf(contents, 0);
+            if (headerEnd < 0) {
+                return null;
+            }
+            String current = new String(contents, 0, headerEnd, StandardCharsets.US_ASCII);
+            int end = lastLineEnd(contents);
+            if (!current.equals(session) || position <= headerEnd || position > end) {
+                return new Changes(current, end, null);
+            }
+            Set<String> names = new HashSet<>();
+            int start = (int) position;
+            while (start < end) {
+                int lineEnd = indexOf(contents, start);
+                names.add(new String(contents, start, lineEnd - start, StandardCharsets.UTF_8));
+                start = lineEnd + 1;
+            }
+            return new Changes(current, end, names);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of the first newline at or after start, or -1.
+     */
+    private static int indexOf(byte[] contents, int start) {
+        for (int i = start; i < contents.length; i += 1) {
+            if (contents[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position just past the last newline, which ends the
+     * last complete line; a line being appended may still be partial.
+     */
+    private static int lastLineEnd(byte[] contents) {
+        int i = contents.length;
+        while (i > 0 && contents[i - 1] != '\n') {
+            i -= 1;
+        }
+        return i;
+    }
+
+    /** The watched directory. */
+    private final File workDir;
+    /** The journal file. */
+    private final File journal;
+    /** The file a running monitor locks. */
+    private final File lock;
+    /** Receives counters. */
+    private final Trace trace;
+}
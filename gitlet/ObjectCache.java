@@ -0,0 +1,101 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of decoded objects keyed by object ID, bounded by the
+ * approximate total size of the cached objects and evicting the least
+ * recently used entry first. Since objects are content-addressed and
+ * never change, a cached object never goes stale.
+ * Hits, misses and evictions are counted in the owner's trace.
+ *
+ * @param <V> The type of cached object.
+ * @author Zien Zeng
+ */
+class ObjectCache<V> {
+
+    /** Trace counter for lookups answered from the cache. */
+    static final String HITS = "cacheHits";
+    /** Trace counter for lookups that had to load the object. */
+    static final String MISSES = "cacheMisses";
+    /** Trace counter for entries dropped to stay within capacity. */
+    static final String EVICTIONS = "cacheEvictions";
+
+    /**
+     * A cached object with its approximate size.
+     */
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Creates a cache holding about capacity bytes of objects.
+     *
+     * @param capacity The total weight the cache may hold.
+     * @param trace    The trace receiving hit and miss counts.
+     */
+    ObjectCache(long capacity, Trace trace) {
+        this.capacity = capacity;
+        this.trace = trace;
+    }
+
+    /**
+     * Returns the object cached under id, or null if there is none.
+     * Counts the lookup as a hit or a miss.
+     *
+     * @param id The object ID.
+     * @return The cached object or null.
+     */
+    synchronized V get(String id) {
+        Entry<V> entry = entries.get(id);
+        if (entry == null) {
+            trace.count(MISSES, 1);
+            return null;
+        }
+        trace.count(HITS, 1);
+        return entry.value;
+    }
+
+    /**
+     * Caches value under id, evicting least recently used entries until the
+     * cache is back within capacity. Objects larger than the whole cache
+     * are not kept.
+     *
+     * @param id     The object ID.
+     * @param value  The decoded object.
+     * @param weight Its approximate size in bytes, e.g. its encoded size.
+     */
+    synchronized void put(String id, V value, long weight) {
+        if (weight > capacity) {
+            return;
+        }
+        Entry<V> old = entries.put(id, new Entry<>(value, weight));
+        if (old != null) {
+            size -= old.weight;
+        }
+        size += weight;
+        Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().weight;
+            eldest.remove();
+            trace.count(EVICTIONS, 1);
+        }
+    }
+
+    /** The most total weight kept. */
+    private final long capacity;
+    /** The trace receiving statistics. */
+    private final Trace trace;
+    /** Cached entries, least recently used first. */
+    private final Map<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** Total weight of the cached entries. */
+    private long size;
+}
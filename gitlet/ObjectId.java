@@ -0,0 +1,239 @@
+package gitlet;
+
+/**
+ * The SHA-1 ID of a commit, blob or chunk, held as its 20 bytes in two
+ * longs and an int rather than as 40 hexadecimal characters. An ID takes
+ * 32 bytes against about 80 for its hex string, compares in three steps,
+ * and hashes without being scanned, since its bytes are already uniformly
+ * distributed.
+ *
+ * Commits hold the blobs of their files as IDs, and the large history
+ * walks keep IDs in an ObjectIdSet. Elsewhere IDs travel through the
+ * repository as lower-case hex strings, which is also how they are
+ * written to disk, commits included; this class converts between the two
+ * forms, and its codec is the one all hashing in Gitlet formats digests
+ * with. The
+ * codec is table driven: each byte is written as two lookups in a
+ * sixteen-character table, and each digit read back with one lookup in
+ * a table of digit values, with no per-character formatting or parsing
+ * calls and no branching on which kind of digit it is.
+ *
+ * @author Zien Zeng
+ */
+final class ObjectId implements Comparable<ObjectId> {
+
+    /** Length of an ID in bytes. */
+    static final int LENGTH = 20;
+
+    /** The hex digits, indexed by their value. */
+    private static final String HEX_DIGITS = "0123456789abcdef";
+    /**
+     * The values of the characters from '0' to 'f' as hex digits, indexed
+     * by the character minus '0'; NOT_A_DIGIT for the characters between
+     * that are not digits.
+     */
+    private static final String DIGIT_VALUES = "\0\1\2\3\4\5\6\7\10\11"
+            + "\20\20\20\20\20\20\20"
+            + "\12\13\14\15\16\17"
+            + "\20\20\20\20\20\20\20\20\20\20\20\20\20"
+            + "\20\20\20\20\20\20\20\20\20\20\20\20\20"
+            + "\12\13\14\15\16\17";
+    /** The value digit gives characters that are not hex digits. */
+    private static final int NOT_A_DIGIT = 16;
+
+    /**
+     * Creates an ID from its bytes, as words in big-endian order.
+     */
+    ObjectId(long w0, long w1, int w2) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+    }
+
+    /**
+     * Returns the ID written in hex.
+     *
+     * @param hex Forty hex digits, in either case.
+     * @return The ID.
+     * @throws IllegalArgumentException if hex is not an ID.
+     */
+    static ObjectId fromHex(String hex) {
+        long[] words = new long[3];
+        if (!parse(hex, words)) {
+            throw notAnId(hex);
+        }
+        return new ObjectId(words[0], words[1], (int) words[2]);
+    }
+
+    /**
+     * Reads an ID written in hex into the words the constructor takes,
+     * so that callers such as ObjectIdSet can look an ID up without
+     * creating it.
+     *
+     * @param hex   Forty hex digits, in either case.
+     * @param words Receives the three words, big-endian; left in an
+     *              unspecified state if hex is not an ID.
+     * @return false if hex is not an ID.
+     */
+    static boolean parse(String hex, long[] words) {
+        if (hex.length() != 2 * LENGTH) {
+            return false;
+        }
+        long a = parseGroup(hex, 0);
+        long b = parseGroup(hex, 8);
+        long c = parseGroup(hex, 16);
+        long d = parseGroup(hex, 24);
+        long e = parseGroup(hex, 32);
+        if (((a | b | c | d | e) >>> 32) != 0) {
+            return false;
+        }
+        words[0] = a << 32 | b;
+        words[1] = c << 32 | d;
+        words[2] = e;
+        return true;
+    }
+
+    /**
+     * Returns whether a string is an ID as Gitlet writes them: forty
+     * lower-case hex digits. Strings read from outside the repository
+     * must pass this before they are used to name object files.
+     *
+     * @param hex The string.
+     * @return true if it is an ID.
+     */
+    static boolean isId(String hex) {
+        if (hex.length() != 2 * LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i += 1) {
+            if (HEX_DIGITS.indexOf(hex.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns bytes as lower-case hex, two digits per byte.
+     *
+     * @param bytes The bytes, of any length.
+     * @return The hex string.
+     */
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i += 1) {
+            hex[2 * i] = HEX_DIGITS.charAt((bytes[i] >> 4) & 0xf);
+            hex[2 * i + 1] = HEX_DIGITS.charAt(bytes[i] & 0xf);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns eight hex digits of a string, starting at an index, in the
+     * low 32 bits of a long. Higher bits are set if any of the characters
+     * is not a hex digit, which callers check once for all of an ID's
+     * groups.
+     *
+     * @param hex   The string, with at least eight characters from start.
+     * @param start The index of the first digit.
+     * @return The digits' value, with higher bits set if they are not all
+     *         digits.
+     */
+    private static long parseGroup(String hex, int start) {
+        long value = 0;
+        int digits = 0;
+        for (int i = start; i < start + 8; i += 1) {
+            int digit = digit(hex.charAt(i));
+            digits |= digit;
+            value = value << 4 | (digit & 0xf);
+        }
+        return value | (long) (digits & NOT_A_DIGIT) << 32;
+    }
+
+    /**
+     * Returns the exception for a string that is not an ID.
+     */
+    static IllegalArgumentException notAnId(String hex) {
+        return new IllegalArgumentException("not an object ID: " + hex);
+    }
+
+    /** First eight bytes, big-endian. */
+    long word0() {
+        return w0;
+    }
+
+    /** Next eight bytes, big-endian. */
+    long word1() {
+        return w1;
+    }
+
+    /** Last four bytes, big-endian. */
+    int word2() {
+        return w2;
+    }
+
+    /**
+     * Returns the ID in lower-case hex, as stored.
+     */
+    @Override
+    public String toString() {
+        char[] hex = new char[2 * LENGTH];
+        format(w0, hex, 0, 16);
+        format(w1, hex, 16, 16);
+        format(w2, hex, 32, 8);
+        return new String(hex);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId id = (ObjectId) other;
+        return w0 == id.w0 && w1 == id.w1 && w2 == id.w2;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (w0 >>> 32);
+    }
+
+    /**
+     * Orders IDs as their hex strings are ordered.
+     */
+    @Override
+    public int compareTo(ObjectId other) {
+        if (w0 != other.w0) {
+            return Long.compareUnsigned(w0, other.w0);
+        }
+        if (w1 != other.w1) {
+            return Long.compareUnsigned(w1, other.w1);
+        }
+        return Integer.compareUnsigned(w2, other.w2);
+    }
+
+    /**
+     * Returns the value of a hex digit, or NOT_A_DIGIT if c is not one.
+     */
+    private static int digit(char c) {
+        int i = c - '0';
+        return i >= 0 && i < DIGIT_VALUES.length() ? DIGIT_VALUES.charAt(i) : NOT_A_DIGIT;
+    }
+
+    /**
+     * Writes the low count hex digits of value into hex at start.
+     */
+    private static void format(long value, char[] hex, int start, int count) {
+        for (int i = count - 1; i >= 0; i -= 1) {
+            hex[start + i] = HEX_DIGITS.charAt((int) value & 0xf);
+            value >>>= 4;
+        }
+    }
+
+    /** First eight bytes. */
+    private final long w0;
+    /** Next eight bytes. */
+    private final long w1;
+    /** Last four bytes. */
+    private final int w2;
+}
@@ -0,0 +1,232 @@
+package gitlet;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of object IDs for the large ID sets of history walks, such as
+ * the ancestors of a commit or the blobs of a history. IDs are kept as
+ * their 20 bytes in three parallel primitive arrays, open addressed with
+ * linear probing, instead of as hex strings in hash map entries: an ID
+ * costs 20 bytes and a flag at most twice over, against well over a
+ * hundred bytes in a HashSet of strings, and a lookup compares three
+ * words without hashing a string.
+ *
+ * IDs may be given in hex, and are then parsed into a scratch array
+ * without being allocated. The set only grows; IDs cannot be removed,
+ * and, like HashSet, it is not safe for concurrent use.
+ *
+ * @author Zien Zeng
+ */
+class ObjectIdSet implements Iterable<ObjectId> {
+
+    /** Smallest table size. */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Creates an empty set.
+     */
+    ObjectIdSet() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * Creates an empty set sized for a number of IDs.
+     *
+     * @param expected The number of IDs expected.
+     */
+    ObjectIdSet(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expected) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Adds an ID.
+     *
+     * @param id The ID.
+     * @return true if the set did not already hold it.
+     */
+    boolean add(ObjectId id) {
+        return add(id.word0(), id.word1(), id.word2());
+    }
+
+    /**
+     * Adds an ID given in hex.
+     *
+     * @param hex The ID as forty hex digits.
+     * @return true if the set did not already hold it.
+     * @throws IllegalArgumentException if hex is not an ID.
+     */
+    boolean add(String hex) {
+        if (!ObjectId.parse(hex, parsed)) {
+            throw ObjectId.notAnId(hex);
+        }
+        return add(parsed[0], parsed[1], (int) parsed[2]);
+    }
+
+    /**
+     * Adds IDs.
+     *
+     * @param ids The IDs.
+     */
+    void addAll(Collection<ObjectId> ids) {
+        for (ObjectId id : ids) {
+            add(id);
+        }
+    }
+
+    /**
+     * Adds IDs given in hex.
+     *
+     * @param hexes The IDs as forty hex digits each.
+     */
+    void addAllHex(Collection<String> hexes) {
+        for (String hex : hexes) {
+            add(hex);
+        }
+    }
+
+    /**
+     * Returns whether the set holds an ID.
+     *
+     * @param id The ID.
+     * @return true if it does.
+     */
+    boolean contains(ObjectId id) {
+        return slot(id.word0(), id.word1(), id.word2()) >= 0;
+    }
+
+    /**
+     * Returns whether the set holds an ID given in hex.
+     *
+     * @param hex The ID as hex; a string that is not an ID is never held.
+     * @return true if it does.
+     */
+    boolean contains(String hex) {
+        return ObjectId.parse(hex, parsed)
+                && slot(parsed[0], parsed[1], (int) parsed[2]) >= 0;
+    }
+
+    /**
+     * Returns the number of IDs held.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the IDs held, in no particular order.
+     */
+    @Override
+    public Iterator<ObjectId> iterator() {
+        return new Iterator<>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                int i = from;
+                while (i < used.length && !used[i]) {
+                    i += 1;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < used.length;
+            }
+
+            @Override
+            public ObjectId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ObjectId id = new ObjectId(words0[next], words1[next], words2[next]);
+                next = advance(next + 1);
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Adds an ID given as words, growing the table past half full.
+     */
+    private boolean add(long w0, long w1, int w2) {
+        int i = (int) w0 & mask;
+        while (used[i]) {
+            if (words0[i] == w0 && words1[i] == w1 && words2[i] == w2) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        words0[i] = w0;
+        words1[i] = w1;
+        words2[i] = w2;
+        size += 1;
+        if (2 * size > used.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the slot holding an ID given as words, or -1.
+     */
+    private int slot(long w0, long w1, int w2) {
+        int i = (int) w0 & mask;
+        while (used[i]) {
+            if (words0[i] == w0 && words1[i] == w1 && words2[i] == w2) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Doubles the table, adding every ID to the new one.
+     */
+    private void grow() {
+        long[] oldWords0 = words0;
+        long[] oldWords1 = words1;
+        int[] oldWords2 = words2;
+        boolean[] oldUsed = used;
+        allocate(2 * oldUsed.length);
+        size = 0;
+        for (int i = 0; i < oldUsed.length; i += 1) {
+            if (oldUsed[i]) {
+                add(oldWords0[i], oldWords1[i], oldWords2[i]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the table with an empty one of a power-of-two size.
+     */
+    private void allocate(int capacity) {
+        words0 = new long[capacity];
+        words1 = new long[capacity];
+        words2 = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /** First eight bytes of the ID in each slot. */
+    private long[] words0;
+    /** Next eight bytes of the ID in each slot. */
+    private long[] words1;
+    /** Last four bytes of the ID in each slot. */
+    private int[] words2;
+    /** Whether each slot holds an ID. */
+    private boolean[] used;
+    /** Table size minus one. */
+    private int mask;
+    /** Number of IDs held. */
+    private int size;
+    /** Words of the last ID given in hex. */
+    private final long[] parsed = new long[3];
+}
@@ -0,0 +1,426 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A stream of commits and blobs in one sequential file format, used to
+ * move objects between object stores. A pack is
+ *
+ *     "GLPK", version (int), object count (int),
+ *     per object: type (byte), ID (40 ASCII bytes), length (long), contents,
+ *     SHA-1 of everything before it (20 bytes).
+ *
+ * A blob stored in chunks travels as its manifest, under the blob's ID,
+ * and whichever of its chunks the receiver lacks. Chunks are written
+ * first, then blobs and manifests, then commits. Reading a pack stages
+ * every object in a temporary file inside the receiving store, checks
+ * that every ID is one, each blob and chunk against its ID, each commit
+ * against the ID it was written with, each manifest against its blob's
+ * ID by hashing the chunks it lists, and the whole stream against the
+ * trailing checksum, and only then moves the objects into place in pack
+ * order, so a damaged, truncated or forged pack adds nothing, and a
+ * store never holds a commit whose blobs are missing.
+ *
+ * @author Zien Zeng
+ */
+class Pack {
+
+    /** Object type of a serialized commit. */
+    static final int COMMIT = 1;
+    /** Object type of a blob. */
+    static final int BLOB = 2;
+    /** Object type of a chunk of a large blob. */
+    static final int CHUNK = 3;
+    /** Object type of the chunk list of a large blob. */
+    static final int MANIFEST = 4;
+
+    /** Trace counter for objects moved in packs. */
+    static final String OBJECTS = "packObjects";
+    /** Trace counter for object bytes moved in packs. */
+    static final String BYTES = "packBytes";
+
+    /** Leading bytes of every pack. */
+    private static final String MAGIC = "GLPK";
+    /** Format version written and accepted. */
+    private static final int VERSION = 1;
+    /** Size of the stream buffers. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The classes a serialized commit may hold; commits written before
+     * parents were stored by ID also hold their parents.
+     */
+    private static final String COMMIT_CLASSES =
+            "gitlet.Commit;java.util.HashMap;java.util.Map$Entry;java.util.Date;!*";
+
+    /**
+     * Statistics of a pack read or written.
+     */
+    static class Stats {
+        final int objects;
+        final long bytes;
+
+        Stats(int objects, long bytes) {
+            this.objects = objects;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Name of the file in a .gitlet directory listing alternate stores. */
+    static final String ALTERNATES = "alternates";
+
+    /**
+     * Returns the file holding an object in an object store, looking in
+     * the store's alternates if the store itself lacks it.
+     *
+     * @param store The store's .gitlet directory.
+     * @param type  COMMIT or BLOB.
+     * @param id    The object's ID.
+     * @return The object's file, which does not exist if no store has it.
+     */
+    static File objectFile(File store, int type, String id) {
+        String dirName = dirName(type);
+        File file = Utils.join(store, dirName, id);
+        if (!file.exists()) {
+            for (File alternate : readAlternates(store)) {
+                File alternateFile = Utils.join(alternate, dirName, id);
+                if (alternateFile.exists()) {
+                    return alternateFile;
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Returns the name of the directory in a store holding objects of a
+     * type.
+     *
+     * @param type COMMIT, BLOB, CHUNK or MANIFEST.
+     * @return The directory name.
+     */
+    static String dirName(int type) {
+        switch (type) {
+            case COMMIT:
+                return "commits";
+            case BLOB:
+                return "blobs";
+            case CHUNK:
+                return "chunks";
+            default:
+                return "manifests";
+        }
+    }
+
+    /**
+     * Returns the object stores listed, one path per line, in a store's
+     * alternates file.
+     *
+     * @param store The store's .gitlet directory.
+     * @return The alternate .gitlet directories, possibly none.
+     */
+    static List<File> readAlternates(File store) {
+        List<File> alternates = new ArrayList<>();
+        File file = Utils.join(store, ALTERNATES);
+        if (file.exists()) {
+            for (String line : Utils.readContentsAsString(file).split("\n")) {
+                if (!line.isBlank()) {
+                    alternates.add(new File(line.trim()));
+                }
+            }
+        }
+        return alternates;
+    }
+
+    /**
+     * Writes a pack of objects from a store.
+     *
+     * @param out       Where to write; not closed.
+     * @param store     The .gitlet directory holding the objects.
+     * @param commitIDs The commits to include.
+     * @param blobIDs   The blobs to include, whole or as manifests.
+     * @param chunkIDs  The chunks to include.
+     * @return The number of objects and content bytes written.
+     */
+    static Stats write(OutputStream out, File store, Collection<String> commitIDs,
+                       Collection<String> blobIDs, Collection<String> chunkIDs)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        DataOutputStream data = new DataOutputStream(new DigestOutputStream(
+                new BufferedOutputStream(out, BUFFER_SIZE), digest));
+        data.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        data.writeInt(VERSION);
+        int count = commitIDs.size() + blobIDs.size() + chunkIDs.size();
+        data.writeInt(count);
+        long bytes = 0;
+        for (String id : chunkIDs) {
+            bytes += writeObject(data, store, CHUNK, id);
+        }
+        for (String id : blobIDs) {
+            boolean whole = objectFile(store, BLOB, id).exists();
+            bytes += writeObject(data, store, whole ? BLOB : MANIFEST, id);
+        }
+        for (String id : commitIDs) {
+            bytes += writeObject(data, store, COMMIT, id);
+        }
+        data.flush();
+        out.write(digest.digest());
+        out.flush();
+        return new Stats(count, bytes);
+    }
+
+    /**
+     * Writes one object's entry.
+     */
+    private static long writeObject(DataOutputStream data, File store, int type, String id)
+            throws IOException {
+        File file = objectFile(store, type, id);
+        long length = file.length();
+        data.writeByte(type);
+        data.write(id.getBytes(StandardCharsets.US_ASCII));
+        data.writeLong(length);
+        long copied = Files.copy(file.toPath(), data);
+        if (copied != length) {
+            throw new IOException("object " + id + " changed while being packed");
+        }
+        return length;
+    }
+
+    /**
+     * Reads a pack and adds its objects to a store. Objects the store
+     * already has are left as they are.
+     *
+     * @param in    The pack, which must run to the end of the stream;
+     *              not closed.
+     * @param store The receiving .gitlet directory.
+     * @return The number of objects and content bytes read.
+     */
+    static Stats read(InputStream in, File store) {
+        List<File> temps = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+        Map<String, File> chunks = new HashMap<>();
+        Map<String, File> manifests = new HashMap<>();
+        try {
+            MessageDigest digest = newDigest();
+            DigestInputStream digested = new DigestInputStream(
+                    new BufferedInputStream(in, BUFFER_SIZE), digest);
+            DataInputStream data = new DataInputStream(digested);
+            byte[] magic = new byte[MAGIC.length()];
+            data.readFully(magic);
+            if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))
+                    || data.readInt() != VERSION) {
+                throw Utils.error("Not a Gitlet pack.");
+            }
+            int count = data.readInt();
+            long bytes = 0;
+            byte[] idBytes = new byte[Utils.UID_LENGTH];
+            for (int i = 0; i < count; i += 1) {
+                int type = data.readByte();
+                data.readFully(idBytes);
+                String id = new String(idBytes, StandardCharsets.US_ASCII);
+                long length = data.readLong();
+                // The ID names the object's file, so it must be nothing else
+                if (type < COMMIT || type > MANIFEST || length < 0 || !ObjectId.isId(id)) {
+                    throw Utils.error("Pack is corrupt.");
+                }
+                File temp = File.createTempFile("pack", ".tmp", store);
+                temps.add(temp);
+                targets.add(Utils.join(store, dirName(type), id));
+                String hash = readObject(data, temp, length);
+                if ((type == BLOB || type == CHUNK) && !hash.equals(id)
+                        || type == COMMIT && !id.equals(commitID(temp))) {
+                    throw Utils.error("Pack is corrupt.");
+                }
+                if (type == CHUNK) {
+                    chunks.put(id, temp);
+                } else if (type == MANIFEST) {
+                    manifests.put(id, temp);
+                }
+                bytes += length;
+            }
+            for (Map.Entry<String, File> manifest : manifests.entrySet()) {
+                if (!manifest.getKey().equals(assembledID(manifest.getValue(), chunks, store))) {
+                    throw Utils.error("Pack is corrupt.");
+                }
+            }
+            digested.on(false);
+            byte[] checksum = new byte[digest.getDigestLength()];
+            data.readFully(checksum);
+            if (!Arrays.equals(checksum, digest.digest())) {
+                throw Utils.error("Pack is corrupt.");
+            }
+            for (int i = 0; i < temps.size(); i += 1) {
+                File target = targets.get(i);
+                if (target.exists()) {
+                    temps.get(i).delete();
+                } else {
+                    Files.move(temps.get(i).toPath(), target.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            temps.clear();
+            return new Stats(count, bytes);
+        } catch (EOFException excp) {
+            throw Utils.error("Pack is truncated.");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        } finally {
+            for (File temp : temps) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the ID a serialized commit was written with, or null if the
+     * file does not hold a commit. Only the classes a commit is made of
+     * are deserialized.
+     */
+    private static String commitID(File file) {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            in.setObjectInputFilter(ObjectInputFilter.Config.createFilter(COMMIT_CLASSES));
+            Object commit = in.readObject();
+            return commit instanceof Commit ? ((Commit) commit).returnID() : null;
+        } catch (IOException | ClassNotFoundException | RuntimeException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the SHA-1, in hex, of the chunks a manifest lists, read from
+     * this pack or the receiving store, or null if the manifest is not
+     * one or lists a chunk that is in neither or is not of the length
+     * listed.
+     *
+     * @param manifest The manifest, one "ID length" line per chunk.
+     * @param chunks   The chunks in this pack, by ID.
+     * @param store    The receiving .gitlet directory.
+     */
+    private static String assembledID(File manifest, Map<String, File> chunks, File store)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (String line : Utils.readContentsAsString(manifest).split("\n")) {
+            int space = line.indexOf(' ');
+            if (space != Utils.UID_LENGTH || !ObjectId.isId(line.substring(0, space))) {
+                return null;
+            }
+            String chunkID = line.substring(0, space);
+            long length;
+            try {
+                length = Long.parseLong(line.substring(space + 1));
+            } catch (NumberFormatException excp) {
+                return null;
+            }
+            File chunk = chunks.get(chunkID);
+            if (chunk == null) {
+                chunk = objectFile(store, CHUNK, chunkID);
+            }
+            if (!chunk.exists() || chunk.length() != length) {
+                return null;
+            }
+            try (InputStream in = new FileInputStream(chunk)) {
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+        return ObjectId.toHex(digest.digest());
+    }
+
+    /**
+     * Copies length bytes of in to file and returns their SHA-1 in hex.
+     */
+    private static String readObject(InputStream in, File file, long length)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (OutputStream out = new FileOutputStream(file)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        return ObjectId.toHex(digest.digest());
+    }
+
+    /**
+     * Streams objects from one store to another as a pack, without
+     * writing the pack anywhere: one thread writes it into a pipe while
+     * the calling thread reads it into the receiving store.
+     *
+     * @param from      The sending .gitlet directory.
+     * @param commitIDs The commits to send.
+     * @param blobIDs   The blobs to send.
+     * @param chunkIDs  The chunks to send.
+     * @param to        The receiving .gitlet directory.
+     * @return The number of objects and content bytes moved.
+     */
+    static Stats transfer(File from, Collection<String> commitIDs,
+                          Collection<String> blobIDs, Collection<String> chunkIDs, File to) {
+        try (PipedInputStream in = new PipedInputStream(BUFFER_SIZE)) {
+            PipedOutputStream out = new PipedOutputStream(in);
+            CompletableFuture<Stats> sending = CompletableFuture.supplyAsync(() -> {
+                try (out) {
+                    return write(out, from, commitIDs, blobIDs, chunkIDs);
+                } catch (IOException excp) {
+                    throw new UncheckedIOException(excp);
+                }
+            });
+            Stats received = read(in, to);
+            sending.join();
+            return received;
+        } catch (CompletionException excp) {
+            throw new IllegalArgumentException(excp.getCause());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Returns a new SHA-1 digest.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+}
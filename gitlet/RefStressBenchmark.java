@@ -0,0 +1,136 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A stress benchmark of concurrent commits to the branches of one
+ *  repository.  Its main program may be invoked as follows:
+ *      java gitlet.RefStressBenchmark [OPTION VALUE]...
+ *  from inside an empty directory, which becomes the repository.  The
+ *  recognized options are
+ *
+ *      --threads N    committing threads (default 8)
+ *      --branches N   branches in the last round (default 8)
+ *      --commits N    commits made by each thread per round (default 200)
+ *
+ *  The benchmark runs one round for each power of two up to the branch
+ *  count.  A round with B branches creates B new branches, and thread i
+ *  then commits a small file to branch i mod B as fast as it can, through
+ *  Repository.commitFiles, which moves branches by compare-and-swap.
+ *  Threads sharing a branch race for it and rebuild their commit when
+ *  they lose; threads on different branches never wait for each other.
+ *  Each round prints its throughput and how often commits were rebuilt,
+ *  so throughput should grow with the number of branches until every
+ *  thread has a branch to itself.
+ *
+ *  A trace summary of the whole run, including branch lock contention
+ *  and failed compare-and-swaps, is printed to standard error at the end.
+ *
+ *  @author Zien Zeng
+ */
+public class RefStressBenchmark {
+
+    /** Runs the benchmark with the options in ARGS. */
+    public static void main(String... args) throws Exception {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("A Gitlet version-control system already exists in the current directory.");
+            return;
+        }
+        if (args.length % 2 != 0) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        RefStressBenchmark benchmark = new RefStressBenchmark();
+        for (int i = 0; i < args.length; i += 2) {
+            benchmark.setOption(args[i], args[i + 1]);
+        }
+        benchmark.run();
+        benchmark.trace.report("ref-stress");
+    }
+
+    /** Sets the option named NAME to VALUE. */
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "--threads":
+                threads = Integer.parseInt(value);
+                break;
+            case "--branches":
+                branches = Integer.parseInt(value);
+                break;
+            case "--commits":
+                commits = Integer.parseInt(value);
+                break;
+            default:
+                throw Utils.error("Unknown option %s", name);
+        }
+    }
+
+    /** Initializes the repository and runs every round. */
+    private void run() throws Exception {
+        Repository repository = new Repository(trace);
+        repository.init();
+        System.out.printf("%8s %8s %10s %12s %10s%n",
+                "threads", "branches", "commits", "commits/s", "retries");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 1; round <= branches; round *= 2) {
+                runRound(repository, pool, round);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Runs one round with BRANCHCOUNT branches on POOL. */
+    private void runRound(Repository repository, ExecutorService pool, int branchCount)
+            throws Exception {
+        List<String> branchNames = new ArrayList<>();
+        for (int b = 0; b < branchCount; b += 1) {
+            String name = "stress-" + branchCount + "-" + b;
+            repository.createNewBranch(name);
+            branchNames.add(name);
+        }
+
+        long retriesBefore = trace.counter(Repository.REF_UPDATE_RETRIES);
+        AtomicInteger failed = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t += 1) {
+            String branch = branchNames.get(t % branchCount);
+            String fileName = "thread" + t + ".txt";
+            workers.add(pool.submit(() -> {
+                // Repositories keep per-instance caches, so each thread has its own
+                Repository worker = new Repository(trace, repository.getEvents());
+                for (int i = 0; i < commits; i += 1) {
+                    byte[] contents = (fileName + " " + i + "\n").getBytes(StandardCharsets.UTF_8);
+                    String message = fileName + " commit " + i;
+                    if (worker.commitFiles(branch, Map.of(fileName, contents), message) == null) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int committed = threads * commits - failed.get();
+        System.out.printf("%8d %8d %10d %12.0f %10d%n", threads, branchCount, committed,
+                committed / seconds, trace.counter(Repository.REF_UPDATE_RETRIES) - retriesBefore);
+    }
+
+    /** Number of committing threads. */
+    private int threads = 8;
+    /** Number of branches in the last round. */
+    private int branches = 8;
+    /** Commits made by each thread per round. */
+    private int commits = 200;
+    /** Counters shared by every thread. */
+    private final Trace trace = new Trace(true, null);
+}
@@ -0,0 +1,238 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads and moves branch tips so that readers never need a lock. Each
+ * branch directory holds a file named "tip" containing the ID of the
+ * branch's latest commit. A tip is never edited in place: the new ID is
+ * written to a temporary file in the same directory, which is then
+ * renamed over the old tip in one atomic step, so a reader always sees
+ * either the old or the new ID, never a missing or partly written one.
+ *
+ * Writers that move a branch from a commit they have read to a new one
+ * use compareAndSet, which locks only that branch, through a "tip.lock"
+ * file beside the tip, for as long as it takes to check the tip and
+ * rename the new one into place. Writers on different branches never
+ * wait for each other, and a writer whose branch was moved since it read
+ * it learns so instead of overwriting the other writer's commit.
+ *
+ * Branches written before tips existed hold instead a single file named
+ * by the commit ID; they are still read, and are converted when the
+ * branch next moves.
+ *
+ * @author Zien Zeng
+ */
+class Refs {
+
+    /** Name of the file holding a branch's latest commit ID. */
+    static final String TIP = "tip";
+
+    /** Name of the file locked while a branch's tip is compared and set. */
+    static final String LOCK = "tip.lock";
+
+    /** Trace counter for compare-and-set calls that found the tip moved. */
+    static final String CAS_FAILURES = "refCasFailures";
+
+    /** Trace counter for attempts to lock a branch that found it locked. */
+    static final String LOCK_CONTENDED = "refLockContended";
+
+    /**
+     * Creates a reader and writer of branch tips.
+     *
+     * @param trace         The trace receiving counters.
+     * @param timeoutMillis How long to wait for a branch's lock.
+     */
+    Refs(Trace trace, long timeoutMillis) {
+        this.trace = trace;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the ID of a branch's latest commit.
+     *
+     * @param branchDir The branch's directory.
+     * @return The commit ID, or null if the branch does not exist or has
+     *         no commits.
+     */
+    String read(File branchDir) {
+        trace.count(Trace.FILES_STATTED, 1);
+        try {
+            byte[] contents = Files.readAllBytes(Utils.join(branchDir, TIP).toPath());
+            trace.count(Trace.BYTES_READ, contents.length);
+            return new String(contents, StandardCharsets.US_ASCII).trim();
+        } catch (NoSuchFileException excp) {
+            return readLegacy(branchDir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Returns the commit ID of a branch in the old layout, which is the
+     * name of its only commit file.
+     */
+    private String readLegacy(File branchDir) {
+        trace.count(Trace.DIRECTORY_LISTINGS, 1);
+        String[] names = branchDir.list();
+        if (names == null) {
+            return null;
+        }
+        for (String name : names) {
+            if (name.length() == Utils.UID_LENGTH && name.indexOf('.') < 0) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Points a branch at a commit, creating the branch if needed.
+     *
+     * @param branchDir The branch's directory.
+     * @param commitID  The full ID of the commit.
+     */
+    void write(File branchDir, String commitID) {
+        branchDir.mkdirs();
+        publish(Utils.join(branchDir, TIP), commitID.getBytes(StandardCharsets.US_ASCII));
+        trace.count(Trace.BYTES_WRITTEN, commitID.length());
+        String[] names = branchDir.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.length() == Utils.UID_LENGTH && name.indexOf('.') < 0) {
+                Utils.join(branchDir, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Points a branch at a new commit if it still points at the expected
+     * one. The check and the update happen under the branch's lock, so no
+     * other compareAndSet on the branch can come between them.
+     *
+     * @param branchDir  The branch's directory.
+     * @param expectedID The commit ID the branch must point at, or null if
+     *                   the branch must not exist yet.
+     * @param commitID   The full ID of the new commit.
+     * @return true if the branch was moved; false if it points elsewhere,
+     *         or its lock could not be taken in time.
+     */
+    boolean compareAndSet(File branchDir, String expectedID, String commitID) {
+        // The lock file lives in the branch directory, so it is created
+        // only for a branch that exists or is about to
+        if (expectedID != null && !branchDir.isDirectory()) {
+            trace.count(CAS_FAILURES, 1);
+            return false;
+        }
+        branchDir.mkdirs();
+        try (FileChannel channel = FileChannel.open(Utils.join(branchDir, LOCK).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lock(channel);
+            if (lock == null) {
+                trace.count(CAS_FAILURES, 1);
+                return false;
+            }
+            try {
+                if (!Objects.equals(read(branchDir), expectedID)) {
+                    trace.count(CAS_FAILURES, 1);
+                    return false;
+                }
+                write(branchDir, commitID);
+                return true;
+            } finally {
+                lock.release();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Locks a branch's lock file, spinning briefly and then backing off
+     * while another process, or another thread of this one, holds it.
+     * Branch locks are held only for a read and a rename, so waits are
+     * short.
+     *
+     * @return The lock, or null if it could not be taken in time.
+     */
+    private FileLock lock(FileChannel channel) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        for (int attempt = 0; ; attempt += 1) {
+            try {
+                FileLock lock = channel.tryLock();
+                if (lock != null) {
+                    return lock;
+                }
+            } catch (OverlappingFileLockException excp) {
+                // Held by another thread of this process
+            }
+            trace.count(LOCK_CONTENDED, 1);
+            if (System.nanoTime() >= deadline) {
+                return null;
+            }
+            if (attempt < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                long micros = 1L << Math.min(attempt - SPINS, 10);
+                LockSupport.parkNanos(Math.min(micros, MAX_PARK_MICROS) * 1000);
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of a small file atomically, through a
+     * temporary file in the same directory.
+     *
+     * @param file     The file to replace.
+     * @param contents Its new contents.
+     */
+    static void publish(File file, byte[] contents) {
+        try {
+            File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try {
+                Files.write(temp.toPath(), contents);
+                moveAtomically(temp, file);
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Renames a complete file over another in one atomic step, so that
+     * readers of the target see either its old or its new contents.
+     *
+     * @param source The complete file, on the same file system as target.
+     * @param target The file to replace or create.
+     */
+    static void moveAtomically(File source, File target) {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /** Attempts to take a branch lock before backing off. */
+    private static final int SPINS = 16;
+    /** Longest pause between attempts to take a branch lock. */
+    private static final long MAX_PARK_MICROS = 1000;
+
+    /** Counters for tip reads and writes. */
+    private final Trace trace;
+    /** How long to wait for a branch's lock, in milliseconds. */
+    private final long timeoutMillis;
+}
@@ -0,0 +1,278 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Finds files that were renamed or copied between an old and a new
+ * version of a set of files. Files are described by name, content ID and
+ * a reader of their lines; "removed" files exist only in the old
+ * version, "added" files only in the new one, and "kept" files in both.
+ *
+ * Added files whose content ID equals a removed file's are paired first,
+ * through a hash map on ID, without reading any contents. The remaining
+ * added and removed files are then compared by their lines: every line of
+ * a removed file is hashed into an index from line hash to the files
+ * containing it, so each added file is only ever scored against the
+ * removed files it shares lines with. A pair's score is the number of
+ * lines they share as a percentage of the longer file's line count, and
+ * pairs are taken best score first. Inexact matching is skipped entirely
+ * when there are more removed or added files than the candidate limit.
+ *
+ * Empty files are never matched, since any two of them are identical.
+ * Content IDs are SHA-1 hashes of the contents, so empty files are
+ * recognized by ID without being read.
+ *
+ * @author Zien Zeng
+ */
+class RenameDetector {
+
+    /** Least score, in percent, for two files to be paired by default. */
+    static final int DEFAULT_MIN_SCORE = 50;
+    /** Default for the most removed or added files compared inexactly. */
+    static final int DEFAULT_CANDIDATE_LIMIT = 1000;
+    /** Content ID of an empty file. */
+    private static final String EMPTY_ID = Utils.sha1((Object) new byte[0]);
+
+    /**
+     * A file of the new version found to come from a file of the old one.
+     */
+    static class Match {
+        final String oldName;
+        final String newName;
+        final int score;
+        final boolean copy;
+
+        Match(String oldName, String newName, int score, boolean copy) {
+            this.oldName = oldName;
+            this.newName = newName;
+            this.score = score;
+            this.copy = copy;
+        }
+    }
+
+    /**
+     * A file taking part in detection.
+     */
+    private static class Entry {
+        final String name;
+        final ObjectId id;
+        final Supplier<List<String>> contents;
+        /** Sorted hashes of its lines, read on first use. */
+        int[] lines;
+        /** Whether it is already the source of a rename. */
+        boolean renamed;
+
+        Entry(String name, ObjectId id, Supplier<List<String>> contents) {
+            this.name = name;
+            this.id = id;
+            this.contents = contents;
+        }
+    }
+
+    /**
+     * Creates a detector.
+     *
+     * @param minScore       The least score for an inexact match.
+     * @param candidateLimit The most removed or added files to compare
+     *                       inexactly.
+     * @param findCopies     Whether added files may also be matched as
+     *                       copies of kept files, or of removed files that
+     *                       were already matched.
+     */
+    RenameDetector(int minScore, int candidateLimit, boolean findCopies) {
+        this.minScore = minScore;
+        this.candidateLimit = candidateLimit;
+        this.findCopies = findCopies;
+    }
+
+    /**
+     * Adds a file that exists only in the old version.
+     *
+     * @param name     The file's name.
+     * @param id       Its content ID.
+     * @param contents Reads its lines, called only if they are compared.
+     */
+    void addRemoved(String name, ObjectId id, Supplier<List<String>> contents) {
+        if (!id.equals(emptyID)) {
+            removed.add(new Entry(name, id, contents));
+        }
+    }
+
+    /**
+     * Adds a file that exists in both versions. Kept files are only used
+     * as the sources of exact copies.
+     *
+     * @param name The file's name.
+     * @param id   Its content ID in the old version.
+     */
+    void addKept(String name, ObjectId id) {
+        kept.putIfAbsent(id, name);
+    }
+
+    /**
+     * Adds a file that exists only in the new version.
+     *
+     * @param name     The file's name.
+     * @param id       Its content ID.
+     * @param contents Reads its lines, called only if they are compared.
+     */
+    void addAdded(String name, ObjectId id, Supplier<List<String>> contents) {
+        if (!id.equals(emptyID)) {
+            added.add(new Entry(name, id, contents));
+        }
+    }
+
+    /**
+     * Pairs added files with the files they came from. Each removed file
+     * is the source of at most one rename; other matches are copies.
+     *
+     * @return The matches, in order of new name.
+     */
+    List<Match> detect() {
+        List<Match> matches = new ArrayList<>();
+        added.sort(Comparator.comparing(e -> e.name));
+        removed.sort(Comparator.comparing(e -> e.name));
+
+        // Exact matches by content ID
+        Map<ObjectId, List<Entry>> removedByID = new HashMap<>();
+        for (Entry entry : removed) {
+            removedByID.computeIfAbsent(entry.id, k -> new ArrayList<>()).add(entry);
+        }
+        Map<ObjectId, String> renamedByID = new HashMap<>();
+        List<Entry> unmatched = new ArrayList<>();
+        for (Entry entry : added) {
+            List<Entry> sources = removedByID.get(entry.id);
+            if (sources != null && !sources.isEmpty()) {
+                Entry source = sources.remove(0);
+                source.renamed = true;
+                renamedByID.putIfAbsent(entry.id, source.name);
+                matches.add(new Match(source.name, entry.name, 100, false));
+            } else if (findCopies && renamedByID.containsKey(entry.id)) {
+                matches.add(new Match(renamedByID.get(entry.id), entry.name, 100, true));
+            } else if (findCopies && kept.containsKey(entry.id)) {
+                matches.add(new Match(kept.get(entry.id), entry.name, 100, true));
+            } else {
+                unmatched.add(entry);
+            }
+        }
+
+        List<Entry> sources = new ArrayList<>();
+        for (Entry entry : removed) {
+            if (!entry.renamed) {
+                sources.add(entry);
+            }
+        }
+        if (!unmatched.isEmpty() && !sources.isEmpty()
+                && unmatched.size() <= candidateLimit && sources.size() <= candidateLimit) {
+            matchInexactly(sources, unmatched, matches);
+        }
+        matches.sort(Comparator.comparing(m -> m.newName));
+        return matches;
+    }
+
+    /**
+     * Scores every added file against the removed files it shares lines
+     * with and adds the best pairs to matches.
+     */
+    private void matchInexactly(List<Entry> sources, List<Entry> targets, List<Match> matches) {
+        // Index each distinct line hash of the sources as {source, count}
+        Map<Integer, List<int[]>> index = new HashMap<>();
+        for (int s = 0; s < sources.size(); s += 1) {
+            int[] lines = lines(sources.get(s));
+            for (int i = 0; i < lines.length; ) {
+                int j = i;
+                while (j < lines.length && lines[j] == lines[i]) {
+                    j += 1;
+                }
+                index.computeIfAbsent(lines[i], k -> new ArrayList<>()).add(new int[] {s, j - i});
+                i = j;
+            }
+        }
+
+        // Candidates as {score, target, source}
+        List<int[]> candidates = new ArrayList<>();
+        int[] common = new int[sources.size()];
+        List<Integer> touched = new ArrayList<>();
+        for (int t = 0; t < targets.size(); t += 1) {
+            int[] lines = lines(targets.get(t));
+            for (int i = 0; i < lines.length; ) {
+                int j = i;
+                while (j < lines.length && lines[j] == lines[i]) {
+                    j += 1;
+                }
+                List<int[]> postings = index.get(lines[i]);
+                if (postings != null) {
+                    for (int[] posting : postings) {
+                        if (common[posting[0]] == 0) {
+                            touched.add(posting[0]);
+                        }
+                        common[posting[0]] += Math.min(posting[1], j - i);
+                    }
+                }
+                i = j;
+            }
+            for (int s : touched) {
+                int longer = Math.max(lines.length, lines(sources.get(s)).length);
+                int score = (int) (100L * common[s] / longer);
+                if (score >= minScore) {
+                    candidates.add(new int[] {score, t, s});
+                }
+                common[s] = 0;
+            }
+            touched.clear();
+        }
+
+        // Take the best pairs first, ties broken by name for stable output
+        candidates.sort((x, y) -> x[0] != y[0] ? y[0] - x[0]
+                : x[1] != y[1] ? x[1] - y[1] : x[2] - y[2]);
+        boolean[] targetDone = new boolean[targets.size()];
+        boolean[] sourceUsed = new boolean[sources.size()];
+        for (int[] candidate : candidates) {
+            int t = candidate[1];
+            int s = candidate[2];
+            if (targetDone[t] || (sourceUsed[s] && !findCopies)) {
+                continue;
+            }
+            matches.add(new Match(sources.get(s).name, targets.get(t).name,
+                    candidate[0], sourceUsed[s]));
+            targetDone[t] = true;
+            sourceUsed[s] = true;
+        }
+    }
+
+    /**
+     * Returns the sorted line hashes of an entry, reading it on first use.
+     */
+    private static int[] lines(Entry entry) {
+        if (entry.lines == null) {
+            List<String> lines = entry.contents.get();
+            entry.lines = new int[lines.size()];
+            for (int i = 0; i < entry.lines.length; i += 1) {
+                entry.lines[i] = lines.get(i).hashCode();
+            }
+            Arrays.sort(entry.lines);
+        }
+        return entry.lines;
+    }
+
+    /** Least score for an inexact match. */
+    private final int minScore;
+    /** Most removed or added files compared inexactly. */
+    private final int candidateLimit;
+    /** Whether copies are reported. */
+    private final boolean findCopies;
+    /** Files only in the old version. */
+    private final List<Entry> removed = new ArrayList<>();
+    /** Files only in the new version. */
+    private final List<Entry> added = new ArrayList<>();
+    /** Names of files in both versions, by content ID. */
+    private final Map<ObjectId, String> kept = new HashMap<>();
+    /** Content ID of an empty file, as an ID. */
+    private final ObjectId emptyID = ObjectId.fromHex(EMPTY_ID);
+}
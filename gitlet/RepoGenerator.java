@@ -0,0 +1,264 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/** A tool that builds synthetic Gitlet repositories for scale testing.
+ *  Its main program may be invoked as follows:
+ *      java gitlet.RepoGenerator [OPTION VALUE]...
+ *  from inside an empty directory, which becomes the new repository.
+ *  The generator only drives the public Repository API, so the result
+ *  is exactly what a user issuing the same commands would get.  The
+ *  recognized options are
+ *
+ *      --commits N           number of ordinary commits (default 1000)
+ *      --branches N          number of branches besides main (default 4)
+ *      --merge-rate P        probability that a step merges another branch
+ *                            instead of committing (default 0.05)
+ *      --files N             target number of live files (default 1000)
+ *      --files-per-commit N  files touched by each commit (default 5)
+ *      --min-size B          smallest file size in bytes (default 64)
+ *      --max-size B          largest file size in bytes (default 65536)
+ *      --churn P             fraction of a modified file's lines that are
+ *                            rewritten (default 0.2)
+ *      --seed S              random seed (default 0)
+ *
+ *  Setting GITLET_TRACE reports the generator's total I/O and timings as
+ *  for any other command.
+ *
+ *  File sizes are drawn log-uniformly between the two bounds, so most
+ *  files are small and a few are large.  The same options and seed always
+ *  produce the same sequence of commands and file contents.
+ *
+ *  @author Zien Zeng
+ */
+public class RepoGenerator {
+
+    /** Average length of a generated line, including its newline. */
+    private static final int LINE_LENGTH = 48;
+
+    /** Characters used for generated file contents. */
+    private static final String ALPHABET =
+            "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789";
+
+    /** Runs the generator with the options in ARGS. */
+    public static void main(String... args) {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("A Gitlet version-control system already exists in the current directory.");
+            return;
+        }
+        if (args.length % 2 != 0) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        RepoGenerator generator = new RepoGenerator();
+        for (int i = 0; i < args.length; i += 2) {
+            generator.setOption(args[i], args[i + 1]);
+        }
+        long start = System.nanoTime();
+        generator.generate();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        System.err.printf("Generated %d commits, %d merges, %d files in %d ms%n",
+                generator.commitCount, generator.mergeCount,
+                generator.nextFileNumber, elapsed);
+        generator.repository.getTrace().report("generate");
+    }
+
+    /** Sets the option named NAME to VALUE. */
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "--commits":
+                commits = Integer.parseInt(value);
+                break;
+            case "--branches":
+                branches = Integer.parseInt(value);
+                break;
+            case "--merge-rate":
+                mergeRate = Double.parseDouble(value);
+                break;
+            case "--files":
+                files = Integer.parseInt(value);
+                break;
+            case "--files-per-commit":
+                filesPerCommit = Integer.parseInt(value);
+                break;
+            case "--min-size":
+                minSize = Integer.parseInt(value);
+                break;
+            case "--max-size":
+                maxSize = Integer.parseInt(value);
+                break;
+            case "--churn":
+                churn = Double.parseDouble(value);
+                break;
+            case "--seed":
+                random = new Random(Long.parseLong(value));
+                break;
+            default:
+                throw Utils.error("Unknown option %s", name);
+        }
+    }
+
+    /** Initializes the repository in the current directory and fills it
+     *  with the configured history. */
+    private void generate() {
+        repository.init();
+        liveFiles.put("main", new ArrayList<>());
+        branchNames.add("main");
+
+        int branchInterval = Math.max(1, commits / (branches + 1));
+        for (int step = 0; commitCount < commits; step += 1) {
+            if (branchNames.size() <= branches && step > 0 && step % branchInterval == 0) {
+                createBranch();
+            }
+            if (branchNames.size() > 1 && random.nextDouble() < mergeRate) {
+                mergeRandomBranch();
+            } else {
+                if (branchNames.size() > 1 && random.nextInt(branchInterval) == 0) {
+                    switchTo(branchNames.get(random.nextInt(branchNames.size())));
+                }
+                commitChanges();
+            }
+        }
+    }
+
+    /** Creates a new branch at the current commit. */
+    private void createBranch() {
+        String name = "branch" + branchNames.size();
+        repository.createNewBranch(name);
+        branchNames.add(name);
+        liveFiles.put(name, new ArrayList<>(liveFiles.get(currentBranch)));
+    }
+
+    /** Switches to branch NAME, unless it is already current. */
+    private void switchTo(String name) {
+        if (!name.equals(currentBranch)) {
+            repository.switchBranch(name);
+            currentBranch = name;
+        }
+    }
+
+    /** Merges a randomly chosen other branch into the current one. */
+    private void mergeRandomBranch() {
+        String other = branchNames.get(random.nextInt(branchNames.size()));
+        if (other.equals(currentBranch)) {
+            return;
+        }
+        repository.merge(other);
+        mergeCount += 1;
+        // A fast-forward merge moves HEAD, and any merge may add or remove
+        // files, so re-read both from the repository.
+        currentBranch = repository.getCurrentBranch();
+        List<String> names = new ArrayList<>();
+        for (String fileName : Utils.plainFilenamesIn(Repository.CWD)) {
+            names.add(fileName);
+        }
+        liveFiles.put(currentBranch, names);
+    }
+
+    /** Writes and stages FILESPERCOMMIT new or modified files, then
+     *  commits them on the current branch. */
+    private void commitChanges() {
+        List<String> live = liveFiles.get(currentBranch);
+        for (int i = 0; i < filesPerCommit; i += 1) {
+            String fileName;
+            boolean grow = live.isEmpty()
+                    || random.nextDouble() * files >= live.size();
+            if (grow) {
+                fileName = String.format("f%06d.txt", nextFileNumber);
+                nextFileNumber += 1;
+                live.add(fileName);
+                Utils.writeContents(Utils.join(Repository.CWD, fileName), newContents());
+            } else {
+                fileName = live.get(random.nextInt(live.size()));
+                File file = Utils.join(Repository.CWD, fileName);
+                Utils.writeContents(file, churn(Utils.readContentsAsString(file)));
+            }
+            repository.addFileToStaging(fileName);
+        }
+        repository.commit("Synthetic commit " + commitCount);
+        commitCount += 1;
+    }
+
+    /** Returns fresh contents whose size is drawn log-uniformly between
+     *  MINSIZE and MAXSIZE. */
+    private String newContents() {
+        double logMin = Math.log(Math.max(1, minSize));
+        double logMax = Math.log(Math.max(minSize, maxSize));
+        int size = (int) Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+        StringBuilder result = new StringBuilder(size + LINE_LENGTH);
+        while (result.length() < size) {
+            appendLine(result);
+        }
+        return result.toString();
+    }
+
+    /** Returns OLD with about CHURN of its lines rewritten.  At least one
+     *  line always changes, so the result is never identical to OLD. */
+    private String churn(String old) {
+        String[] lines = old.split("\n", -1);
+        StringBuilder result = new StringBuilder(old.length() + LINE_LENGTH);
+        int forced = random.nextInt(lines.length);
+        for (int i = 0; i < lines.length; i += 1) {
+            if (i == lines.length - 1 && lines[i].isEmpty()) {
+                break;
+            }
+            if (i == forced || random.nextDouble() < churn) {
+                appendLine(result);
+            } else {
+                result.append(lines[i]).append('\n');
+            }
+        }
+        if (result.toString().equals(old)) {
+            appendLine(result);
+        }
+        return result.toString();
+    }
+
+    /** Appends one random line of text to RESULT. */
+    private void appendLine(StringBuilder result) {
+        int length = 1 + random.nextInt(2 * LINE_LENGTH - 2);
+        for (int i = 0; i < length; i += 1) {
+            result.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        result.append('\n');
+    }
+
+    /** Number of commits to generate. */
+    private int commits = 1000;
+    /** Number of branches to create besides main. */
+    private int branches = 4;
+    /** Probability that a step is a merge. */
+    private double mergeRate = 0.05;
+    /** Target number of live files. */
+    private int files = 1000;
+    /** Number of files touched by each commit. */
+    private int filesPerCommit = 5;
+    /** Smallest generated file size in bytes. */
+    private int minSize = 64;
+    /** Largest generated file size in bytes. */
+    private int maxSize = 65536;
+    /** Fraction of lines rewritten in a modified file. */
+    private double churn = 0.2;
+    /** Source of all randomness, so that runs are reproducible. */
+    private Random random = new Random(0);
+
+    /** The repository being generated. */
+    private final Repository repository = new Repository(Trace.fromEnvironment(false));
+    /** Names of all branches created so far, in creation order. */
+    private final List<String> branchNames = new ArrayList<>();
+    /** The files tracked at the head of each branch. */
+    private final Map<String, List<String>> liveFiles = new HashMap<>();
+    /** The branch HEAD points to. */
+    private String currentBranch = "main";
+    /** Number of ordinary commits made so far. */
+    private int commitCount;
+    /** Number of merges attempted so far. */
+    private int mergeCount;
+    /** Number used to name the next new file. */
+    private int nextFileNumber;
+}
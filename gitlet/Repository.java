@@ -1,10 +1,34 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Event;
 
 import static gitlet.Utils.*;
 
@@ -52,23 +76,326 @@ public class Repository {
      */
     private static final File BLOBS_DIR = Utils.join(GITLET_DIR, "blobs");
 
+    /**
+     * The directory storing the chunks of large blobs.
+     */
+    private static final File CHUNKS_DIR = Utils.join(GITLET_DIR, "chunks");
+
+    /**
+     * The directory storing, under each large blob's ID, the list of its
+     * chunks.
+     */
+    private static final File MANIFESTS_DIR = Utils.join(GITLET_DIR, "manifests");
+
     /**
      * The directory storing the latest commit in each branch.
      */
     private static final File LATEST_COMMITS = Utils.join(GITLET_DIR, "latestCommits");
 
+    /**
+     * The remotes directory, holding for each remote a file with the
+     * location of its .gitlet directory and the branches fetched from it.
+     */
+    private static final File REMOTES_DIR = Utils.join(GITLET_DIR, "remotes");
+
+    /**
+     * The directory storing computed blames, one file per commit and file
+     * name, named by the commit ID and the SHA-1 of the file name.
+     */
+    private static final File BLAME_CACHE = Utils.join(GITLET_DIR, "blame-cache");
+
+    /**
+     * The file describing commits for history walks, with a filter of the
+     * files each changed (see CommitGraph).
+     */
+    private static final File COMMIT_GRAPH = Utils.join(GITLET_DIR, CommitGraph.FILE_NAME);
+
+    /**
+     * The file listing the stash entries, one commit ID per line, newest
+     * first.
+     */
+    private static final File STASH = Utils.join(GITLET_DIR, "stash");
+
+    /**
+     * First line of every bundle file.
+     */
+    private static final String BUNDLE_SIGNATURE = "# gitlet bundle v1";
+
+    /**
+     * The remote name under which unbundled branches are recorded.
+     */
+    private static final String BUNDLE_REMOTE = "bundle";
+
+    /**
+     * Counters and timers for the commands run on this repository.
+     */
+    private final Trace trace;
+
+    /**
+     * Flight Recorder events for the commands run on this repository,
+     * shared with the other repositories the process opens.
+     */
+    private final FlightEvents events;
+
+    /**
+     * Printed when a command cannot take a repository's lock in time.
+     */
+    static final String LOCKED_MESSAGE =
+            "Another Gitlet command is changing the repository; try again later.";
+
+    /**
+     * Printed when a command finds that another one moved the branch it
+     * was about to move.
+     */
+    private static final String BRANCH_MOVED_MESSAGE =
+            "The branch was moved by another command; nothing was changed.";
+
+    /**
+     * Most times a commit is rebuilt on a branch that keeps moving before
+     * it is rejected.
+     */
+    private static final int MAX_REF_UPDATE_ATTEMPTS = 100;
+
+    /**
+     * Trace counter for commits rebuilt because their branch moved.
+     */
+    static final String REF_UPDATE_RETRIES = "refUpdateRetries";
+
+    /**
+     * Reads and moves branch tips.
+     */
+    private final Refs refs;
+
+    /**
+     * Default time, in milliseconds, a command waits for another to
+     * release the repository lock.
+     */
+    private static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Time, in milliseconds, a command waits for the repository lock.
+     * Overridable with the gitlet.lockTimeoutMillis property.
+     */
+    private final long lockTimeoutMillis;
+
+    /**
+     * Approximate number of bytes of decoded commits kept in memory. May be
+     * overridden with the gitlet.cacheBytes system property.
+     */
+    private static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+    /**
+     * Commits already read or written by this repository, by ID.
+     */
+    private final ObjectCache<Commit> commitCache;
+
+    /**
+     * The blobs working files were last seen to have.
+     */
+    private final StatCache statCache;
+
+    /**
+     * The watcher of the working directory, when one runs.
+     */
+    private final Monitor monitor;
+
+    /**
+     * Number of commits full scans such as global-log decode in parallel
+     * before printing them, which keeps output in commit store order while
+     * bounding how many decoded commits are held at once.
+     */
+    private static final int SCAN_BATCH_SIZE = 1024;
+
+    /**
+     * Trace counter for blob stores skipped because the blob already exists.
+     */
+    private static final String BLOB_WRITES_SKIPPED = "blobWritesSkipped";
+
+    /**
+     * Trace counter for object files hard-linked rather than copied.
+     */
+    private static final String FILES_LINKED = "filesLinked";
+
+    /**
+     * Trace counter for objects deleted by garbage collection.
+     */
+    private static final String OBJECTS_PRUNED = "objectsPruned";
+
+    /**
+     * Default age, in seconds, an unreachable object must reach before
+     * garbage collection deletes it: two weeks.
+     */
+    private static final long DEFAULT_GC_GRACE_SECONDS = 14L * 24 * 60 * 60;
+
+    /**
+     * Age, in seconds, an unreachable object must reach before garbage
+     * collection deletes it. Overridable with the gitlet.gcGraceSeconds
+     * property.
+     */
+    private final long gcGraceSeconds;
+
+    /**
+     * Default age, in seconds, an unreachable object must reach before a
+     * pruneNow garbage collection deletes it: one hour.
+     */
+    private static final long DEFAULT_PRUNE_NOW_GRACE_SECONDS = 60L * 60;
+
+    /**
+     * Age, in seconds, an unreachable object must reach before a pruneNow
+     * garbage collection deletes it. Commands such as add and fetch write
+     * objects without taking the repository lock and only refer to them
+     * afterwards, so even pruneNow leaves young objects alone. Overridable
+     * with the gitlet.pruneNowGraceSeconds property.
+     */
+    private final long pruneNowGraceSeconds;
+
+    /**
+     * Default size, in bytes, from which files are stored in chunks.
+     */
+    private static final long DEFAULT_CHUNK_THRESHOLD = 1L << 20;
+
+    /**
+     * Size, in bytes, from which files are stored in chunks rather than
+     * whole. Overridable with the gitlet.chunkThreshold property.
+     */
+    private final long chunkThreshold;
+
+    /**
+     * Average chunk size in bytes, a power of two. Overridable with the
+     * gitlet.chunkSize property.
+     */
+    private final int chunkSize;
+
+    /**
+     * Most chunks of one file being hashed and stored at once.
+     */
+    private static final int CHUNKS_IN_FLIGHT = 64;
+
+    /**
+     * Trace counter for chunks stored.
+     */
+    private static final String CHUNKS_WRITTEN = "chunksWritten";
+
+    /**
+     * Trace counter for chunks not stored because they already were.
+     */
+    private static final String CHUNKS_SHARED = "chunksShared";
+
+    /**
+     * IDs of blobs this repository has seen in the blobs directory.
+     */
+    private final Set<String> knownBlobs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Least similarity, in percent, for a removed and an added file to be
+     * taken as a rename. Overridable with the gitlet.renameScore property.
+     */
+    private final int renameScore;
+
+    /**
+     * Most removed or added files compared by content when looking for
+     * renames. Overridable with the gitlet.renameLimit property.
+     */
+    private final int renameLimit;
+
+    /**
+     * Object stores, besides this one, that commits and blobs are looked
+     * up in; null until the alternates file has been read.
+     */
+    private List<File> alternates;
+
+    /**
+     * Creates a handle on the repository in the current working directory
+     * that records its work in the given trace.
+     *
+     * @param trace The trace receiving counters and timings.
+     */
+    public Repository(Trace trace) {
+        this(trace, new FlightEvents());
+    }
+
+    /**
+     * Creates a handle on the repository in the current working directory
+     * that records its work in the given trace and emits the given Flight
+     * Recorder events, so that every repository a process opens shares
+     * one set of event types.
+     *
+     * @param trace  The trace receiving counters and timings.
+     * @param events The events to emit.
+     */
+    Repository(Trace trace, FlightEvents events) {
+        this.trace = trace;
+        this.events = events;
+        this.lockTimeoutMillis = Long.getLong("gitlet.lockTimeoutMillis",
+                DEFAULT_LOCK_TIMEOUT_MILLIS);
+        this.refs = new Refs(trace, lockTimeoutMillis);
+        this.monitor = new Monitor(CWD, GITLET_DIR, trace);
+        this.statCache = new StatCache(Utils.join(GITLET_DIR, StatCache.FILE_NAME),
+                Utils.join(GITLET_DIR, StatCache.TOKEN_FILE_NAME), monitor, trace);
+        this.commitCache = new ObjectCache<>(
+                Long.getLong("gitlet.cacheBytes", DEFAULT_CACHE_BYTES), trace);
+        this.renameScore = Integer.getInteger("gitlet.renameScore",
+                RenameDetector.DEFAULT_MIN_SCORE);
+        this.renameLimit = Integer.getInteger("gitlet.renameLimit",
+                RenameDetector.DEFAULT_CANDIDATE_LIMIT);
+        this.gcGraceSeconds = Long.getLong("gitlet.gcGraceSeconds", DEFAULT_GC_GRACE_SECONDS);
+        this.pruneNowGraceSeconds = Long.getLong("gitlet.pruneNowGraceSeconds",
+                DEFAULT_PRUNE_NOW_GRACE_SECONDS);
+        this.chunkThreshold = Long.getLong("gitlet.chunkThreshold", DEFAULT_CHUNK_THRESHOLD);
+        this.chunkSize = Integer.getInteger("gitlet.chunkSize", Chunker.DEFAULT_AVERAGE_SIZE);
+    }
+
+    /**
+     * Creates a handle on the repository in the current working directory
+     * with tracing disabled.
+     */
+    public Repository() {
+        this(Trace.disabled());
+    }
+
+    /**
+     * Returns the trace this repository records into.
+     *
+     * @return The trace.
+     */
+    Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Returns the Flight Recorder events this repository emits.
+     *
+     * @return The events.
+     */
+    FlightEvents getEvents() {
+        return events;
+    }
+
+    /**
+     * Takes the lock that a command must hold while it changes this
+     * repository, waiting for another command holding it to finish.
+     *
+     * @return The held lock, to be closed when the command is done, or
+     *         null if it could not be taken in time.
+     */
+    RepositoryLock lock() {
+        return RepositoryLock.acquire(GITLET_DIR, lockTimeoutMillis, trace, events);
+    }
+
     /**
      * Initialize a new Gitlet version-control system.
      * This creates a .gitlet directory and initializes the repository with an initial commit.
      */
-    public static void init() {
-        if (GITLET_DIR.exists()) {
+    public void init() {
+        if (exists(GITLET_DIR)) {
             System.out.println("A Gitlet version-control system already exists in the current directory.");
             return;
         }
         GITLET_DIR.mkdir();
         COMMITS_DIR.mkdir();
         BLOBS_DIR.mkdir();
+        CHUNKS_DIR.mkdir();
+        MANIFESTS_DIR.mkdir();
         STAGING_AREA.mkdir();
         ADD_STAGE.mkdir();
         REMOVE_STAGE.mkdir();
@@ -77,16 +404,14 @@ public class Repository {
         // Create initial commit
         Commit initialCommit = new Commit("initial commit");
         String initialCommitID = initialCommit.returnID();
-        Utils.writeObject(Utils.join(COMMITS_DIR, initialCommitID), initialCommit);
+        writeCommit(initialCommitID, initialCommit);
 
         // Set up initial branch and its latest commit
         String initialBranch = "main";
-        File initialBranchDir = Utils.join(LATEST_COMMITS, initialBranch);
-        initialBranchDir.mkdir();
-        Utils.writeObject(Utils.join(initialBranchDir, initialCommitID), initialCommit);
+        moveBranch(Utils.join(LATEST_COMMITS, initialBranch), initialCommitID);
 
         // Set HEAD to point to the initial branch
-        Utils.writeContents(HEAD, initialBranch);
+        writeHead(initialBranch);
     }
 
     /**
@@ -94,29 +419,26 @@ public class Repository {
      *
      * @param fileName The name of the file to be added.
      */
-    public static void addFileToStaging(String fileName) {
+    public void addFileToStaging(String fileName) {
         File file = Utils.join(CWD, fileName);
         File stagedFile = Utils.join(ADD_STAGE, fileName);
         File removeFile = Utils.join(REMOVE_STAGE, fileName);
 
-        if (!file.exists() || !file.isFile()) {
+        if (!exists(file) || !file.isFile()) {
             System.out.println("File does not exist.");
             return;
         }
 
-        byte[] currentContent = Utils.readContents(file);
-
         // Check if the file has the same content as the latest commit
-        File latestCommitFile = getFileFromLatestCommit(fileName);
-        if (latestCommitFile != null) {
-            byte[] latestCommitContent = Utils.readContents(latestCommitFile);
-            if (Arrays.equals(currentContent, latestCommitContent)) {
+        ObjectId latestBlobID = getBlobFromLatestCommit(fileName);
+        if (latestBlobID != null) {
+            if (matchesBlob(file, latestBlobID)) {
                 // If the file is in the remove stage, remove it from there
-                if (removeFile.exists()) {
+                if (exists(removeFile)) {
                     removeFile.delete();
                 }
                 // If the file is in the add stage, remove it from there
-                if (stagedFile.exists()) {
+                if (exists(stagedFile)) {
                     stagedFile.delete();
                 }
                 return;
@@ -124,66 +446,60 @@ public class Repository {
         }
 
         // Check if the file is already in the staging area with the same content
-        if (stagedFile.exists()) {
-            byte[] stagedContent = Utils.readContents(stagedFile);
-            if (Arrays.equals(currentContent, stagedContent)) {
+        if (exists(stagedFile)) {
+            if (contentsEqual(file, stagedFile)) {
                 System.out.println("File " + fileName + " is already staged with the same content.");
                 return;
             }
         }
 
         // Remove the file from the remove stage if it is there
-        if (removeFile.exists()) {
+        if (exists(removeFile)) {
             removeFile.delete();
         }
 
-        try {
-            Files.copy(file.toPath(), stagedFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        File temp = createTempFile();
+        copyFile(file, temp);
+        Refs.moveAtomically(temp, stagedFile);
     }
 
     /**
-     * Get the file from the latest commit.
+     * Get the blob of a file in the latest commit.
      *
      * @param fileName The name of the file.
-     * @return The file from the latest commit or null if it does not exist.
+     * @return The ID of the file's blob in the latest commit or null if it does not exist.
      */
-    private static File getFileFromLatestCommit(String fileName) {
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+    private ObjectId getBlobFromLatestCommit(String fileName) {
+        String currentBranch = readContentsAsString(HEAD).trim();
         File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
-        if (!branchDir.exists()) {
+        if (!exists(branchDir)) {
             return null;
         }
 
         // Read the latest commit ID from the branch directory
-        File[] commitFiles = branchDir.listFiles();
-        if (commitFiles == null || commitFiles.length == 0) {
+        String latestCommitID = getLatestCommitID(branchDir);
+        if (latestCommitID == null) {
             return null;
         }
 
-        String latestCommitID = commitFiles[0].getName();
-        Commit latestCommit = Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
-        Map<String, String> latestBlobs = latestCommit.getFileBlobs();
-
-        if (latestBlobs.containsKey(fileName)) {
-            String blobID = latestBlobs.get(fileName);
-            return Utils.join(BLOBS_DIR, blobID);
-        }
+        Commit latestCommit = readCommit(latestCommitID);
+        Map<String, ObjectId> latestBlobs = latestCommit.getFileBlobs();
 
-        return null;
+        return latestBlobs.get(fileName);
     }
 
 
-    public static void commit(String message) {
+    public void commit(String message) {
         if (message.equals("")) {
             System.out.println("Please enter a commit message.");
             return;
         }
         // Check if the staging area is empty
-        File[] stagedAddFiles = ADD_STAGE.listFiles();
-        File[] stagedRemoveFiles = REMOVE_STAGE.listFiles();
+        Event indexLoad = events.begin(FlightEvents.INDEX_LOAD);
+        File[] stagedAddFiles = listFiles(ADD_STAGE);
+        File[] stagedRemoveFiles = listFiles(REMOVE_STAGE);
+        events.commit(indexLoad, stagedAddFiles == null ? 0 : stagedAddFiles.length,
+                stagedRemoveFiles == null ? 0 : stagedRemoveFiles.length);
 
         if ((stagedAddFiles == null || stagedAddFiles.length == 0)
                 && (stagedRemoveFiles == null || stagedRemoveFiles.length == 0)) {
@@ -192,55 +508,53 @@ public class Repository {
         }
 
         // Read the current branch and get the latest commit ID
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+        String currentBranch = readContentsAsString(HEAD).trim();
         File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
-        if (!branchDir.exists() || branchDir.listFiles() == null || branchDir.listFiles().length == 0) {
+        String latestCommitID = getLatestCommitID(branchDir);
+        if (latestCommitID == null) {
             System.out.println("Branch directory is empty or does not exist.");
             return;
         }
-        String latestCommitID = branchDir.listFiles()[0].getName();
-        Commit latestCommit = Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
+        Commit latestCommit = readCommit(latestCommitID);
 
-        // Create a new fileBlobs map inheriting from the latest commit
-        Map<String, String> newFileBlobs = new HashMap<>(latestCommit.getFileBlobs());
-
-        // Add all files from the staging area to the new commit
+        // Store the staged files, and collect the changes as new blob IDs,
+        // or null for removed files
+        Map<String, ObjectId> changes = new HashMap<>();
+        long phase = trace.start();
         if (stagedAddFiles != null) {
             for (File file : stagedAddFiles) {
-                String blobID = Utils.sha1(Utils.readContents(file));
-                File blobFile = Utils.join(BLOBS_DIR, blobID);
-
-                try {
-                    Files.copy(file.toPath(), blobFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
-                // Update newFileBlobs with the staged file
-                newFileBlobs.put(file.getName(), blobID);
+                String hex = sha1(file);
+                writeBlob(file, hex);
+                changes.put(file.getName(), ObjectId.fromHex(hex));
             }
         }
-
-        // Remove files in the staging remove area from the new commit
         if (stagedRemoveFiles != null) {
             for (File file : stagedRemoveFiles) {
-                newFileBlobs.remove(file.getName());
+                changes.put(file.getName(), null);
+            }
+        }
+        trace.stop("commit.blobs", phase);
+
+        // Create the new commit on the branch. If another command, such as
+        // a push into this repository, moved the branch meanwhile, the
+        // working files and staging area no longer match its tip, so the
+        // commit is refused rather than rebuilt on the new tip.
+        Map<String, ObjectId> newFileBlobs = new HashMap<>(latestCommit.getFileBlobs());
+        for (Map.Entry<String, ObjectId> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                newFileBlobs.remove(change.getKey());
+            } else {
+                newFileBlobs.put(change.getKey(), change.getValue());
             }
         }
-
-        // Create a new commit
         Commit newCommit = new Commit(message, latestCommit);
         newCommit.setFileBlobs(newFileBlobs);
         String newCommitID = newCommit.returnID();
-        Utils.writeObject(Utils.join(COMMITS_DIR, newCommitID), newCommit);
-
-        // Update the latest commit ID for the current branch
-        // Remove old commit ID file in the branch directory
-        for (File file : branchDir.listFiles()) {
-            file.delete();
+        writeCommit(newCommitID, newCommit);
+        if (!refs.compareAndSet(branchDir, latestCommitID, newCommitID)) {
+            System.out.println(BRANCH_MOVED_MESSAGE);
+            return;
         }
-        File newCommitFile = Utils.join(branchDir, newCommitID);
-        Utils.writeObject(newCommitFile, newCommit);
 
         // Clear the staging area
         if (stagedAddFiles != null) {
@@ -260,16 +574,16 @@ public class Repository {
      *
      * @param fileName The name of the file to be restored.
      */
-    public static void restore(String fileName) {
+    public void restore(String fileName) {
         // Get the current branch and the latest commit ID
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+        String currentBranch = readContentsAsString(HEAD).trim();
         File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
-        if (!branchDir.exists() || branchDir.listFiles() == null || branchDir.listFiles().length == 0) {
+        String latestCommitID = getLatestCommitID(branchDir);
+        if (latestCommitID == null) {
             System.out.println("Branch directory is empty or does not exist.");
             return;
         }
-        String latestCommitID = branchDir.listFiles()[0].getName();
-        Commit latestCommit = Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
+        Commit latestCommit = readCommit(latestCommitID);
 
         // Restore the file from the latest commit
         restoreFileFromCommit(latestCommit, fileName);
@@ -281,8 +595,8 @@ public class Repository {
      * @param prefix The shortened prefix of the commit ID.
      * @return The full commit ID if a unique match is found, otherwise null.
      */
-    private static String findFullCommitID(String prefix) {
-        List<String> allCommitIDs = Utils.plainFilenamesIn(COMMITS_DIR);
+    private String findFullCommitID(String prefix) {
+        List<String> allCommitIDs = listCommitIDs();
         String fullCommitID = null;
 
         for (String commitID : allCommitIDs) {
@@ -304,7 +618,7 @@ public class Repository {
      * @param commitID The ID of the commit.
      * @param fileName The name of the file to be restored.
      */
-    public static void restore(String commitID, String fileName) {
+    public void restore(String commitID, String fileName) {
 
         String fullCommitID = findFullCommitID(commitID);
         if (fullCommitID == null) {
@@ -312,12 +626,12 @@ public class Repository {
             return;
         }
 
-        File commitFile = Utils.join(COMMITS_DIR, fullCommitID);
-        if (!commitFile.exists()) {
+        File commitFile = commitFile(fullCommitID);
+        if (!exists(commitFile)) {
             System.out.println("No commit with that id exists.");
             return;
         }
-        Commit commit = Utils.readObject(commitFile, Commit.class);
+        Commit commit = readCommit(fullCommitID);
 
         // Restore the file from the specified commit
         restoreFileFromCommit(commit, fileName);
@@ -329,92 +643,146 @@ public class Repository {
      * @param commit   The commit object to restore the file from.
      * @param fileName The name of the file to be restored.
      */
-    private static void restoreFileFromCommit(Commit commit, String fileName) {
-        Map<String, String> fileBlobs = commit.getFileBlobs();
+    private void restoreFileFromCommit(Commit commit, String fileName) {
+        Map<String, ObjectId> fileBlobs = commit.getFileBlobs();
         if (!fileBlobs.containsKey(fileName)) {
             System.out.println("File does not exist in that commit.");
             return;
         }
 
-        // Get the blob ID and the corresponding file in the blobs directory
-        String blobID = fileBlobs.get(fileName);
-        File blobFile = Utils.join(BLOBS_DIR, blobID);
-        File targetFile = Utils.join(CWD, fileName);
-
-        try {
-            // Copy the file from the blobs directory to the working directory
-            Files.copy(blobFile.toPath(), targetFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Copy the file from the blobs directory to the working directory
+        checkoutBlob(fileBlobs.get(fileName), fileName);
     }
 
     /**
      * Display the commit history starting from the current head commit.
      */
-    public static void log() {
+    public void log() {
+        log(Integer.MAX_VALUE, null, null, null);
+    }
+
+    /**
+     * Display the commit history starting from the current head commit,
+     * following first parents. Commits made after until are skipped, and
+     * the walk stops at the first commit made before since or once limit
+     * commits have been shown, so a bounded log never reads the rest of
+     * the history.
+     *
+     * @param limit    The most commits to show.
+     * @param since    The earliest commit date to show, or null.
+     * @param until    The latest commit date to show, or null.
+     * @param fileName If not null, only commits that changed this file
+     *                 relative to their first parent are shown.
+     */
+    public void log(int limit, Date since, Date until, String fileName) {
         // Read the current branch and get the latest commit ID
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+        String currentBranch = readContentsAsString(HEAD).trim();
         File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
-        if (!branchDir.exists() || branchDir.listFiles() == null || branchDir.listFiles().length == 0) {
+        String latestCommitID = getLatestCommitID(branchDir);
+        if (latestCommitID == null) {
             System.out.println("Branch directory is empty or does not exist.");
             return;
         }
-        String latestCommitID = branchDir.listFiles()[0].getName();
-        Commit currentCommit = Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
 
-        // Iterate through the commit history
-        while (currentCommit != null) {
-            printCommit(currentCommit);
-            Commit parentCommit = currentCommit.getParent();
-            currentCommit = parentCommit;
+        if (fileName != null) {
+            logFile(latestCommitID, limit, since, until, fileName);
+            return;
+        }
+
+        // Iterate through the commit history, one commit in memory at a time
+        Iterator<Commit> history = new CommitIterator(this::readCommit,
+                List.of(latestCommitID), CommitIterator.FIRST_PARENT);
+        LogWriter out = new LogWriter(System.out);
+        try {
+            int shown = 0;
+            while (history.hasNext() && shown < limit) {
+                Commit commit = history.next();
+                Date timestamp = commit.getTimestamp();
+                if (since != null && timestamp.before(since)) {
+                    break;
+                }
+                if (until == null || !timestamp.after(until)) {
+                    out.write(commit);
+                    shown += 1;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw error("Internal error writing log.");
         }
     }
 
     /**
-     * Print the details of a single commit.
-     *
-     * @param commit The commit object to be printed.
+     * Shows the first-parent history of a commit, limited as for log, to
+     * the commits that changed a file. The walk follows the commit graph,
+     * so commits with a record there are neither read nor compared with
+     * their parents unless their filter says they may have changed the
+     * file; commits without one are read in full.
      */
-    private static void printCommit(Commit commit) {
-        System.out.println("===");
-        System.out.println("commit " + commit.returnID());
-
-        if (commit.isMerge()) {
-            // 打印合并信息
-            String mergeParentID = commit.getMergeParent().returnID();
-            String firstParentID = commit.getParent().returnID().substring(0, 7);
-            String secondParentID = mergeParentID.substring(0, 7);
-            System.out.println("Merge: " + firstParentID + " " + secondParentID);
+    private void logFile(String headID, int limit, Date since, Date until, String fileName) {
+        long phase = trace.start();
+        Map<String, CommitGraph.Entry> graph = CommitGraph.read(COMMIT_GRAPH);
+        trace.stop("log.graph", phase);
+        LogWriter out = new LogWriter(System.out);
+        try {
+            int shown = 0;
+            String commitID = headID;
+            while (commitID != null && shown < limit) {
+                CommitGraph.Entry entry = graph.get(commitID);
+                Commit commit = entry == null ? readCommit(commitID) : null;
+                long timestamp = entry == null ? commit.getTimestamp().getTime() : entry.timestamp;
+                String parentID = entry == null ? commit.getParentID() : entry.parentID;
+                if (since != null && timestamp < since.getTime()) {
+                    break;
+                }
+                if (until == null || timestamp <= until.getTime()) {
+                    if (entry != null && !entry.mayHaveChanged(fileName)) {
+                        trace.count(CommitGraph.FILTER_SKIPS, 1);
+                    } else {
+                        commit = commit == null ? readCommit(commitID) : commit;
+                        ObjectId parentBlobID = parentID == null
+                                ? null : readCommit(parentID).getFileBlobs().get(fileName);
+                        if (!Objects.equals(commit.getFileBlobs().get(fileName), parentBlobID)) {
+                            out.write(commit);
+                            shown += 1;
+                        } else if (entry != null) {
+                            trace.count(CommitGraph.FILTER_FALSE_POSITIVES, 1);
+                        }
+                    }
+                }
+                commitID = parentID;
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw error("Internal error writing log.");
         }
-
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z");
-        dateFormat.setTimeZone(TimeZone.getDefault());
-        String formattedDate = dateFormat.format(commit.getTimestamp());
-
-        System.out.println("Date: " + formattedDate);
-        System.out.println(commit.getMessage());
-        System.out.println();
     }
 
-
     /**
      * Display information about all commits ever made.
      * Iterates through all files in the commits directory and prints their details.
      */
-    public static void globalLog() {
+    public void globalLog() {
         // Get all commit files
-        List<String> commitFiles = Utils.plainFilenamesIn(COMMITS_DIR);
+        List<String> commitFiles = listCommitIDs();
         if (commitFiles == null || commitFiles.isEmpty()) {
             System.out.println("No commits found.");
             return;
         }
 
         // Iterate through all commit files and print details
-        for (String commitFileName : commitFiles) {
-            File commitFile = Utils.join(COMMITS_DIR, commitFileName);
-            Commit commit = Utils.readObject(commitFile, Commit.class);
-            printCommit(commit);
+        LogWriter out = new LogWriter(System.out);
+        try {
+            for (int i = 0; i < commitFiles.size(); i += SCAN_BATCH_SIZE) {
+                List<String> batch = commitFiles.subList(i,
+                        Math.min(i + SCAN_BATCH_SIZE, commitFiles.size()));
+                for (Commit commit : readCommits(batch)) {
+                    out.write(commit);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw error("Internal error writing log.");
         }
     }
 
@@ -425,22 +793,22 @@ public class Repository {
      *
      * @param fileName The name of the file to be removed.
      */
-    public static void rm(String fileName) {
+    public void rm(String fileName) {
         File file = Utils.join(CWD, fileName);
         File stagedFile = Utils.join(ADD_STAGE, fileName);
         File removeFile = Utils.join(REMOVE_STAGE, fileName);
-        boolean isStagedForAddition = stagedFile.exists();
+        boolean isStagedForAddition = exists(stagedFile);
 
         // Get the latest commit
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+        String currentBranch = readContentsAsString(HEAD).trim();
         File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
-        if (!branchDir.exists() || branchDir.listFiles() == null || branchDir.listFiles().length == 0) {
+        String latestCommitID = getLatestCommitID(branchDir);
+        if (latestCommitID == null) {
             System.out.println("Branch directory is empty or does not exist.");
             return;
         }
-        String latestCommitID = branchDir.listFiles()[0].getName();
-        Commit latestCommit = Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
-        Map<String, String> latestBlobs = latestCommit.getFileBlobs();
+        Commit latestCommit = readCommit(latestCommitID);
+        Map<String, ObjectId> latestBlobs = latestCommit.getFileBlobs();
         boolean isTrackedInCommit = latestBlobs.containsKey(fileName);
 
         if (!isStagedForAddition && !isTrackedInCommit) {
@@ -449,7 +817,7 @@ public class Repository {
         }
 
         // If the file is already staged for removal, notify the user and return
-        if (removeFile.exists()) {
+        if (exists(removeFile)) {
             System.out.println("File " + fileName + " is already marked for removal.");
             return;
         }
@@ -461,28 +829,38 @@ public class Repository {
 
         // Stage it for removal and remove the file from the working directory if it is tracked in the current commit
         if (isTrackedInCommit) {
-            Utils.writeContents(removeFile, fileName);
-            if (file.exists()) {
+            writeContents(removeFile, fileName);
+            if (exists(file)) {
                 file.delete();
             }
         }
     }
 
-    public static void status() {
-        if (!LATEST_COMMITS.exists()) {
+    public void status() {
+        if (!exists(LATEST_COMMITS)) {
             System.out.println("Not in an initialized Gitlet directory.");
             return;
         }
+        long phase = trace.start();
         printBranches();
+        trace.stop("status.branches", phase);
+        phase = trace.start();
         printStagedFiles();
         printRemovedFiles();
-        printModificationsNotStagedForCommit();
-        printUntrackedFiles();
+        trace.stop("status.staged", phase);
+        phase = trace.start();
+        Map<String, ObjectId> headBlobs = getCurrentCommit().getFileBlobs();
+        List<String> workingFiles = workingFileNames();
+        printModificationsNotStagedForCommit(headBlobs, workingFiles);
+        trace.stop("status.modifications", phase);
+        phase = trace.start();
+        printUntrackedFiles(headBlobs, workingFiles);
+        trace.stop("status.untracked", phase);
     }
 
-    private static void printBranches() {
+    private void printBranches() {
         System.out.println("=== Branches ===");
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+        String currentBranch = readContentsAsString(HEAD).trim();
         List<String> branches = listDirectories(LATEST_COMMITS);
         if (branches != null) {
             branches.sort(String::compareTo);
@@ -497,55 +875,48 @@ public class Repository {
         System.out.println();
     }
 
-    private static void printStagedFiles() {
+    private void printStagedFiles() {
         System.out.println("=== Staged Files ===");
         List<String> stagedFiles = plainFilenamesIn(ADD_STAGE);
         printFileList(stagedFiles);
     }
 
-    private static void printRemovedFiles() {
+    private void printRemovedFiles() {
         System.out.println("=== Removed Files ===");
         List<String> removedFiles = plainFilenamesIn(REMOVE_STAGE);
         printFileList(removedFiles);
     }
 
-    private static void printModificationsNotStagedForCommit() {
+    private void printModificationsNotStagedForCommit(Map<String, ObjectId> headBlobs,
+                                                      List<String> workingFiles) {
         System.out.println("=== Modifications Not Staged For Commit ===");
         Set<String> modifications = new HashSet<>();
-        List<String> allFilesInCWD = plainFilenamesIn(CWD);
-        List<String> stagedFiles = plainFilenamesIn(ADD_STAGE);
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
-
-        if (allFilesInCWD != null) {
-            for (String fileName : allFilesInCWD) {
-                File file = join(CWD, fileName);
-                if (stagedFiles != null && stagedFiles.contains(fileName)) {
-                    File stagedFile = join(ADD_STAGE, fileName);
-                    if (!file.exists()) {
-                        modifications.add(fileName + " (deleted)");
-                    } else if (!Arrays.equals(readContents(file), readContents(stagedFile))) {
-                        modifications.add(fileName + " (modified)");
-                    }
-                } else if (isTracked(fileName)) {
-                    String currentBranchCommitID = plainFilenamesIn(
-                            join(LATEST_COMMITS, currentBranch)
-                    ).get(0);
-                    Commit currentCommit = readObject(
-                            join(COMMITS_DIR, currentBranchCommitID),
-                            Commit.class
-                    );
-                    if (!file.exists()) {
-                        modifications.add(fileName + " (deleted)");
-                    } else if (!Arrays.equals(
-                            readContents(file),
-                            readContents(join(BLOBS_DIR, currentCommit.getFileBlobs().get(fileName)))
-                    )) {
-                        modifications.add(fileName + " (modified)");
-                    }
+        Set<String> stagedFiles = new HashSet<>(plainFilenamesIn(ADD_STAGE));
+
+        for (String fileName : workingFiles) {
+            File file = new File(CWD, fileName);
+            if (stagedFiles.contains(fileName)) {
+                File stagedFile = join(ADD_STAGE, fileName);
+                if (!exists(file)) {
+                    modifications.add(fileName + " (deleted)");
+                } else if (!contentsEqual(file, stagedFile)) {
+                    modifications.add(fileName + " (modified)");
+                }
+            } else if (headBlobs.containsKey(fileName)) {
+                ObjectId blobID = headBlobs.get(fileName);
+                if (blobID.equals(statCache.lookup(fileName, file))) {
+                    continue;
+                } else if (!exists(file)) {
+                    modifications.add(fileName + " (deleted)");
+                } else if (!matchesBlob(file, blobID)) {
+                    modifications.add(fileName + " (modified)");
+                } else {
+                    statCache.record(fileName, file, blobID);
                 }
             }
         }
 
+        statCache.save();
         List<String> sortedModifications = new ArrayList<>(modifications);
         sortedModifications.sort(String::compareTo);
         for (String mod : sortedModifications) {
@@ -554,20 +925,16 @@ public class Repository {
         System.out.println();
     }
 
-    private static void printUntrackedFiles() {
+    private void printUntrackedFiles(Map<String, ObjectId> headBlobs, List<String> workingFiles) {
         System.out.println("=== Untracked Files ===");
-        List<String> allFilesInCWD = plainFilenamesIn(CWD);
-        List<String> stagedFiles = plainFilenamesIn(ADD_STAGE);
-        List<String> removedFiles = plainFilenamesIn(REMOVE_STAGE);
+        Set<String> stagedFiles = new HashSet<>(plainFilenamesIn(ADD_STAGE));
+        Set<String> removedFiles = new HashSet<>(plainFilenamesIn(REMOVE_STAGE));
         List<String> untrackedFiles = new ArrayList<>();
 
-        if (allFilesInCWD != null) {
-            for (String fileName : allFilesInCWD) {
-                if ((stagedFiles == null || !stagedFiles.contains(fileName))
-                        && (removedFiles == null || !removedFiles.contains(fileName))
-                        && !isTracked(fileName)) {
-                    untrackedFiles.add(fileName);
-                }
+        for (String fileName : workingFiles) {
+            if (!stagedFiles.contains(fileName) && !removedFiles.contains(fileName)
+                    && !headBlobs.containsKey(fileName)) {
+                untrackedFiles.add(fileName);
             }
         }
 
@@ -578,7 +945,29 @@ public class Repository {
         System.out.println();
     }
 
-    private static void printFileList(List<String> files) {
+    /**
+     * Returns the names of the plain files in the working directory, in
+     * no particular order. Files the stat cache knows unchanged through
+     * the monitor are not statted to tell them from directories.
+     *
+     * @return The file names.
+     */
+    private List<String> workingFileNames() {
+        trace.count(Trace.DIRECTORY_LISTINGS, 1);
+        String[] names = CWD.list();
+        List<String> files = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                if (statCache.isVerified(name)
+                        || !Monitor.isCookie(name) && isPlainFile(new File(CWD, name))) {
+                    files.add(name);
+                }
+            }
+        }
+        return files;
+    }
+
+    private void printFileList(List<String> files) {
         if (files != null) {
             files.sort(String::compareTo);
             for (String file : files) {
@@ -594,11 +983,8 @@ public class Repository {
      * @param fileName The name of the file.
      * @return true if the file is tracked, false otherwise.
      */
-    private static boolean isTracked(String fileName) {
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
-        String latestCommitID = plainFilenamesIn(join(LATEST_COMMITS, currentBranch)).get(0);
-        Commit latestCommit = readObject(join(COMMITS_DIR, latestCommitID), Commit.class);
-        return latestCommit.getFileBlobs().containsKey(fileName);
+    private boolean isTracked(String fileName) {
+        return getCurrentCommit().getFileBlobs().containsKey(fileName);
     }
 
 
@@ -608,8 +994,8 @@ public class Repository {
      * @param dir The directory to list directories in.
      * @return A list of directory names.
      */
-    private static List<String> listDirectories(File dir) {
-        File[] files = dir.listFiles(File::isDirectory);
+    private List<String> listDirectories(File dir) {
+        File[] files = listFiles(dir, File::isDirectory);
         List<String> directories = new ArrayList<>();
         if (files != null) {
             for (File file : files) {
@@ -626,9 +1012,9 @@ public class Repository {
      *
      * @param message The commit message to search for.
      */
-    public static void find(String message) {
+    public void find(String message) {
         // Get all commit files
-        List<String> commitFiles = Utils.plainFilenamesIn(COMMITS_DIR);
+        List<String> commitFiles = listCommitIDs();
         if (commitFiles == null || commitFiles.isEmpty()) {
             System.out.println("Found no commit with that message.");
             return;
@@ -637,13 +1023,21 @@ public class Repository {
         boolean found = false;
 
         // Iterate through all commit files and check their messages
-        for (String commitFileName : commitFiles) {
-            File commitFile = Utils.join(COMMITS_DIR, commitFileName);
-            Commit commit = Utils.readObject(commitFile, Commit.class);
-            if (commit.getMessage().equals(message)) {
-                System.out.println(commit.returnID());
-                found = true;
+        LogWriter out = new LogWriter(System.out);
+        try {
+            for (int i = 0; i < commitFiles.size(); i += SCAN_BATCH_SIZE) {
+                List<String> batch = commitFiles.subList(i,
+                        Math.min(i + SCAN_BATCH_SIZE, commitFiles.size()));
+                for (Commit commit : readCommits(batch)) {
+                    if (commit.getMessage().equals(message)) {
+                        out.writeLine(commit.returnID());
+                        found = true;
+                    }
+                }
             }
+            out.flush();
+        } catch (IOException e) {
+            throw error("Internal error writing log.");
         }
 
         if (!found) {
@@ -653,64 +1047,334 @@ public class Repository {
 
 
     /**
-     * Creates a new branch with the given name. The new branch starts at the
-     * current commit of the current branch.
-     *
-     * @param branchName The name of the new branch to create.
+     * Prints a unified diff of the working directory against the current
+     * commit, covering files tracked in the current commit or staged for
+     * addition. Untracked files are not shown.
      */
-    public static void createNewBranch(String branchName) {
-        File newBranchDir = Utils.join(LATEST_COMMITS, branchName);
-        if (newBranchDir.exists()) {
-            System.out.println("A branch with that name already exists.");
-        }
-        newBranchDir.mkdir();
-
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
-        File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
-        File[] commitFiles = branchDir.listFiles();
-        if (commitFiles == null || commitFiles.length == 0) {
-            System.out.println("No commits found in the current branch.");
-            return;
+    public void diff() {
+        Map<String, ObjectId> headBlobs = getCurrentCommit().getFileBlobs();
+        Set<String> names = new HashSet<>(headBlobs.keySet());
+        names.addAll(plainFilenamesIn(ADD_STAGE));
+        Map<String, File> workingFiles = new HashMap<>();
+        for (String fileName : names) {
+            File file = Utils.join(CWD, fileName);
+            if (exists(file)) {
+                workingFiles.put(fileName, file);
+            }
         }
-        String latestCommitID = commitFiles[0].getName();
-        Commit latestCommit = Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
-        writeObject(join(newBranchDir, latestCommitID), latestCommit);
-
+        printDiff(headBlobs, workingFiles, new HashMap<>());
     }
 
+    /**
+     * Prints a unified diff of the staging area against the current commit,
+     * i.e. the changes the next commit would make.
+     */
+    public void diffStaged() {
+        Map<String, ObjectId> headBlobs = getCurrentCommit().getFileBlobs();
+        Map<String, ObjectId> stagedBlobs = new HashMap<>(headBlobs);
+        Map<String, File> stagedFiles = new HashMap<>();
+        for (String fileName : plainFilenamesIn(ADD_STAGE)) {
+            stagedBlobs.remove(fileName);
+            stagedFiles.put(fileName, Utils.join(ADD_STAGE, fileName));
+        }
+        for (String fileName : plainFilenamesIn(REMOVE_STAGE)) {
+            stagedBlobs.remove(fileName);
+        }
+        printDiff(headBlobs, stagedFiles, stagedBlobs);
+    }
 
     /**
-     * Switches to the branch with the given name.
-     * Takes all files in the commit at the head of the given branch,
-     * and puts them in the working directory, overwriting the versions
-     * of the files that are already there if they exist. Also, at the
-     * end of this command, the given branch will now be considered the
-     * current branch (HEAD). Any files that are tracked in the current
-     * branch but are not present in the branch you are switching to are deleted.
-     * The staging area is cleared, unless the given branch is the current branch.
+     * Prints a unified diff between two commits. Either ID may be
+     * abbreviated as for restore.
      *
-     * @param branchName The name of the branch to switch to.
+     * @param firstID  The ID of the old commit.
+     * @param secondID The ID of the new commit.
      */
-    public static void switchBranch(String branchName) {
-        File branchDir = Utils.join(LATEST_COMMITS, branchName);
-
-        // Check if the branch exists
-        if (!branchDir.exists()) {
-            System.out.println("No such branch exists.");
+    public void diff(String firstID, String secondID) {
+        String firstFullID = findFullCommitID(firstID);
+        String secondFullID = findFullCommitID(secondID);
+        if (firstFullID == null || secondFullID == null) {
+            System.out.println("No commit with that id exists.");
             return;
         }
+        printDiff(readCommit(firstFullID).getFileBlobs(), new HashMap<>(),
+                readCommit(secondFullID).getFileBlobs());
+    }
 
-        // Check if the branch is the current branch
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
-        if (branchName.equals(currentBranch)) {
-            System.out.println("No need to switch to the current branch.");
+    /**
+     * Prints each line of a file as of the current commit, prefixed with
+     * the abbreviated ID and date of the commit that introduced it and
+     * the line's number. The result is cached, so that blaming the file
+     * again only walks the commits made since.
+     *
+     * @param fileName The name of the file.
+     */
+    public void blame(String fileName) {
+        String headID = getLatestCommitID(Utils.join(LATEST_COMMITS, getCurrentBranch()));
+        if (headID == null) {
+            System.out.println("Branch directory is empty or does not exist.");
+            return;
+        }
+        ObjectId blobID = readCommit(headID).getFileBlobs().get(fileName);
+        if (blobID == null) {
+            System.out.println("File does not exist in that commit.");
+            return;
+        }
+        long phase = trace.start();
+        Blame blame = new Blame(fileName, this::readCommit, this::readBlobLines,
+                commitID -> readBlameCache(commitID, fileName), trace);
+        Blame.Origin[] origins = blame.run(headID);
+        File cacheFile = blameCacheFile(headID, fileName);
+        if (!exists(cacheFile)) {
+            BLAME_CACHE.mkdir();
+            File temp = createTempFile();
+            writeContents(temp, Blame.encode(origins));
+            Refs.moveAtomically(temp, cacheFile);
+        }
+        trace.stop("blame.walk", phase);
+
+        List<String> lines = readBlobLines(blobID);
+        DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern(LogWriter.DATE_PATTERN)
+                .withZone(ZoneId.systemDefault());
+        Map<String, String> prefixes = new HashMap<>();
+        int width = String.valueOf(lines.size()).length();
+        try {
+            OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+            for (int i = 0; i < lines.size(); i += 1) {
+                String prefix = prefixes.computeIfAbsent(origins[i].commitID,
+                        id -> id.substring(0, 8) + " ("
+                                + dateFormat.format(readCommit(id).getTimestamp().toInstant()));
+                String line = lines.get(i);
+                out.write((prefix + String.format(" %" + width + "d) ", i + 1))
+                        .getBytes(StandardCharsets.UTF_8));
+                out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+                if (!line.endsWith("\n")) {
+                    out.write('\n');
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw error("Internal error writing blame.");
+        }
+    }
+
+    /**
+     * Returns the cached blame of a file as of a commit.
+     *
+     * @param commitID The full ID of the commit.
+     * @param fileName The name of the file.
+     * @return The origins of its lines, or null if none are cached.
+     */
+    private Blame.Origin[] readBlameCache(String commitID, String fileName) {
+        File cacheFile = blameCacheFile(commitID, fileName);
+        if (!exists(cacheFile)) {
+            return null;
+        }
+        return Blame.decode(readContentsAsString(cacheFile));
+    }
+
+    /**
+     * Returns the file caching the blame of a file as of a commit.
+     */
+    private File blameCacheFile(String commitID, String fileName) {
+        return Utils.join(BLAME_CACHE, commitID + "-" + Utils.sha1(fileName));
+    }
+
+    /**
+     * Prints a unified diff for every file whose contents differ between a
+     * commit's files and a new version of them, in file name order. Files
+     * whose blob IDs are equal on both sides are skipped without being
+     * read, and stored blobs, chunked or not, are streamed from the store
+     * only when their lines are needed.
+     *
+     * @param oldBlobs The old version, as file names to blob IDs.
+     * @param newFiles Files of the new version read from outside the
+     *                 store, such as working or staged files.
+     * @param newBlobs The other files of the new version, as file names
+     *                 to blob IDs.
+     */
+    private void printDiff(Map<String, ObjectId> oldBlobs, Map<String, File> newFiles,
+                           Map<String, ObjectId> newBlobs) {
+        Set<String> names = new TreeSet<>(oldBlobs.keySet());
+        names.addAll(newFiles.keySet());
+        names.addAll(newBlobs.keySet());
+
+        // Pair files that only exist on one side as renames and copies
+        long phase = trace.start();
+        RenameDetector detector = newRenameDetector(true);
+        for (Map.Entry<String, ObjectId> entry : oldBlobs.entrySet()) {
+            ObjectId blobID = entry.getValue();
+            if (newFiles.containsKey(entry.getKey()) || newBlobs.containsKey(entry.getKey())) {
+                detector.addKept(entry.getKey(), blobID);
+            } else {
+                detector.addRemoved(entry.getKey(), blobID, () -> readBlobLines(blobID));
+            }
+        }
+        for (Map.Entry<String, File> entry : newFiles.entrySet()) {
+            if (!oldBlobs.containsKey(entry.getKey())) {
+                File file = entry.getValue();
+                detector.addAdded(entry.getKey(), ObjectId.fromHex(sha1(file)),
+                        () -> Diff.readLines(file));
+            }
+        }
+        for (Map.Entry<String, ObjectId> entry : newBlobs.entrySet()) {
+            if (!oldBlobs.containsKey(entry.getKey())) {
+                ObjectId blobID = entry.getValue();
+                detector.addAdded(entry.getKey(), blobID, () -> readBlobLines(blobID));
+            }
+        }
+        Map<String, RenameDetector.Match> matches = new HashMap<>();
+        Set<String> renamedFiles = new HashSet<>();
+        for (RenameDetector.Match match : detector.detect()) {
+            matches.put(match.newName, match);
+            if (!match.copy) {
+                renamedFiles.add(match.oldName);
+            }
+        }
+        trace.stop("diff.renames", phase);
+
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        try {
+            for (String fileName : names) {
+                File newFile = newFiles.get(fileName);
+                ObjectId newBlob = newBlobs.get(fileName);
+                RenameDetector.Match match = matches.get(fileName);
+                if (match != null) {
+                    String kind = match.copy ? "copy" : "rename";
+                    writeFileDiff(out, match.oldName, readBlobLines(oldBlobs.get(match.oldName)),
+                            fileName, readVersion(newFile, newBlob),
+                            "similarity index " + match.score + "%\n"
+                            + kind + " from " + match.oldName + "\n"
+                            + kind + " to " + fileName + "\n");
+                    continue;
+                }
+                if (renamedFiles.contains(fileName)) {
+                    continue;
+                }
+                ObjectId oldBlob = oldBlobs.get(fileName);
+                if (oldBlob != null && (oldBlob.equals(newBlob)
+                        || newFile != null && matchesBlob(newFile, oldBlob))) {
+                    continue;
+                }
+                writeFileDiff(out, fileName, readVersion(null, oldBlob),
+                        fileName, readVersion(newFile, newBlob), "");
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw error("Internal error writing diff.");
+        }
+    }
+
+    /**
+     * Returns the lines of one side of a file's diff.
+     *
+     * @param file   The file holding them, or null if they are stored.
+     * @param blobID The blob holding them, or null if the file is
+     *               missing on this side.
+     * @return The lines, or null if the file is missing on this side.
+     */
+    private List<String> readVersion(File file, ObjectId blobID) {
+        if (file != null) {
+            return Diff.readLines(file);
+        }
+        return blobID == null ? null : readBlobLines(blobID);
+    }
+
+    /**
+     * Writes the diff of one file, headed by its names.
+     *
+     * @param out      Where to write.
+     * @param oldName  The file's old name.
+     * @param oldLines Its old lines, or null if it did not exist.
+     * @param newName  The file's new name.
+     * @param newLines Its new lines, or null if it no longer exists.
+     * @param header   Extended header lines to write after the first line.
+     */
+    private void writeFileDiff(OutputStream out, String oldName, List<String> oldLines,
+                               String newName, List<String> newLines, String header)
+            throws IOException {
+        long phase = trace.start();
+        List<String> a = oldLines == null ? List.of() : oldLines;
+        List<String> b = newLines == null ? List.of() : newLines;
+        List<Diff.Edit> edits = Diff.diff(a, b);
+        out.write(("diff --git a/" + oldName + " b/" + newName + "\n" + header)
+                .getBytes(StandardCharsets.UTF_8));
+        Diff.writeUnified(out,
+                oldLines == null ? "/dev/null" : "a/" + oldName,
+                newLines == null ? "/dev/null" : "b/" + newName,
+                a, b, edits);
+        trace.stop("diff.file", phase);
+    }
+
+    /**
+     * Returns a rename detector using this repository's similarity
+     * threshold and candidate limit.
+     *
+     * @param findCopies Whether copies are also reported.
+     * @return The detector.
+     */
+    private RenameDetector newRenameDetector(boolean findCopies) {
+        return new RenameDetector(renameScore, renameLimit, findCopies);
+    }
+
+    /**
+     * Creates a new branch with the given name. The new branch starts at the
+     * current commit of the current branch.
+     *
+     * @param branchName The name of the new branch to create.
+     */
+    public void createNewBranch(String branchName) {
+        File newBranchDir = Utils.join(LATEST_COMMITS, branchName);
+        if (exists(newBranchDir)) {
+            System.out.println("A branch with that name already exists.");
+            return;
+        }
+
+        String currentBranch = readContentsAsString(HEAD).trim();
+        File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
+        String latestCommitID = getLatestCommitID(branchDir);
+        if (latestCommitID == null) {
+            System.out.println("No commits found in the current branch.");
+            return;
+        }
+        if (!refs.compareAndSet(newBranchDir, null, latestCommitID)) {
+            System.out.println("A branch with that name already exists.");
+        }
+    }
+
+
+    /**
+     * Switches to the branch with the given name.
+     * Takes all files in the commit at the head of the given branch,
+     * and puts them in the working directory, overwriting the versions
+     * of the files that are already there if they exist. Also, at the
+     * end of this command, the given branch will now be considered the
+     * current branch (HEAD). Any files that are tracked in the current
+     * branch but are not present in the branch you are switching to are deleted.
+     * The staging area is cleared, unless the given branch is the current branch.
+     *
+     * @param branchName The name of the branch to switch to.
+     */
+    public void switchBranch(String branchName) {
+        File branchDir = Utils.join(LATEST_COMMITS, branchName);
+
+        // Check if the branch exists
+        if (!exists(branchDir)) {
+            System.out.println("No such branch exists.");
+            return;
+        }
+
+        // Check if the branch is the current branch
+        String currentBranch = readContentsAsString(HEAD).trim();
+        if (branchName.equals(currentBranch)) {
+            System.out.println("No need to switch to the current branch.");
             return;
         }
 
         // Check for untracked files that would be overwritten
         Commit currentCommit = getCurrentCommit();
         Commit targetCommit = getLatestCommit(branchDir);
-        for (String fileName : Utils.plainFilenamesIn(CWD)) {
+        for (String fileName : plainFilenamesIn(CWD)) {
             if (!currentCommit.getFileBlobs().containsKey(fileName)
                     && targetCommit.getFileBlobs().containsKey(fileName)) {
                 System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
@@ -722,30 +1386,93 @@ public class Repository {
         clearStagingArea();
 
         // Get the files from the target commit and put them in the working directory
-        for (Map.Entry<String, String> entry : targetCommit.getFileBlobs().entrySet()) {
-            String fileName = entry.getKey();
-            String blobID = entry.getValue();
-            File blobFile = Utils.join(BLOBS_DIR, blobID);
-            File targetFile = Utils.join(CWD, fileName);
-            try {
-                Files.copy(blobFile.toPath(), targetFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        for (Map.Entry<String, ObjectId> entry : targetCommit.getFileBlobs().entrySet()) {
+            checkoutBlob(entry.getValue(), entry.getKey());
         }
 
         // Delete files that are tracked in the current branch but not in the target branch
         for (String fileName : currentCommit.getFileBlobs().keySet()) {
             if (!targetCommit.getFileBlobs().containsKey(fileName)) {
                 File fileToDelete = Utils.join(CWD, fileName);
-                if (fileToDelete.exists()) {
+                if (exists(fileToDelete)) {
                     fileToDelete.delete();
                 }
             }
         }
 
         // Update HEAD to point to the new branch
-        Utils.writeContents(HEAD, branchName);
+        writeHead(branchName);
+    }
+
+    /**
+     * Reads the commit with the given full ID, from memory if it has been
+     * read or written before.
+     *
+     * @param commitID The full commit ID.
+     * @return The commit.
+     */
+    private Commit readCommit(String commitID) {
+        Commit commit = commitCache.get(commitID);
+        if (commit == null) {
+            File commitFile = commitFile(commitID);
+            commit = readObject(commitFile, Commit.class);
+            commitCache.put(commitID, commit, commitFile.length());
+        }
+        return commit;
+    }
+
+    /**
+     * Reads the commits with the given full IDs, decoding them in parallel.
+     * The result is in the same order as the IDs.
+     *
+     * @param commitIDs The full commit IDs.
+     * @return The commits.
+     */
+    private List<Commit> readCommits(List<String> commitIDs) {
+        return commitIDs.parallelStream()
+                .map(this::readCommit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Stores a commit in the commits directory and keeps it in memory.
+     *
+     * @param commitID The commit's ID.
+     * @param commit   The commit.
+     */
+    private void writeCommit(String commitID, Commit commit) {
+        File commitFile = Utils.join(COMMITS_DIR, commitID);
+        File temp = createTempFile();
+        writeObject(temp, commit);
+        Refs.moveAtomically(temp, commitFile);
+        commitCache.put(commitID, commit, commitFile.length());
+        CommitGraph.append(COMMIT_GRAPH,
+                CommitGraph.entry(commitID, commit, changedPaths(commit)));
+    }
+
+    /**
+     * Returns the names of the files a commit added, changed or removed
+     * relative to its first parent.
+     *
+     * @param commit The commit.
+     * @return The file names.
+     */
+    private Set<String> changedPaths(Commit commit) {
+        Map<String, ObjectId> blobs = commit.getFileBlobs();
+        Map<String, ObjectId> parentBlobs = commit.getParentID() == null
+                ? Map.of() : readCommit(commit.getParentID()).getFileBlobs();
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, ObjectId> entry : blobs.entrySet()) {
+            if (!entry.getValue().equals(parentBlobs.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String fileName : parentBlobs.keySet()) {
+            if (!blobs.containsKey(fileName)) {
+                changed.add(fileName);
+            }
+        }
+        return changed;
     }
 
     /**
@@ -754,13 +1481,31 @@ public class Repository {
      * @param branchDir The directory of the branch.
      * @return The latest commit object.
      */
-    private static Commit getLatestCommit(File branchDir) {
-        File[] commitFiles = branchDir.listFiles();
-        if (commitFiles == null || commitFiles.length == 0) {
+    private Commit getLatestCommit(File branchDir) {
+        String latestCommitID = getLatestCommitID(branchDir);
+        if (latestCommitID == null) {
             throw new IllegalStateException("Branch has no commits.");
         }
-        String latestCommitID = commitFiles[0].getName();
-        return Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
+        return readCommit(latestCommitID);
+    }
+
+    /**
+     * Helper method to get the ID of the latest commit of a branch.
+     *
+     * @param branchDir The directory of the branch.
+     * @return The latest commit ID, or null if the branch has none.
+     */
+    private String getLatestCommitID(File branchDir) {
+        return refs.read(branchDir);
+    }
+
+    /**
+     * Returns the name of the branch HEAD currently points to.
+     *
+     * @return The current branch name.
+     */
+    String getCurrentBranch() {
+        return readContentsAsString(HEAD).trim();
     }
 
     /**
@@ -768,8 +1513,8 @@ public class Repository {
      *
      * @return The current commit object.
      */
-    private static Commit getCurrentCommit() {
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+    private Commit getCurrentCommit() {
+        String currentBranch = readContentsAsString(HEAD).trim();
         File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
         return getLatestCommit(branchDir);
     }
@@ -777,8 +1522,8 @@ public class Repository {
     /**
      * Helper method to clear the staging area.
      */
-    private static void clearStagingArea() {
-        List<String> addStageFiles = Utils.plainFilenamesIn(ADD_STAGE);
+    private void clearStagingArea() {
+        List<String> addStageFiles = plainFilenamesIn(ADD_STAGE);
         if (addStageFiles != null) {
             for (String fileName : addStageFiles) {
                 File file = Utils.join(ADD_STAGE, fileName);
@@ -786,7 +1531,7 @@ public class Repository {
             }
         }
 
-        List<String> removeStageFiles = Utils.plainFilenamesIn(REMOVE_STAGE);
+        List<String> removeStageFiles = plainFilenamesIn(REMOVE_STAGE);
         if (removeStageFiles != null) {
             for (String fileName : removeStageFiles) {
                 File file = Utils.join(REMOVE_STAGE, fileName);
@@ -802,24 +1547,24 @@ public class Repository {
      *
      * @param branchName The name of the branch to delete.
      */
-    public static void removeBranch(String branchName) {
+    public void removeBranch(String branchName) {
         File branchDir = Utils.join(LATEST_COMMITS, branchName);
 
         // Check if the branch exists
-        if (!branchDir.exists()) {
+        if (!exists(branchDir)) {
             System.out.println("A branch with that name does not exist.");
             return;
         }
 
         // Check if trying to remove the current branch
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+        String currentBranch = readContentsAsString(HEAD).trim();
         if (branchName.equals(currentBranch)) {
             System.out.println("Cannot remove the current branch.");
             return;
         }
 
         // Delete the branch directory
-        for (File file : Objects.requireNonNull(branchDir.listFiles())) {
+        for (File file : Objects.requireNonNull(listFiles(branchDir))) {
             file.delete();
         }
         branchDir.delete();
@@ -833,25 +1578,24 @@ public class Repository {
      *
      * @param commitID The commit ID to reset to.
      */
-    public static void reset(String commitID) {
-        File commitFile = Utils.join(COMMITS_DIR, commitID);
+    public void reset(String commitID) {
+        File commitFile = commitFile(commitID);
 
         // Check if the commit exists
-        if (!commitFile.exists()) {
+        if (!exists(commitFile)) {
             System.out.println("No commit with that id exists.");
             return;
         }
 
 
-        Commit targetCommit = Utils.readObject(commitFile, Commit.class);
+        Commit targetCommit = readCommit(commitID);
         // Get the current commit
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
+        String currentBranch = readContentsAsString(HEAD).trim();
         File branchDir = Utils.join(LATEST_COMMITS, currentBranch);
-        String latestCommitID = branchDir.listFiles()[0].getName();
-        Commit currentCommit = Utils.readObject(Utils.join(COMMITS_DIR, latestCommitID), Commit.class);
+        Commit currentCommit = getLatestCommit(branchDir);
 
         // Check for untracked files that would be overwritten
-        for (String fileName : Utils.plainFilenamesIn(CWD)) {
+        for (String fileName : plainFilenamesIn(CWD)) {
             if (!currentCommit.getFileBlobs().containsKey(fileName) && !Utils.join(CWD, fileName).isDirectory()
                     && targetCommit.getFileBlobs().containsKey(fileName)) {
                 System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
@@ -859,57 +1603,70 @@ public class Repository {
             }
         }
 
+        // Move the current branch’s head to the target commit, unless
+        // another command moved it since it was read
+        if (!refs.compareAndSet(branchDir, currentCommit.returnID(), commitID)) {
+            System.out.println(BRANCH_MOVED_MESSAGE);
+            return;
+        }
+
         // Clear the staging area
         clearStagingArea();
 
         // Restore the files from the target commit
-        for (Map.Entry<String, String> entry : targetCommit.getFileBlobs().entrySet()) {
-            String fileName = entry.getKey();
-            String blobID = entry.getValue();
-            File blobFile = Utils.join(BLOBS_DIR, blobID);
-            File targetFile = Utils.join(CWD, fileName);
-            try {
-                Files.copy(blobFile.toPath(), targetFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        for (Map.Entry<String, ObjectId> entry : targetCommit.getFileBlobs().entrySet()) {
+            checkoutBlob(entry.getValue(), entry.getKey());
         }
 
         // Remove files in CWD that are not in the target commit
-        for (String fileName : Utils.plainFilenamesIn(CWD)) {
+        for (String fileName : plainFilenamesIn(CWD)) {
             if (!targetCommit.getFileBlobs().containsKey(fileName) && !Utils.join(CWD, fileName).isDirectory()) {
                 File fileToDelete = Utils.join(CWD, fileName);
-                if (fileToDelete.exists()) {
+                if (exists(fileToDelete)) {
                     fileToDelete.delete();
                 }
             }
         }
+    }
 
-        // Move the current branch’s head to the target commit
-        File[] files = branchDir.listFiles();
-        if (files != null && files.length > 0) {
-            files[0].delete();
-        } else {
-            System.out.println("No latest commit ID in current branch, something wrong");
-            return;
-        }
-        Utils.writeObject(Utils.join(branchDir, commitID), targetCommit);
+    /**
+     * Merges the given branch into the current branch and checks out the
+     * result.
+     *
+     * @param branchName The name of the branch to merge in.
+     */
+    public void merge(String branchName) {
+        merge(branchName, true);
     }
 
-    public static void merge(String branchName) {
+    /**
+     * Merges the given branch into the current branch. The merged tree is
+     * built in memory in one pass over the split point's, the current
+     * branch's and the given branch's files, merged and conflicted files
+     * are written straight to the blob store, and the merge commit is made
+     * from that tree. Only then, and only if checkout is true, are the
+     * files that differ from the current commit updated in the working
+     * directory. Without checkout the working directory is neither read
+     * nor written, so branches can be merged in a repository nobody works
+     * in.
+     *
+     * @param branchName The name of the branch to merge in.
+     * @param checkout   Whether to update the working directory.
+     */
+    public void merge(String branchName, boolean checkout) {
 
         // Check if there are uncommitted changes in the staging area
-        if (Utils.plainFilenamesIn(ADD_STAGE).size() > 0 || Utils.plainFilenamesIn(REMOVE_STAGE).size() > 0) {
+        if (plainFilenamesIn(ADD_STAGE).size() > 0 || plainFilenamesIn(REMOVE_STAGE).size() > 0) {
             System.out.println("You have uncommitted changes.");
             return;
         }
 
         // Get the current branch and the target branch
-        String currentBranch = Utils.readContentsAsString(HEAD).trim();
-        File givenBranchDir = Utils.join(LATEST_COMMITS, branchName);
+        String currentBranch = readContentsAsString(HEAD).trim();
+        File givenBranchDir = branchDir(branchName);
 
         // Check if the target branch exists
-        if (!givenBranchDir.exists()) {
+        if (!exists(givenBranchDir)) {
             System.out.println("A branch with that name does not exist.");
             return;
         }
@@ -921,60 +1678,334 @@ public class Repository {
         }
 
         // Find the split point
+        long phase = trace.start();
+        Event mergeBase = events.begin(FlightEvents.MERGE_BASE);
         Commit splitPoint = findSplitPoint(currentBranch, branchName);
+        trace.stop("merge.findSplitPoint", phase);
         Commit currentCommit = getLatestCommit(Utils.join(LATEST_COMMITS, currentBranch));
         Commit givenCommit = getLatestCommit(givenBranchDir);
+        // Histories fetched from another repository may share no commit;
+        // those are merged as if they had split from an empty commit
+        String splitID = splitPoint == null ? "" : splitPoint.returnID();
+        Map<String, ObjectId> splitBlobs = splitPoint == null
+                ? new HashMap<>() : splitPoint.getFileBlobs();
+        events.commit(mergeBase, currentCommit.returnID(), givenCommit.returnID(), splitID);
 
         // Handle cases where the split point is the current branch or the target branch
-        if (splitPoint.returnID().equals(givenCommit.returnID())) {
+        if (splitID.equals(givenCommit.returnID())) {
             System.out.println("Given branch is an ancestor of the current branch.");
             return;
         }
-        if (splitPoint.returnID().equals(currentCommit.returnID())) {
-            switchBranch(branchName);
+        File currentBranchDir = Utils.join(LATEST_COMMITS, currentBranch);
+        if (splitID.equals(currentCommit.returnID())) {
+            if (!checkout) {
+                if (!refs.compareAndSet(currentBranchDir, currentCommit.returnID(),
+                        givenCommit.returnID())) {
+                    System.out.println(BRANCH_MOVED_MESSAGE);
+                    return;
+                }
+            } else if (givenBranchDir.equals(Utils.join(LATEST_COMMITS, branchName))) {
+                switchBranch(branchName);
+            } else {
+                // A fetched branch cannot become HEAD, so move the current
+                // branch to it instead
+                for (String fileName : plainFilenamesIn(CWD)) {
+                    if (!currentCommit.getFileBlobs().containsKey(fileName)
+                            && givenCommit.getFileBlobs().containsKey(fileName)) {
+                        System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                        return;
+                    }
+                }
+                if (!refs.compareAndSet(currentBranchDir, currentCommit.returnID(),
+                        givenCommit.returnID())) {
+                    System.out.println(BRANCH_MOVED_MESSAGE);
+                    return;
+                }
+                checkoutChanges(currentCommit.getFileBlobs(), givenCommit.getFileBlobs());
+            }
             System.out.println("Current branch fast-forwarded.");
             return;
         }
 
         // Check if untracked files will be overwritten or deleted
-        List<String> untrackedFiles = getUntrackedFiles();
-        for (String fileName : untrackedFiles) {
-            if (Utils.join(CWD, fileName).exists()
-                    && (givenCommit.getFileBlobs().containsKey(fileName)
-                    || !splitPoint.getFileBlobs().containsKey(fileName))) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                return;
+        if (checkout) {
+            List<String> untrackedFiles = getUntrackedFiles();
+            for (String fileName : untrackedFiles) {
+                if (exists(Utils.join(CWD, fileName))
+                        && (givenCommit.getFileBlobs().containsKey(fileName)
+                        || !splitBlobs.containsKey(fileName))) {
+                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                    return;
+                }
             }
         }
 
-        // Handle files modified in the given branch but not in the current branch since the split point
-        handleModifiedFilesInGivenButCurrentSinceSplitPoint(splitPoint, currentCommit, givenCommit);
+        // Merge the three trees
+        phase = trace.start();
+        Map<String, ObjectId> mergedBlobs = new HashMap<>();
+        boolean conflict = mergeTrees(splitBlobs, currentCommit.getFileBlobs(),
+                givenCommit.getFileBlobs(), mergedBlobs);
+        trace.stop("merge.tree", phase);
+
+        // Automatically commit the merge. The merge is only valid on the
+        // commit it was computed from, so it is rejected rather than
+        // rebuilt if another command moved the branch meanwhile.
+        String message = "Merged " + branchName + " into " + currentBranch + ".";
+        phase = trace.start();
+        Commit mergeCommit = new Commit(message, currentCommit, givenCommit);
+        mergeCommit.setFileBlobs(mergedBlobs);
+        String mergeCommitID = mergeCommit.returnID();
+        writeCommit(mergeCommitID, mergeCommit);
+        boolean moved = refs.compareAndSet(currentBranchDir, currentCommit.returnID(),
+                mergeCommitID);
+        trace.stop("merge.commit", phase);
+        if (!moved) {
+            System.out.println(BRANCH_MOVED_MESSAGE);
+            return;
+        }
+        if (conflict) {
+            System.out.println("Encountered a merge conflict.");
+        }
+
+        if (checkout) {
+            phase = trace.start();
+            checkoutChanges(currentCommit.getFileBlobs(), mergedBlobs);
+            trace.stop("merge.checkout", phase);
+        }
+    }
+
+    /**
+     * Saves the staged changes and the changes to tracked files in the
+     * working directory as a stash entry, then brings the working
+     * directory and staging area back to the current commit. Untracked
+     * files are left alone.
+     *
+     * The entry is a commit of the working files, whose first parent is
+     * the current commit and whose second parent is a commit of the
+     * staging area. Files whose stat shows them unchanged since they were
+     * last hashed keep their blob ID without being read; only the others
+     * are hashed, and stored if new, with files statted and hashed in
+     * parallel. Restoring the working directory
+     * rewrites only the files that differ from the current commit.
+     */
+    public void stashPush() {
+        String currentBranch = getCurrentBranch();
+        Commit head = getCurrentCommit();
+        Map<String, ObjectId> headBlobs = head.getFileBlobs();
+
+        // The staging area as a tree
+        long phase = trace.start();
+        Map<String, ObjectId> indexBlobs = new HashMap<>(headBlobs);
+        for (String fileName : plainFilenamesIn(ADD_STAGE)) {
+            File staged = Utils.join(ADD_STAGE, fileName);
+            String hex = sha1(staged);
+            writeBlob(staged, hex);
+            indexBlobs.put(fileName, ObjectId.fromHex(hex));
+        }
+        for (String fileName : plainFilenamesIn(REMOVE_STAGE)) {
+            indexBlobs.remove(fileName);
+        }
+
+        // The tracked working files as a tree, statted in parallel
+        Map<String, ObjectId> workingBlobs = new ConcurrentHashMap<>();
+        indexBlobs.keySet().parallelStream().forEach(fileName -> {
+            ObjectId blobID = workingBlobID(fileName, Utils.join(CWD, fileName));
+            if (blobID != null) {
+                workingBlobs.put(fileName, blobID);
+            }
+        });
+        trace.stop("stash.snapshot", phase);
+        if (indexBlobs.equals(headBlobs) && workingBlobs.equals(headBlobs)) {
+            statCache.save();
+            System.out.println("No local changes to save.");
+            return;
+        }
 
-        // Handle files modified in the same way in both branches since the split point
-        handleSameModifiedFilesInBothBranchSinceSplitPoint(splitPoint, currentCommit, givenCommit);
+        String summary = currentBranch + ": " + head.returnID().substring(0, 7) + " "
+                + head.getMessage();
+        Commit index = new Commit("index on " + summary, head);
+        index.setFileBlobs(indexBlobs);
+        writeCommit(index.returnID(), index);
+        Commit working = new Commit("WIP on " + summary, head, index);
+        working.setFileBlobs(workingBlobs);
+        writeCommit(working.returnID(), working);
+        List<String> entries = readStash();
+        entries.add(0, working.returnID());
+        writeStash(entries);
+
+        phase = trace.start();
+        checkoutChanges(workingBlobs, headBlobs);
+        clearStagingArea();
+        statCache.save();
+        trace.stop("stash.checkout", phase);
+        System.out.println("Saved working directory and index state WIP on " + summary);
+    }
 
-        // Handle files that do not exist in the split point but only exist in the given branch
-        handleFilesInGivenBranchOnlySinceSplitPoint(splitPoint, currentCommit, givenCommit);
+    /**
+     * Watches the working directory and journals the files that change,
+     * until the process is stopped, so that commands consulting the stat
+     * cache need not look at the files that did not.
+     */
+    public void monitor() {
+        if (!exists(GITLET_DIR)) {
+            System.out.println("Not in an initialized Gitlet directory.");
+            return;
+        }
+        monitor.run();
+    }
 
-        // Handle files that exist in the split point, not modified in the current branch, but do not exist in the given branch
-        handleFilesInSplitPointButNotInGivenBranch(splitPoint, currentCommit, givenCommit);
+    /**
+     * Returns the blob ID of a working file, hashing and storing it only
+     * if its stat does not show it unchanged since it was last hashed.
+     *
+     * @param fileName The file's name.
+     * @param file     The file.
+     * @return The blob ID, or null if the file does not exist.
+     */
+    private ObjectId workingBlobID(String fileName, File file) {
+        ObjectId blobID = statCache.lookup(fileName, file);
+        if (blobID != null) {
+            return blobID;
+        }
+        if (!file.isFile()) {
+            return null;
+        }
+        String hex = sha1(file);
+        writeBlob(file, hex);
+        blobID = ObjectId.fromHex(hex);
+        statCache.record(fileName, file, blobID);
+        return blobID;
+    }
 
-        // Handle conflicting files
-        boolean conflict = handleConflictingFiles(splitPoint, currentCommit, givenCommit);
+    /**
+     * Applies the newest stash entry to the current commit and removes it.
+     * The entry's changes are merged three ways with the current commit,
+     * against the commit the entry was made on, so it can be applied
+     * after the branch has moved on; files that were staged when the
+     * entry was made are staged again. Nothing is changed if a file the
+     * entry changes has local changes or is untracked. If the merge
+     * conflicts, the conflicts are left in the working directory and the
+     * entry is kept.
+     */
+    public void stashPop() {
+        List<String> entries = readStash();
+        if (entries.isEmpty()) {
+            System.out.println("No stash entries found.");
+            return;
+        }
+        Commit working = readCommit(entries.get(0));
+        Map<String, ObjectId> baseBlobs = readCommit(working.getParentID()).getFileBlobs();
+        Map<String, ObjectId> indexBlobs = readCommit(working.getMergeParentID()).getFileBlobs();
+        Map<String, ObjectId> headBlobs = getCurrentCommit().getFileBlobs();
+
+        long phase = trace.start();
+        Map<String, ObjectId> merged = new HashMap<>();
+        boolean conflict = mergeTrees(baseBlobs, headBlobs, working.getFileBlobs(), merged);
+        trace.stop("stash.merge", phase);
+
+        // Every file the merge changes must be as in the current commit
+        Set<String> touched = new TreeSet<>();
+        for (Map.Entry<String, ObjectId> entry : merged.entrySet()) {
+            if (!entry.getValue().equals(headBlobs.get(entry.getKey()))) {
+                touched.add(entry.getKey());
+            }
+        }
+        for (String fileName : headBlobs.keySet()) {
+            if (!merged.containsKey(fileName)) {
+                touched.add(fileName);
+            }
+        }
+        Set<String> staged = new HashSet<>(plainFilenamesIn(ADD_STAGE));
+        staged.addAll(plainFilenamesIn(REMOVE_STAGE));
+        for (String fileName : touched) {
+            File file = Utils.join(CWD, fileName);
+            ObjectId headBlobID = headBlobs.get(fileName);
+            if (headBlobID == null) {
+                if (exists(file)) {
+                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+                    return;
+                }
+            } else if (staged.contains(fileName)
+                    || !headBlobID.equals(workingBlobID(fileName, file))) {
+                System.out.println("Your local changes to " + fileName
+                        + " would be overwritten; commit or stash them first.");
+                return;
+            }
+        }
 
+        phase = trace.start();
+        checkoutChanges(headBlobs, merged);
         if (conflict) {
+            trace.stop("stash.checkout", phase);
+            statCache.save();
             System.out.println("Encountered a merge conflict.");
+            return;
         }
-        // Automatically commit the merge
-        String message = "Merged " + branchName + " into " + currentBranch + ".";
-        commitMerge(message, currentBranch, currentCommit, givenCommit);
+        // Stage again what was staged, where the current commit left the
+        // file as it was
+        for (String fileName : touched) {
+            ObjectId indexBlobID = indexBlobs.get(fileName);
+            if (Objects.equals(indexBlobID, baseBlobs.get(fileName))) {
+                continue;
+            }
+            ObjectId stagedBlobID = Objects.equals(headBlobs.get(fileName), baseBlobs.get(fileName))
+                    ? indexBlobID : merged.get(fileName);
+            if (stagedBlobID != null) {
+                File temp = createTempFile();
+                copyBlob(GITLET_DIR, stagedBlobID, temp);
+                Refs.moveAtomically(temp, Utils.join(ADD_STAGE, fileName));
+            } else if (headBlobs.containsKey(fileName)) {
+                writeContents(Utils.join(REMOVE_STAGE, fileName), fileName);
+            }
+        }
+        statCache.save();
+        trace.stop("stash.checkout", phase);
+        entries.remove(0);
+        writeStash(entries);
+        System.out.println("Dropped stash@{0} (" + working.returnID() + ")");
+    }
+
+    /**
+     * Prints the stash entries, newest first.
+     */
+    public void stashList() {
+        List<String> entries = readStash();
+        for (int i = 0; i < entries.size(); i += 1) {
+            System.out.println("stash@{" + i + "}: " + readCommit(entries.get(i)).getMessage());
+        }
+    }
+
+    /**
+     * Returns the IDs of the stash entries, newest first.
+     */
+    private List<String> readStash() {
+        List<String> entries = new ArrayList<>();
+        if (exists(STASH)) {
+            for (String line : readContentsAsString(STASH).split("\n")) {
+                if (!line.isEmpty()) {
+                    entries.add(line);
+                }
+            }
+        }
+        return entries;
     }
 
-    private static List<String> getUntrackedFiles() {
+    /**
+     * Replaces the stash entries atomically.
+     */
+    private void writeStash(List<String> entries) {
+        StringBuilder contents = new StringBuilder();
+        for (String entry : entries) {
+            contents.append(entry).append('\n');
+        }
+        Refs.publish(STASH, contents.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private List<String> getUntrackedFiles() {
         List<String> untrackedFiles = new ArrayList<>();
-        List<String> allFilesInCWD = Utils.plainFilenamesIn(CWD);
-        List<String> stagedFiles = Utils.plainFilenamesIn(ADD_STAGE);
-        List<String> removedFiles = Utils.plainFilenamesIn(REMOVE_STAGE);
+        List<String> allFilesInCWD = plainFilenamesIn(CWD);
+        List<String> stagedFiles = plainFilenamesIn(ADD_STAGE);
+        List<String> removedFiles = plainFilenamesIn(REMOVE_STAGE);
 
         for (String fileName : allFilesInCWD) {
             if (!stagedFiles.contains(fileName) && !removedFiles.contains(fileName) && !isTracked(fileName)) {
@@ -984,268 +2015,1542 @@ public class Repository {
         return untrackedFiles;
     }
 
-    private static boolean handleConflictingFiles(Commit splitPoint, Commit currentCommit, Commit givenCommit) {
-        Map<String, String> splitBlobs = splitPoint.getFileBlobs();
-        Map<String, String> currentBlobs = currentCommit.getFileBlobs();
-        Map<String, String> givenBlobs = givenCommit.getFileBlobs();
-        boolean conflict = false;
-
-        Set<String> allFiles = new HashSet<>();
-        allFiles.addAll(splitBlobs.keySet());
+    /**
+     * Three-way merges the split point's, the current branch's and the
+     * given branch's file maps into merged, visiting every file name once
+     * in sorted order. Files renamed on one side are first moved to their
+     * new names on the other side and at the split point, so that a rename
+     * merges with the other side's edits to the file instead of turning
+     * into a removal and an addition. A file changed on one side only takes that side's
+     * version (or is left out if that side removed it); a file changed the
+     * same way on both sides keeps that version. Files both sides changed
+     * differently are merged line by line, and files one side modified and
+     * the other removed become whole-file conflicts; either way the result
+     * is written to the blob store.
+     *
+     * @param splitBlobs   The split point's files.
+     * @param currentBlobs The current branch's files.
+     * @param givenBlobs   The given branch's files.
+     * @param merged       Receives the merged files.
+     * @return true if any file conflicted.
+     */
+    private boolean mergeTrees(Map<String, ObjectId> splitBlobs, Map<String, ObjectId> currentBlobs,
+                               Map<String, ObjectId> givenBlobs, Map<String, ObjectId> merged) {
+        long phase = trace.start();
+        splitBlobs = new HashMap<>(splitBlobs);
+        currentBlobs = new HashMap<>(currentBlobs);
+        givenBlobs = new HashMap<>(givenBlobs);
+        Map<String, String> currentRenames = findRenames(splitBlobs, currentBlobs);
+        Map<String, String> givenRenames = findRenames(splitBlobs, givenBlobs);
+        followRenames(givenRenames, currentRenames, splitBlobs, currentBlobs);
+        followRenames(currentRenames, givenRenames, splitBlobs, givenBlobs);
+        trace.stop("merge.renames", phase);
+
+        Set<String> allFiles = new TreeSet<>(splitBlobs.keySet());
         allFiles.addAll(currentBlobs.keySet());
         allFiles.addAll(givenBlobs.keySet());
+        boolean conflict = false;
 
         for (String fileName : allFiles) {
-            String splitBlob = splitBlobs.get(fileName);
-            String currentBlob = currentBlobs.get(fileName);
-            String givenBlob = givenBlobs.get(fileName);
-
-            boolean splitExists = splitBlob != null;
-            boolean currentExists = currentBlob != null;
-            boolean givenExists = givenBlob != null;
-
-            boolean currentModified = splitExists && currentExists && !splitBlob.equals(currentBlob);
-            boolean givenModified = splitExists && givenExists && !splitBlob.equals(givenBlob);
-
-            // Case 1: Both current and given branches modified the file, and the contents are different
-            if (currentModified && givenModified && !currentBlob.equals(givenBlob)) {
-                conflict = true;
-                handleConflict(fileName, currentBlob, givenBlob);
-                // Case 2: The file does not exist in the split point but exists in both current and given branches, and the contents are different
-            } else if (!splitExists && currentExists && givenExists && !currentBlob.equals(givenBlob)) {
-                conflict = true;
-                handleConflict(fileName, currentBlob, givenBlob);
-                // Case 3: The file exists in the split point but was deleted in the current branch and modified in the given branch
-            } else if (splitExists && !currentExists && givenModified) {
-                conflict = true;
-                handleConflict(fileName, null, givenBlob);
-                // Case 4: The file exists in the split point but was modified in the current branch and deleted in the given branch
-            } else if (splitExists && currentModified && !givenExists) {
+            ObjectId splitBlob = splitBlobs.get(fileName);
+            ObjectId currentBlob = currentBlobs.get(fileName);
+            ObjectId givenBlob = givenBlobs.get(fileName);
+            ObjectId result;
+
+            if (Objects.equals(currentBlob, givenBlob) || Objects.equals(splitBlob, givenBlob)) {
+                // Same on both sides, or unchanged in the given branch
+                result = currentBlob;
+            } else if (Objects.equals(splitBlob, currentBlob)) {
+                // Changed only in the given branch
+                result = givenBlob;
+            } else if (currentBlob != null && givenBlob != null) {
+                // Changed differently on both sides: merge line by line
+                LineMerge merge = new LineMerge(
+                        splitBlob == null ? new ArrayList<>() : readBlobLines(splitBlob),
+                        readBlobLines(currentBlob),
+                        readBlobLines(givenBlob));
+                File temp = createTempFile();
+                writeContents(temp, merge.contents());
+                result = storeTempBlob(temp);
+                conflict |= merge.conflicts() > 0;
+            } else {
+                // Modified on one side and removed on the other
+                result = writeConflictBlob(currentBlob, givenBlob);
                 conflict = true;
-                handleConflict(fileName, currentBlob, null);
             }
-        }
 
+            if (result != null) {
+                merged.put(fileName, result);
+            }
+        }
         return conflict;
     }
 
-    private static void handleConflict(String fileName, String currentBlob, String givenBlob) {
-        String currentContent = "";
-        if (currentBlob == null) {
-            currentContent = "";
-        } else {
-            currentContent = Utils.readContentsAsString(Utils.join(BLOBS_DIR, currentBlob));
+    /**
+     * Finds the files of one version that another version renamed.
+     *
+     * @param fromBlobs The old version's files.
+     * @param toBlobs   The new version's files.
+     * @return The new name of each renamed file, by old name.
+     */
+    private Map<String, String> findRenames(Map<String, ObjectId> fromBlobs,
+                                            Map<String, ObjectId> toBlobs) {
+        RenameDetector detector = newRenameDetector(false);
+        for (Map.Entry<String, ObjectId> entry : fromBlobs.entrySet()) {
+            if (!toBlobs.containsKey(entry.getKey())) {
+                ObjectId blobID = entry.getValue();
+                detector.addRemoved(entry.getKey(), blobID, () -> readBlobLines(blobID));
+            }
+        }
+        for (Map.Entry<String, ObjectId> entry : toBlobs.entrySet()) {
+            if (!fromBlobs.containsKey(entry.getKey())) {
+                ObjectId blobID = entry.getValue();
+                detector.addAdded(entry.getKey(), blobID, () -> readBlobLines(blobID));
+            }
+        }
+        Map<String, String> renames = new HashMap<>();
+        for (RenameDetector.Match match : detector.detect()) {
+            renames.put(match.oldName, match.newName);
         }
-        String givenContent = givenBlob == null ? "" : Utils.readContentsAsString(Utils.join(BLOBS_DIR, givenBlob));
+        return renames;
+    }
 
-        String conflictContent = "<<<<<<< HEAD\n" + currentContent + "=======\n" + givenContent + ">>>>>>>\n";
-        File targetFile = Utils.join(CWD, fileName);
-        Utils.writeContents(targetFile, conflictContent);
+    /**
+     * Applies one side's renames to the other side's files and the split
+     * point's. Files both sides renamed, files the other side removed and
+     * renames onto a name the other side already uses are left alone.
+     *
+     * @param renames      The renaming side's new names, by old name.
+     * @param otherRenames The other side's new names, by old name.
+     * @param splitBlobs   The split point's files, updated in place.
+     * @param otherBlobs   The other side's files, updated in place.
+     */
+    private void followRenames(Map<String, String> renames, Map<String, String> otherRenames,
+                               Map<String, ObjectId> splitBlobs, Map<String, ObjectId> otherBlobs) {
+        for (Map.Entry<String, String> rename : renames.entrySet()) {
+            String oldName = rename.getKey();
+            String newName = rename.getValue();
+            if (otherRenames.containsKey(oldName) || !otherBlobs.containsKey(oldName)
+                    || otherBlobs.containsKey(newName)) {
+                continue;
+            }
+            otherBlobs.put(newName, otherBlobs.remove(oldName));
+            splitBlobs.put(newName, splitBlobs.remove(oldName));
+        }
+    }
 
-        // Stage the conflict file for addition
-        stageFileForAddition(fileName);
+    /**
+     * Stores a whole-file conflict between two versions of a file as a
+     * blob, streaming both versions straight from the blob store.
+     *
+     * @param currentBlob The current branch's blob, or null if removed.
+     * @param givenBlob   The given branch's blob, or null if removed.
+     * @return The ID of the conflict blob.
+     */
+    private ObjectId writeConflictBlob(ObjectId currentBlob, ObjectId givenBlob) {
+        File temp = createTempFile();
+        try (InputStream current = currentBlob == null ? null : openBlob(currentBlob);
+             InputStream given = givenBlob == null ? null : openBlob(givenBlob)) {
+            Utils.writeStreamed(temp, "<<<<<<< HEAD\n", current == null ? "" : current,
+                    "=======\n", given == null ? "" : given, ">>>>>>>\n");
+        } catch (IOException e) {
+            throw error("Internal error reading blob.");
+        }
+        trace.count(Trace.BYTES_WRITTEN, temp.length());
+        return storeTempBlob(temp);
     }
 
-    private static void commitMerge(String message, String cBranch, Commit c, Commit g) {
+    /**
+     * Brings the working directory from one tree to another, touching only
+     * the files whose blobs differ between them.
+     *
+     * @param fromBlobs The files the working directory has now.
+     * @param toBlobs   The files it should have.
+     */
+    private void checkoutChanges(Map<String, ObjectId> fromBlobs, Map<String, ObjectId> toBlobs) {
+        for (Map.Entry<String, ObjectId> entry : toBlobs.entrySet()) {
+            if (!entry.getValue().equals(fromBlobs.get(entry.getKey()))) {
+                checkoutBlob(entry.getValue(), entry.getKey());
+            }
+        }
+        for (String fileName : fromBlobs.keySet()) {
+            if (!toBlobs.containsKey(fileName)) {
+                Utils.restrictedDelete(Utils.join(CWD, fileName));
+            }
+        }
+    }
 
-        // Check if the staging area is empty
-        File[] stagedAddFiles = ADD_STAGE.listFiles();
-        File[] stagedRemoveFiles = REMOVE_STAGE.listFiles();
+    /**
+     * Points a branch at a commit, creating the branch if needed. The
+     * branch's tip is replaced atomically, so commands reading it at the
+     * same time see either the old commit or the new one.
+     *
+     * @param branchDir The directory of the branch to move.
+     * @param commitID  The ID of the commit.
+     */
+    private void moveBranch(File branchDir, String commitID) {
+        refs.write(branchDir, commitID);
+    }
 
-        // Create a new fileBlobs map inheriting from the latest commit
-        Map<String, String> newFileBlobs = new HashMap<>(c.getFileBlobs());
+    /**
+     * Adds a commit to a branch with an optimistic update: the commit is
+     * built on the tip the caller read and stored, and the branch is then
+     * moved to it only if it still points at that tip. If another command
+     * moved the branch in between, the commit is built again on the new
+     * tip and the move retried. Commits built for a failed move are left
+     * unreferenced, for gc to delete.
+     *
+     * @param branchDir The directory of the branch.
+     * @param tipID     The ID of the tip the caller read.
+     * @param build     Builds the new commit on a given tip, or returns
+     *                  null if it cannot be built on that tip.
+     * @return The ID of the new commit, or null if it was rejected, or the
+     *         branch kept moving.
+     */
+    private String advanceBranch(File branchDir, String tipID, Function<Commit, Commit> build) {
+        for (int attempt = 0; attempt < MAX_REF_UPDATE_ATTEMPTS && tipID != null; attempt += 1) {
+            Commit commit = build.apply(readCommit(tipID));
+            if (commit == null) {
+                return null;
+            }
+            String commitID = commit.returnID();
+            writeCommit(commitID, commit);
+            if (refs.compareAndSet(branchDir, tipID, commitID)) {
+                return commitID;
+            }
+            trace.count(REF_UPDATE_RETRIES, 1);
+            tipID = getLatestCommitID(branchDir);
+        }
+        return null;
+    }
 
-        // Add all files from the staging area to the new commit
-        if (stagedAddFiles != null) {
-            for (File file : stagedAddFiles) {
-                String blobID = Utils.sha1(Utils.readContents(file));
-                File blobFile = Utils.join(BLOBS_DIR, blobID);
+    /**
+     * Commits files straight to a branch, without the working directory,
+     * the staging area or the repository lock, so that many writers can
+     * commit to different branches at once.
+     *
+     * @param branchName The branch to commit to.
+     * @param files      The names and new contents of the files to add
+     *                   or replace; other files are kept.
+     * @param message    The commit message.
+     * @return The ID of the new commit, or null if the branch does not
+     *         exist or kept moving.
+     */
+    String commitFiles(String branchName, Map<String, byte[]> files, String message) {
+        Map<String, ObjectId> changes = new HashMap<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            File temp = createTempFile();
+            writeContents(temp, file.getValue());
+            changes.put(file.getKey(), storeTempBlob(temp));
+        }
+        File branchDir = branchDir(branchName);
+        return advanceBranch(branchDir, getLatestCommitID(branchDir), tip -> {
+            Map<String, ObjectId> fileBlobs = new HashMap<>(tip.getFileBlobs());
+            fileBlobs.putAll(changes);
+            Commit commit = new Commit(message, tip);
+            commit.setFileBlobs(fileBlobs);
+            return commit;
+        });
+    }
 
-                try {
-                    Files.copy(file.toPath(), blobFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Points HEAD at a branch, replacing the HEAD file atomically.
+     *
+     * @param branchName The name of the branch.
+     */
+    private void writeHead(String branchName) {
+        byte[] contents = branchName.getBytes(StandardCharsets.UTF_8);
+        trace.count(Trace.BYTES_WRITTEN, contents.length);
+        Refs.publish(HEAD, contents);
+    }
 
-                // Update newFileBlobs with the staged file
-                newFileBlobs.put(file.getName(), blobID);
+    /**
+     * Returns the directory holding a branch's latest commit. Names of
+     * the form remote/branch refer to branches fetched from a remote.
+     *
+     * @param branchName The name of the branch.
+     * @return The branch's directory, which may not exist.
+     */
+    private File branchDir(String branchName) {
+        int slash = branchName.indexOf('/');
+        if (slash > 0) {
+            File remoteDir = Utils.join(REMOTES_DIR, branchName.substring(0, slash));
+            if (exists(remoteDir)) {
+                return Utils.join(remoteDir, "branches", branchName.substring(slash + 1));
             }
         }
+        return Utils.join(LATEST_COMMITS, branchName);
+    }
 
-        // Remove files in the staging remove area from the new commit
-        if (stagedRemoveFiles != null) {
-            for (File file : stagedRemoveFiles) {
-                newFileBlobs.remove(file.getName());
+    private Commit findSplitPoint(String currentBranch, String givenBranch) {
+        // Get the latest commits of the current branch and the target branch
+        String currentCommitID = getLatestCommitID(Utils.join(LATEST_COMMITS, currentBranch));
+        String givenCommitID = getLatestCommitID(branchDir(givenBranch));
+
+        // Collect IDs of all ancestors of the current branch
+        ObjectIdSet currentAncestors = new ObjectIdSet();
+        Iterator<Commit> ancestors = new CommitIterator(this::readCommit,
+                List.of(currentCommitID), CommitIterator.DATE);
+        while (ancestors.hasNext()) {
+            currentAncestors.add(ancestors.next().returnID());
+        }
+
+        // Use BFS to traverse all ancestors of the given branch, holding
+        // only the IDs of the commits still to visit
+        ObjectIdSet visited = new ObjectIdSet();
+        Queue<String> queue = new LinkedList<>();
+        queue.add(givenCommitID);
+        while (!queue.isEmpty()) {
+            String commitID = queue.poll();
+            if (commitID == null || !visited.add(commitID)) {
+                continue;
+            }
+            if (currentAncestors.contains(commitID)) {
+                return readCommit(commitID);
+            }
+            Commit commit = readCommit(commitID);
+            queue.add(commit.getParentID());
+            if (commit.isMerge()) {
+                queue.add(commit.getMergeParentID());
             }
         }
 
-        // Create a new commit
-        Commit newCommit = new Commit(message, c, g);
-        newCommit.setFileBlobs(newFileBlobs);
-        String newCommitID = newCommit.returnID();
-        Utils.writeObject(Utils.join(COMMITS_DIR, newCommitID), newCommit);
+        return null; // The branches have no common ancestor
+    }
 
-        // Update the latest commit ID for the current branch
-        // Remove old commit ID file in the branch directory
-        File branchDir = join(LATEST_COMMITS, cBranch);
-        for (File file : branchDir.listFiles()) {
-            file.delete();
+    /**
+     * Saves the location of another repository under a name, so that its
+     * branches can be fetched from and pushed to.
+     *
+     * @param remoteName The name of the remote.
+     * @param remotePath The path of the remote's .gitlet directory, with
+     *                   "/" as the separator.
+     */
+    public void addRemote(String remoteName, String remotePath) {
+        File remoteDir = Utils.join(REMOTES_DIR, remoteName);
+        if (exists(remoteDir)) {
+            System.out.println("A remote with that name already exists.");
+            return;
         }
-        File newCommitFile = Utils.join(branchDir, newCommitID);
-        Utils.writeObject(newCommitFile, newCommit);
+        Utils.join(remoteDir, "branches").mkdirs();
+        byte[] contents = remotePath.replace("/", File.separator).getBytes(StandardCharsets.UTF_8);
+        trace.count(Trace.BYTES_WRITTEN, contents.length);
+        Refs.publish(Utils.join(remoteDir, "location"), contents);
+    }
 
-        // Clear the staging area
-        if (stagedAddFiles != null) {
-            for (File file : stagedAddFiles) {
-                file.delete();
+    /**
+     * Forgets a remote and the branches fetched from it. The remote's
+     * directory is first renamed out of the remotes directory in one
+     * step, so that a fetch or push running at the same time sees either
+     * the whole remote or none of it.
+     *
+     * @param remoteName The name of the remote.
+     */
+    public void removeRemote(String remoteName) {
+        File remoteDir = Utils.join(REMOTES_DIR, remoteName);
+        if (!exists(remoteDir)) {
+            System.out.println("A remote with that name does not exist.");
+            return;
+        }
+        File removed;
+        try {
+            removed = Files.createTempDirectory(GITLET_DIR.toPath(), "rm-remote").toFile();
+        } catch (IOException e) {
+            throw error("Internal error removing remote.");
+        }
+        Refs.moveAtomically(remoteDir, Utils.join(removed, remoteName));
+        deleteRecursively(removed);
+    }
+
+    /**
+     * Copies a branch of a remote, with the objects it needs that this
+     * repository lacks, into the local branch remote/branch.
+     *
+     * @param remoteName   The name of the remote.
+     * @param remoteBranch The name of the branch in the remote.
+     */
+    public void fetch(String remoteName, String remoteBranch) {
+        fetchBranch(remoteName, remoteBranch);
+    }
+
+    /**
+     * Fetches a branch of a remote and merges it into the current branch.
+     *
+     * @param remoteName   The name of the remote.
+     * @param remoteBranch The name of the branch in the remote.
+     */
+    public void pull(String remoteName, String remoteBranch) {
+        if (fetchBranch(remoteName, remoteBranch)) {
+            merge(remoteName + "/" + remoteBranch);
+        }
+    }
+
+    /**
+     * Fetches a branch of a remote, as for fetch.
+     *
+     * @return true if the branch was fetched.
+     */
+    private boolean fetchBranch(String remoteName, String remoteBranch) {
+        File remoteStore = remoteStore(remoteName);
+        if (remoteStore == null) {
+            System.out.println("Remote directory not found.");
+            return false;
+        }
+        String tipID = getLatestCommitID(Utils.join(remoteStore, "latestCommits", remoteBranch));
+        if (tipID == null) {
+            System.out.println("That remote does not have that branch.");
+            return false;
+        }
+        if (!sendObjects(remoteStore, GITLET_DIR, tipID)) {
+            return false;
+        }
+        moveBranch(branchDir(remoteName + "/" + remoteBranch), tipID);
+        return true;
+    }
+
+    /**
+     * Copies the current branch's head, with the objects it needs that the
+     * remote lacks, to a branch of a remote. The remote branch must not
+     * have commits the current branch does not have.
+     *
+     * @param remoteName   The name of the remote.
+     * @param remoteBranch The name of the branch in the remote.
+     */
+    public void push(String remoteName, String remoteBranch) {
+        File remoteStore = remoteStore(remoteName);
+        if (remoteStore == null) {
+            System.out.println("Remote directory not found.");
+            return;
+        }
+        String headID = getLatestCommitID(Utils.join(LATEST_COMMITS, getCurrentBranch()));
+        File remoteBranchDir = Utils.join(remoteStore, "latestCommits", remoteBranch);
+        String remoteTipID = getLatestCommitID(remoteBranchDir);
+        if (remoteTipID != null && !isAncestor(remoteTipID, headID)) {
+            System.out.println("Please pull down remote changes before pushing.");
+            return;
+        }
+        if (!sendObjects(GITLET_DIR, remoteStore, headID)) {
+            return;
+        }
+        // Someone else may have pushed to the branch since it was read
+        if (!refs.compareAndSet(remoteBranchDir, remoteTipID, headID)) {
+            System.out.println("Please pull down remote changes before pushing.");
+        }
+    }
+
+    /**
+     * Returns the .gitlet directory of a remote, or null if the remote is
+     * not known or its directory does not exist.
+     */
+    private File remoteStore(String remoteName) {
+        File location = Utils.join(REMOTES_DIR, remoteName, "location");
+        if (!exists(location)) {
+            return null;
+        }
+        File store = new File(readContentsAsString(location));
+        return exists(store) ? store : null;
+    }
+
+    /**
+     * Returns whether one local commit is the other or one of its
+     * ancestors.
+     *
+     * @param ancestorID The possible ancestor, which need not be stored
+     *                   locally.
+     * @param commitID   The commit whose history is searched.
+     * @return true if ancestorID is in commitID's history.
+     */
+    private boolean isAncestor(String ancestorID, String commitID) {
+        if (!exists(commitFile(ancestorID))) {
+            return false;
+        }
+        Iterator<Commit> history = new CommitIterator(this::readCommit,
+                List.of(commitID), CommitIterator.DATE);
+        while (history.hasNext()) {
+            if (history.next().returnID().equals(ancestorID)) {
+                return true;
             }
         }
-        if (stagedRemoveFiles != null) {
-            for (File file : stagedRemoveFiles) {
-                file.delete();
+        return false;
+    }
+
+    /**
+     * Sends from one object store to another the history of a commit that
+     * the receiver lacks, as a single pack.
+     *
+     * @param from  The sending .gitlet directory.
+     * @param to    The receiving .gitlet directory.
+     * @param tipID The commit to send.
+     * @return true if the objects were sent; false, with the reason
+     *         printed, if the receiver rejected the pack.
+     */
+    private boolean sendObjects(File from, File to, String tipID) {
+        long phase = trace.start();
+        List<String> commits = new ArrayList<>();
+        List<String> blobs = new ArrayList<>();
+        Set<String> chunks = new LinkedHashSet<>();
+        findMissingObjects(from, tipID,
+                commitID -> exists(Pack.objectFile(to, Pack.COMMIT, commitID)),
+                blobID -> exists(Pack.objectFile(to, Pack.BLOB, blobID))
+                        || exists(Pack.objectFile(to, Pack.MANIFEST, blobID)),
+                chunkID -> exists(Pack.objectFile(to, Pack.CHUNK, chunkID)),
+                commits, blobs, chunks);
+        trace.stop("remote.negotiate", phase);
+
+        phase = trace.start();
+        Pack.Stats stats;
+        try {
+            stats = Pack.transfer(from, commits, blobs, chunks, to);
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        trace.count(Pack.OBJECTS, stats.objects);
+        trace.count(Pack.BYTES, stats.bytes);
+        trace.stop("remote.transfer", phase);
+        return true;
+    }
+
+    /**
+     * Finds the commits and blobs in the history of a commit that a
+     * receiver lacks. The walk goes back from the commit and stops at
+     * every commit the receiver has, since the receiver then has that
+     * commit's whole history too; only the blobs of the commits found are
+     * considered, and blobs of the commits it stopped at are known to be
+     * present without asking. Of the chunks of missing chunked blobs, only
+     * those the receiver lacks are wanted, so an edit to a large file
+     * sends little more than the chunks it changed.
+     *
+     * @param from    The .gitlet directory holding the history.
+     * @param tipID   The commit whose history is wanted.
+     * @param hasCommit Whether the receiver has a commit.
+     * @param hasBlob   Whether the receiver has a blob.
+     * @param hasChunk  Whether the receiver has a chunk.
+     * @param commits Receives the missing commits, each after all of its
+     *                parents, so that commits land after their parents.
+     * @param blobs   Receives the missing blobs, each once.
+     * @param chunks  Receives the missing chunks. Chunk IDs are read from
+     *                manifests that may come from another repository and
+     *                are only checked when the pack is written, so they
+     *                are kept as strings.
+     */
+    private void findMissingObjects(File from, String tipID, Predicate<String> hasCommit,
+                                    Predicate<String> hasBlob, Predicate<String> hasChunk,
+                                    List<String> commits, List<String> blobs,
+                                    Set<String> chunks) {
+        ObjectIdSet haveBlobs = new ObjectIdSet();
+        ObjectIdSet wantedBlobs = new ObjectIdSet();
+        ObjectIdSet visited = new ObjectIdSet();
+        ObjectIdSet emitted = new ObjectIdSet();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(tipID);
+        // Depth first, taking a commit off the stack only when it comes
+        // back to the top, after every parent pushed above it is done
+        while (!pending.isEmpty()) {
+            String commitID = pending.peek();
+            if (!visited.add(commitID)) {
+                pending.pop();
+                if (emitted.add(commitID)) {
+                    commits.add(commitID);
+                }
+                continue;
+            }
+            Commit commit = readCommit(from, commitID);
+            if (hasCommit.test(commitID)) {
+                haveBlobs.addAll(commit.getFileBlobs().values());
+                emitted.add(commitID);
+                pending.pop();
+                continue;
+            }
+            wantedBlobs.addAll(commit.getFileBlobs().values());
+            if (commit.isMerge() && !visited.contains(commit.getMergeParentID())) {
+                pending.push(commit.getMergeParentID());
+            }
+            if (commit.getParentID() != null && !visited.contains(commit.getParentID())) {
+                pending.push(commit.getParentID());
             }
         }
+        for (ObjectId blobID : wantedBlobs) {
+            String hex = blobID.toString();
+            if (!haveBlobs.contains(blobID) && !hasBlob.test(hex)) {
+                blobs.add(hex);
+            }
+        }
+        for (String blobID : blobs) {
+            chunks.addAll(chunksOf(from, blobID));
+        }
+        chunks.removeIf(hasChunk);
     }
 
-    private static void handleFilesInSplitPointButNotInGivenBranch(Commit s, Commit c, Commit g) {
-        Map<String, String> splitBlobs = s.getFileBlobs();
-        Map<String, String> currentBlobs = c.getFileBlobs();
-        Map<String, String> givenBlobs = g.getFileBlobs();
+    /**
+     * Writes a branch's history to a single bundle file that unbundle can
+     * read into another repository. The file is a header, listing the
+     * branch tip and the commit the bundle builds on if any, followed by a
+     * pack. An incremental bundle built on a commit holds only the commits
+     * and blobs that are not in that commit's history.
+     *
+     * @param fileName    The bundle file to write.
+     * @param branchName  The branch to bundle.
+     * @param sinceCommit The commit whose history to leave out, possibly
+     *                    abbreviated, or null for the whole history.
+     */
+    public void createBundle(String fileName, String branchName, String sinceCommit) {
+        String tipID = getLatestCommitID(branchDir(branchName));
+        if (tipID == null) {
+            System.out.println("A branch with that name does not exist.");
+            return;
+        }
+        String baseID = null;
+        ObjectIdSet baseCommits = new ObjectIdSet();
+        ObjectIdSet baseBlobs = new ObjectIdSet();
+        ObjectIdSet baseChunks = new ObjectIdSet();
+        long phase = trace.start();
+        if (sinceCommit != null) {
+            baseID = findFullCommitID(sinceCommit);
+            if (baseID == null) {
+                System.out.println("No commit with that id exists.");
+                return;
+            }
+            Iterator<Commit> base = new CommitIterator(this::readCommit,
+                    List.of(baseID), CommitIterator.DATE);
+            while (base.hasNext()) {
+                Commit commit = base.next();
+                baseCommits.add(commit.returnID());
+                baseBlobs.addAll(commit.getFileBlobs().values());
+            }
+            for (ObjectId blobID : baseBlobs) {
+                baseChunks.addAllHex(chunksOf(GITLET_DIR, blobID.toString()));
+            }
+        }
+        List<String> commits = new ArrayList<>();
+        List<String> blobs = new ArrayList<>();
+        Set<String> chunks = new LinkedHashSet<>();
+        findMissingObjects(GITLET_DIR, tipID, baseCommits::contains, baseBlobs::contains,
+                baseChunks::contains, commits, blobs, chunks);
+        trace.stop("bundle.negotiate", phase);
+
+        phase = trace.start();
+        StringBuilder header = new StringBuilder(BUNDLE_SIGNATURE).append('\n');
+        header.append(tipID).append(' ').append(branchName).append('\n');
+        if (baseID != null) {
+            header.append('-').append(baseID).append('\n');
+        }
+        header.append('\n');
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(new File(fileName.replace("/", File.separator))
+                        .getAbsoluteFile()), 1 << 16)) {
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+            Pack.Stats stats = Pack.write(out, GITLET_DIR, commits, blobs, chunks);
+            trace.count(Pack.OBJECTS, stats.objects);
+            trace.count(Pack.BYTES, stats.bytes);
+        } catch (IOException e) {
+            throw error("Internal error writing bundle.");
+        }
+        trace.stop("bundle.write", phase);
+    }
+
+    /**
+     * Reads a bundle file in one sequential pass, checking that its
+     * header holds only commit IDs and branch names, that this repository
+     * has the commit it builds on and that its pack is intact before
+     * adding any object. Each branch in the bundle is then recorded
+     * as the fetched branch bundle/branch, so that it can be merged like
+     * a branch fetched from a remote, and printed with its tip.
+     *
+     * @param fileName The bundle file.
+     */
+    public void unbundle(String fileName) {
+        File file = new File(fileName.replace("/", File.separator)).getAbsoluteFile();
+        if (!exists(file)) {
+            System.out.println("File does not exist.");
+            return;
+        }
+        long phase = trace.start();
+        Map<String, String> tips = new LinkedHashMap<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            if (!BUNDLE_SIGNATURE.equals(readLine(in))) {
+                System.out.println("Not a Gitlet bundle.");
+                return;
+            }
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                if (line.startsWith("-")) {
+                    String baseID = line.substring(1);
+                    if (!ObjectId.isId(baseID)) {
+                        System.out.println("Bundle is corrupt.");
+                        return;
+                    }
+                    if (!exists(commitFile(baseID))) {
+                        System.out.println("Bundle requires commit " + baseID + ".");
+                        return;
+                    }
+                } else {
+                    // The tip names a branch file, so both parts must be
+                    // what createBundle writes
+                    int space = line.indexOf(' ');
+                    String tipID = line.substring(0, Math.max(space, 0));
+                    String branchName = line.substring(space + 1);
+                    if (!ObjectId.isId(tipID) || !isBundledBranchName(branchName)) {
+                        System.out.println("Bundle is corrupt.");
+                        return;
+                    }
+                    tips.put(branchName, tipID);
+                }
+            }
+            Pack.Stats stats = Pack.read(in, GITLET_DIR);
+            trace.count(Pack.OBJECTS, stats.objects);
+            trace.count(Pack.BYTES, stats.bytes);
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+            return;
+        } catch (IOException e) {
+            throw error("Internal error reading bundle.");
+        }
+        trace.stop("bundle.read", phase);
 
-        for (String fileName : splitBlobs.keySet()) {
-            String splitBlob = splitBlobs.get(fileName);
-            String currentBlob = currentBlobs.get(fileName);
+        for (Map.Entry<String, String> tip : tips.entrySet()) {
+            if (!exists(commitFile(tip.getValue()))) {
+                System.out.println("Bundle is corrupt.");
+                return;
+            }
+        }
+        Utils.join(REMOTES_DIR, BUNDLE_REMOTE).mkdirs();
+        for (Map.Entry<String, String> tip : tips.entrySet()) {
+            String branchName = BUNDLE_REMOTE + "/" + tip.getKey();
+            moveBranch(branchDir(branchName), tip.getValue());
+            System.out.println(tip.getValue() + " " + branchName);
+        }
+    }
 
-            // If the file exists in the split point, not modified in the current branch, and does not exist in the given branch
-            if (splitBlob != null && splitBlob.equals(currentBlob) && !givenBlobs.containsKey(fileName)) {
-                // Delete the file and untrack it
-                Utils.restrictedDelete(fileName);
-                stageFileForRemoval(fileName);
+    /**
+     * Returns whether a branch name read from a bundle header can be
+     * recorded under bundle/ without naming a file outside it: one or more
+     * slash-separated parts, none of them empty, "." or "..".
+     */
+    private static boolean isBundledBranchName(String branchName) {
+        if (branchName.indexOf('\\') >= 0) {
+            return false;
+        }
+        for (String part : branchName.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                return false;
             }
         }
+        return true;
     }
 
-    private static void stageFileForRemoval(String fileName) {
-        File file = Utils.join(REMOVE_STAGE, fileName);
-        Utils.writeContents(file, fileName);
+    /**
+     * Reads one line, without its terminator, from a bundle header.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            line.write(c);
+        }
+        return line.toString(StandardCharsets.UTF_8);
     }
 
-    private static void handleFilesInGivenBranchOnlySinceSplitPoint(Commit s, Commit c, Commit g) {
-        Map<String, String> splitBlobs = s.getFileBlobs();
-        Map<String, String> currentBlobs = c.getFileBlobs();
-        Map<String, String> givenBlobs = g.getFileBlobs();
+    /**
+     * Reads a commit from another object store, from memory if it has been
+     * read or written before. Commit IDs identify the same commit in every
+     * store, so the cache is shared with local commits.
+     *
+     * @param store    The .gitlet directory holding the commit.
+     * @param commitID The full commit ID.
+     * @return The commit.
+     */
+    private Commit readCommit(File store, String commitID) {
+        Commit commit = commitCache.get(commitID);
+        if (commit == null) {
+            File commitFile = Pack.objectFile(store, Pack.COMMIT, commitID);
+            commit = readObject(commitFile, Commit.class);
+            commitCache.put(commitID, commit, commitFile.length());
+        }
+        return commit;
+    }
 
-        for (String fileName : givenBlobs.keySet()) {
-            // If the file does not exist in the split point and the current branch, but only exists in the given branch
-            if (!splitBlobs.containsKey(fileName) && !currentBlobs.containsKey(fileName)) {
-                // Restore the file from the given branch and stage it
-                checkoutFileFromCommit(g, fileName);
-                stageFileForAddition(fileName);
+    /**
+     * Deletes a file, or a directory and everything in it.
+     *
+     * @param file The file or directory.
+     */
+    private void deleteRecursively(File file) {
+        File[] children = listFiles(file);
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
             }
         }
+        file.delete();
     }
 
-    private static void handleSameModifiedFilesInBothBranchSinceSplitPoint(Commit s, Commit c, Commit g) {
-        Map<String, String> splitBlobs = s.getFileBlobs();
-        Map<String, String> currentBlobs = c.getFileBlobs();
-        Map<String, String> givenBlobs = g.getFileBlobs();
+    /**
+     * Creates a new repository in a directory holding the history of an
+     * existing one, and checks out its current branch there. Unless the
+     * clone is shared, commit and blob files are hard-linked into the new
+     * repository, or copied where the file system cannot link them; they
+     * never change, so the two repositories can share them safely. A shared
+     * clone instead lists the source in its alternates file and looks up
+     * every object it lacks there, so nothing but branches and working
+     * files is written. The source is saved as the remote "origin".
+     *
+     * @param source    The source repository or its .gitlet directory.
+     * @param directory The directory to create the clone in.
+     * @param shared    Whether to share the source's objects.
+     */
+    public void cloneRepository(String source, String directory, boolean shared) {
+        File sourceStore = new File(source.replace("/", File.separator)).getAbsoluteFile();
+        if (exists(Utils.join(sourceStore, GITLET_DIR.getName()))) {
+            sourceStore = Utils.join(sourceStore, GITLET_DIR.getName());
+        }
+        File sourceHead = Utils.join(sourceStore, HEAD.getName());
+        if (!exists(sourceHead)) {
+            System.out.println("Remote directory not found.");
+            return;
+        }
+        File target = new File(directory.replace("/", File.separator)).getAbsoluteFile();
+        String[] existing = target.list();
+        if (existing != null && existing.length > 0) {
+            System.out.println("Destination path already exists and is not an empty directory.");
+            return;
+        }
+        File store = Utils.join(target, GITLET_DIR.getName());
+        for (File dir : List.of(COMMITS_DIR, BLOBS_DIR, CHUNKS_DIR, MANIFESTS_DIR, ADD_STAGE,
+                REMOVE_STAGE, LATEST_COMMITS)) {
+            Utils.join(store, GITLET_DIR.toPath().relativize(dir.toPath()).toString()).mkdirs();
+        }
 
-        for (String fileName : splitBlobs.keySet()) {
-            String splitBlob = splitBlobs.get(fileName);
-            String currentBlob = currentBlobs.get(fileName);
-            String givenBlob = givenBlobs.get(fileName);
+        // Objects
+        long phase = trace.start();
+        List<File> sourceAlternates = Pack.readAlternates(sourceStore);
+        if (shared) {
+            List<String> lines = new ArrayList<>();
+            lines.add(sourceStore.getPath());
+            for (File alternate : sourceAlternates) {
+                lines.add(alternate.getPath());
+            }
+            writeContents(Utils.join(store, Pack.ALTERNATES), String.join("\n", lines) + "\n");
+        } else {
+            boolean canLink = true;
+            for (String dirName : List.of("commits", "blobs", "chunks", "manifests")) {
+                File[] objects = listFiles(Utils.join(sourceStore, dirName));
+                for (File object : objects == null ? new File[0] : objects) {
+                    File copy = Utils.join(store, dirName, object.getName());
+                    if (canLink) {
+                        try {
+                            Files.createLink(copy.toPath(), object.toPath());
+                            trace.count(FILES_LINKED, 1);
+                            continue;
+                        } catch (IOException | UnsupportedOperationException e) {
+                            canLink = false;
+                        }
+                    }
+                    copyFile(object, copy);
+                }
+            }
+            File alternatesFile = Utils.join(sourceStore, Pack.ALTERNATES);
+            if (exists(alternatesFile)) {
+                copyFile(alternatesFile, Utils.join(store, Pack.ALTERNATES));
+            }
+        }
+        // Copied, never linked, as each repository appends to its own
+        File graph = Utils.join(sourceStore, COMMIT_GRAPH.getName());
+        if (exists(graph)) {
+            copyFile(graph, Utils.join(store, COMMIT_GRAPH.getName()));
+        }
+        trace.stop("clone.objects", phase);
 
-            // Check if the file is modified in the same way in both branches (same content or both deleted)
-            if (currentBlob != null && currentBlob.equals(givenBlob)) {
-                continue; // File has the same content in both branches, keep unchanged
+        // Branches, HEAD and the origin remote
+        File[] branches = listFiles(Utils.join(sourceStore, LATEST_COMMITS.getName()));
+        for (File branch : branches == null ? new File[0] : branches) {
+            File branchCopy = Utils.join(store, LATEST_COMMITS.getName(), branch.getName());
+            String tipID = getLatestCommitID(branch);
+            if (tipID != null) {
+                moveBranch(branchCopy, tipID);
             }
+        }
+        String headBranch = readContentsAsString(sourceHead).trim();
+        writeContents(Utils.join(store, HEAD.getName()), headBranch);
+        File origin = Utils.join(store, REMOTES_DIR.getName(), "origin");
+        Utils.join(origin, "branches").mkdirs();
+        writeContents(Utils.join(origin, "location"), sourceStore.getPath());
+
+        // Working files, which are always copies
+        phase = trace.start();
+        String headID = getLatestCommitID(
+                Utils.join(sourceStore, LATEST_COMMITS.getName(), headBranch));
+        if (headID != null) {
+            Commit head = readCommit(sourceStore, headID);
+            for (Map.Entry<String, ObjectId> entry : head.getFileBlobs().entrySet()) {
+                copyBlob(sourceStore, entry.getValue(), Utils.join(target, entry.getKey()));
+            }
+        }
+        trace.stop("clone.checkout", phase);
+    }
 
-            if (currentBlob == null && givenBlob == null && !Utils.join(CWD, fileName).exists()) {
-                continue; // File is deleted in both branches, and does not exist in the working directory, keep unchanged
+    /**
+     * Deletes the commits and blobs that nothing refers to any more, such
+     * as those left behind by reset, rm-branch and repeated adds. An
+     * object is kept if it is reachable from a branch, from a branch
+     * fetched from a remote or bundle, or, for blobs, matches a file in the
+     * staging area, which a commit may be about to store. Marking walks the
+     * history breadth first, decoding each level of commits in parallel
+     * and collecting the live commits and blobs in ObjectIdSets; the
+     * chunks of live chunked blobs are live too.
+     * Unreachable objects are only deleted once they are older than the
+     * grace period, so that objects written by a command running at the
+     * same time, or fetched but not yet referred to, survive. A pruneNow
+     * collection uses a far shorter grace period for objects, still long
+     * enough for a command writing objects without the lock to refer to
+     * them, and keeps the full one for the temporary files a command
+     * writes before renaming them into place. Objects in alternate stores
+     * are never touched. A repository whose store is an alternate of a
+     * shared clone cannot see that clone's branches, so it relies on the
+     * grace period as well.
+     *
+     * @param pruneNow Whether to delete unreachable objects past the
+     *                 short grace period rather than the full one.
+     */
+    public void gc(boolean pruneNow) {
+        long phase = trace.start();
+        ObjectIdSet liveCommits = new ObjectIdSet();
+        ObjectIdSet liveBlobs = new ObjectIdSet();
+        List<String> level = new ArrayList<>();
+        for (String tipID : gcRoots()) {
+            if (liveCommits.add(tipID)) {
+                level.add(tipID);
             }
         }
+        while (!level.isEmpty()) {
+            // Decoding is the slow part; the sets are filled on this thread
+            List<Commit> commits = level.parallelStream()
+                    .map(this::readCommit)
+                    .collect(Collectors.toList());
+            level = new ArrayList<>();
+            for (Commit commit : commits) {
+                liveBlobs.addAll(commit.getFileBlobs().values());
+                if (commit.getParentID() != null && liveCommits.add(commit.getParentID())) {
+                    level.add(commit.getParentID());
+                }
+                if (commit.isMerge() && liveCommits.add(commit.getMergeParentID())) {
+                    level.add(commit.getMergeParentID());
+                }
+            }
+        }
+        File[] staged = listFiles(ADD_STAGE);
+        for (File file : staged == null ? new File[0] : staged) {
+            liveBlobs.add(sha1(file));
+        }
+        List<String> liveBlobIDs = new ArrayList<>(liveBlobs.size());
+        for (ObjectId blobID : liveBlobs) {
+            liveBlobIDs.add(blobID.toString());
+        }
+        Set<String> liveChunks = liveBlobIDs.parallelStream()
+                .flatMap(blobID -> chunksOf(GITLET_DIR, blobID).stream())
+                .collect(Collectors.toSet());
+        trace.stop("gc.mark", phase);
+
+        // Rewrite the commit graph with a record for every live commit
+        phase = trace.start();
+        Map<String, CommitGraph.Entry> graph = CommitGraph.read(COMMIT_GRAPH);
+        List<String> liveCommitIDs = new ArrayList<>(liveCommits.size());
+        for (ObjectId commitID : liveCommits) {
+            liveCommitIDs.add(commitID.toString());
+        }
+        List<CommitGraph.Entry> liveEntries = liveCommitIDs.parallelStream()
+                .map(commitID -> {
+                    CommitGraph.Entry entry = graph.get(commitID);
+                    if (entry != null) {
+                        return entry;
+                    }
+                    Commit commit = readCommit(commitID);
+                    return CommitGraph.entry(commitID, commit, changedPaths(commit));
+                })
+                .collect(Collectors.toList());
+        CommitGraph.write(COMMIT_GRAPH, liveEntries);
+        trace.stop("gc.graph", phase);
+
+        phase = trace.start();
+        long now = System.currentTimeMillis();
+        long tempCutoff = now - gcGraceSeconds * 1000;
+        long cutoff = pruneNow ? now - pruneNowGraceSeconds * 1000 : tempCutoff;
+        long[] pruned = new long[2];
+        sweep(COMMITS_DIR, liveCommits::contains, cutoff, tempCutoff, pruned);
+        sweep(BLOBS_DIR, liveBlobs::contains, cutoff, tempCutoff, pruned);
+        sweep(MANIFESTS_DIR, liveBlobs::contains, cutoff, tempCutoff, pruned);
+        sweep(CHUNKS_DIR, liveChunks::contains, cutoff, tempCutoff, pruned);
+        // Temporary files left by interrupted commands
+        sweep(GITLET_DIR, name -> false, cutoff, tempCutoff, pruned);
+        File[] blames = listFiles(BLAME_CACHE, File::isFile);
+        for (File file : blames == null ? new File[0] : blames) {
+            String commitID = file.getName().substring(0, UID_LENGTH);
+            if (!liveCommits.contains(commitID)) {
+                file.delete();
+            }
+        }
+        trace.stop("gc.sweep", phase);
+        trace.count(OBJECTS_PRUNED, pruned[0]);
+        System.out.println("Removed " + pruned[0] + " objects, " + pruned[1] + " bytes.");
     }
 
-    private static void handleModifiedFilesInGivenButCurrentSinceSplitPoint(Commit s, Commit c, Commit g) {
-        Map<String, String> splitBlobs = s.getFileBlobs();
-        Map<String, String> currentBlobs = c.getFileBlobs();
-        Map<String, String> givenBlobs = g.getFileBlobs();
+    /**
+     * Returns the IDs of the commits garbage collection starts marking
+     * from: the tips of all branches and of all fetched branches, and the
+     * stash entries.
+     *
+     * @return The commit IDs.
+     */
+    private List<String> gcRoots() {
+        List<File> branchDirs = new ArrayList<>();
+        File[] branches = listFiles(LATEST_COMMITS);
+        branchDirs.addAll(Arrays.asList(branches == null ? new File[0] : branches));
+        File[] remotes = listFiles(REMOTES_DIR);
+        for (File remote : remotes == null ? new File[0] : remotes) {
+            File[] fetched = listFiles(Utils.join(remote, "branches"));
+            branchDirs.addAll(Arrays.asList(fetched == null ? new File[0] : fetched));
+        }
+        List<String> roots = new ArrayList<>();
+        for (File branchDir : branchDirs) {
+            String tipID = getLatestCommitID(branchDir);
+            if (tipID != null) {
+                roots.add(tipID);
+            }
+        }
+        roots.addAll(readStash());
+        return roots;
+    }
 
-        for (String fileName : givenBlobs.keySet()) {
-            String splitBlob = splitBlobs.get(fileName);
-            String currentBlob = currentBlobs.get(fileName);
-            String givenBlob = givenBlobs.get(fileName);
+    /**
+     * Deletes the plain files in a directory that are not live and were
+     * last modified before the cutoff. Temporary files may belong to a
+     * command that is about to rename them into place, so they have a
+     * cutoff of their own that pruneNow does not shorten.
+     *
+     * @param dir        The directory.
+     * @param live       Whether a file name is one to keep.
+     * @param cutoff     Time in milliseconds; younger objects are kept.
+     * @param tempCutoff Time in milliseconds; younger temporary files
+     *                   are kept.
+     * @param pruned     Counts of files and bytes deleted, added to.
+     */
+    private void sweep(File dir, Predicate<String> live, long cutoff, long tempCutoff,
+                       long[] pruned) {
+        File[] files = listFiles(dir, File::isFile);
+        for (File file : files == null ? new File[0] : files) {
+            boolean temp = file.getName().endsWith(".tmp");
+            if (live.test(file.getName())
+                    || (dir == GITLET_DIR && !temp)
+                    || file.lastModified() >= (temp ? tempCutoff : cutoff)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                pruned[0] += 1;
+                pruned[1] += length;
+            }
+        }
+    }
+
+    /*
+     * Instrumented I/O. Every read, write, copy, stat and listing done by a
+     * command goes through these so that the trace sees it.
+     */
 
-            // If the file exists in the split point, not modified in the current branch, but modified in the given branch
-            if (splitBlob != null && splitBlob.equals(currentBlob) && !splitBlob.equals(givenBlob)) {
-                // Restore the file from the given branch and stage it
-                checkoutFileFromCommit(g, fileName);
-                stageFileForAddition(fileName);
+    private byte[] readContents(File file) {
+        byte[] contents = Utils.readContents(file);
+        trace.count(Trace.BYTES_READ, contents.length);
+        return contents;
+    }
+
+    private String readContentsAsString(File file) {
+        return new String(readContents(file), StandardCharsets.UTF_8);
+    }
+
+    private void writeContents(File file, Object... contents) {
+        if (trace.isEnabled()) {
+            long length = 0;
+            for (Object obj : contents) {
+                length += obj instanceof byte[]
+                        ? ((byte[]) obj).length
+                        : ((String) obj).getBytes(StandardCharsets.UTF_8).length;
             }
+            trace.count(Trace.BYTES_WRITTEN, length);
+        }
+        Utils.writeContents(file, contents);
+    }
+
+    private <T extends Serializable> T readObject(File file, Class<T> expectedClass) {
+        Event event = events.begin(FlightEvents.OBJECT_READ);
+        if (trace.isEnabled()) {
+            trace.count(Trace.OBJECTS_READ, 1);
+            trace.count(Trace.OBJECT_BYTES_READ, file.length());
         }
+        T result = Utils.readObject(file, expectedClass);
+        if (event != null) {
+            events.commit(event, objectType(expectedClass), file.getName(), file.length());
+        }
+        return result;
+    }
+
+    private void writeObject(File file, Serializable obj) {
+        Event event = events.begin(FlightEvents.OBJECT_WRITE);
+        byte[] contents = Utils.serialize(obj);
+        trace.count(Trace.OBJECTS_WRITTEN, 1);
+        trace.count(Trace.OBJECT_BYTES_WRITTEN, contents.length);
+        Utils.writeContents(file, contents);
+        if (event != null) {
+            events.commit(event, objectType(obj.getClass()), file.getName(),
+                    (long) contents.length);
+        }
+    }
+
+    private static String objectType(Class<?> type) {
+        return type.getSimpleName().toLowerCase();
+    }
+
+    /**
+     * Stores the contents of a staged file as the blob with the given ID,
+     * unless that blob is already stored. Blobs are named by the SHA-1 of
+     * their contents, so an existing blob never needs rewriting; the copy
+     * goes through a temporary file so that a blob which exists is always
+     * complete. Files of at least the chunk threshold are stored in chunks.
+     *
+     * @param source The staged file.
+     * @param blobID The SHA-1 of its contents.
+     */
+    private void writeBlob(File source, String blobID) {
+        if (isBlobStored(blobID)) {
+            return;
+        }
+        if (source.length() >= chunkThreshold) {
+            writeChunkedBlob(source, blobID);
+            return;
+        }
+        Event event = events.begin(FlightEvents.OBJECT_WRITE);
+        File temp = createTempFile();
+        copyFile(source, temp);
+        publishBlob(temp, blobID, event);
+    }
+
+    /**
+     * Stores a temporary file as a blob, moving it into the blob store or
+     * deleting it if that blob is already stored.
+     *
+     * @param temp A file made by createTempFile.
+     * @return The ID of the blob.
+     */
+    private ObjectId storeTempBlob(File temp) {
+        String hex = sha1(temp);
+        ObjectId blobID = ObjectId.fromHex(hex);
+        if (isBlobStored(hex)) {
+            temp.delete();
+            return blobID;
+        }
+        if (temp.length() >= chunkThreshold) {
+            writeChunkedBlob(temp, hex);
+            temp.delete();
+            return blobID;
+        }
+        publishBlob(temp, hex, events.begin(FlightEvents.OBJECT_WRITE));
+        return blobID;
+    }
+
+    /**
+     * Returns whether the given blob is already stored, counting a skipped
+     * write if so.
+     *
+     * @param blobID The ID of the blob.
+     * @return true if the blob exists.
+     */
+    private boolean isBlobStored(String blobID) {
+        if (knownBlobs.contains(blobID) || exists(objectFile(BLOBS_DIR, "blobs", blobID))
+                || exists(manifestFile(blobID))) {
+            knownBlobs.add(blobID);
+            trace.count(BLOB_WRITES_SKIPPED, 1);
+            return true;
+        }
+        return false;
     }
 
-    private static void checkoutFileFromCommit(Commit commit, String fileName) {
-        String blobID = commit.getFileBlobs().get(fileName);
-        File blobFile = Utils.join(BLOBS_DIR, blobID);
-        File targetFile = Utils.join(CWD, fileName);
+    /**
+     * Atomically moves a complete temporary file into the blob store. The
+     * blob is only recorded as known once it is in place; if the move
+     * fails, the temporary file is deleted and the command stops.
+     *
+     * @param temp   The temporary file.
+     * @param blobID The SHA-1 of its contents.
+     * @param event  The object-write event to commit, or null.
+     */
+    private void publishBlob(File temp, String blobID, Event event) {
+        long size = temp.length();
         try {
-            Files.copy(blobFile.toPath(), targetFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), Utils.join(BLOBS_DIR, blobID).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            e.printStackTrace();
+            temp.delete();
+            throw error("Internal error writing blob.");
+        }
+        knownBlobs.add(blobID);
+        if (event != null) {
+            events.commit(event, "blob", blobID, size);
         }
     }
 
-    private static void stageFileForAddition(String fileName) {
-        File file = Utils.join(CWD, fileName);
-        File stagedFile = Utils.join(ADD_STAGE, fileName);
+    /**
+     * Creates an empty temporary file inside the .gitlet directory, on the
+     * same file system as the object store so it can be moved in atomically.
+     *
+     * @return The new file.
+     */
+    private File createTempFile() {
         try {
-            Files.copy(file.toPath(), stagedFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            return File.createTempFile("blob", ".tmp", GITLET_DIR);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /**
+     * Stores a file as a chunked blob. After the caller has hashed the
+     * file for its ID, it is read once more and split into chunks as it
+     * is read; each chunk is then hashed and stored on the common pool
+     * while later ones are still being found, with a bounded number in
+     * flight. Chunks that are already stored, by this or any other blob,
+     * are not stored again. Every chunk handed to the pool has finished
+     * before this returns or fails, so none is still being written
+     * afterwards. The manifest is written last, so a blob whose manifest
+     * exists always has all its chunks.
+     *
+     * @param source The file.
+     * @param blobID The SHA-1 of its contents.
+     */
+    private void writeChunkedBlob(File source, String blobID) {
+        Event event = events.begin(FlightEvents.OBJECT_WRITE);
+        long phase = trace.start();
+        CHUNKS_DIR.mkdir();
+        MANIFESTS_DIR.mkdir();
+        List<CompletableFuture<String>> chunks = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(CHUNKS_IN_FLIGHT);
+        try (InputStream in = new FileInputStream(source)) {
+            trace.count(Trace.BYTES_READ, source.length());
+            Chunker chunker = new Chunker(in, chunkSize);
+            while (true) {
+                byte[] chunk = chunker.next();
+                if (chunk == null) {
+                    break;
+                }
+                inFlight.acquireUninterruptibly();
+                chunks.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return writeChunk(chunk) + " " + chunk.length + "\n";
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            throw error("Internal error writing blob.");
+        } finally {
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+                    .handle((ignored, failure) -> null)
+                    .join();
+        }
+        StringBuilder manifest = new StringBuilder();
+        for (CompletableFuture<String> chunk : chunks) {
+            try {
+                manifest.append(chunk.join());
+            } catch (CompletionException e) {
+                throw error("Internal error writing blob.");
+            }
+        }
+        File temp = createTempFile();
+        try {
+            writeContents(temp, manifest.toString());
+            Refs.moveAtomically(temp, Utils.join(MANIFESTS_DIR, blobID));
+        } finally {
+            temp.delete();
+        }
+        knownBlobs.add(blobID);
+        trace.stop("blob.chunk", phase);
+        events.commit(event, "blob", blobID, source.length());
+    }
+
+    /**
+     * Stores a chunk unless it is already stored.
+     *
+     * @param chunk The chunk's bytes.
+     * @return The chunk's ID.
+     */
+    private String writeChunk(byte[] chunk) {
+        String chunkID = sha1(chunk);
+        File chunkFile = Utils.join(CHUNKS_DIR, chunkID);
+        if (exists(objectFile(CHUNKS_DIR, "chunks", chunkID))) {
+            trace.count(CHUNKS_SHARED, 1);
+            return chunkID;
+        }
+        File temp = createTempFile();
+        try {
+            writeContents(temp, chunk);
+            Refs.moveAtomically(temp, chunkFile);
+        } finally {
+            temp.delete();
         }
+        trace.count(CHUNKS_WRITTEN, 1);
+        return chunkID;
     }
 
-    private static Commit findSplitPoint(String currentBranch, String givenBranch) {
-        // Get the latest commits of the current branch and the target branch
-        Commit currentCommit = getLatestCommit(Utils.join(LATEST_COMMITS, currentBranch));
-        Commit givenCommit = getLatestCommit(Utils.join(LATEST_COMMITS, givenBranch));
+    /**
+     * Returns the IDs of the chunks of a blob in an object store.
+     *
+     * @param store  The .gitlet directory.
+     * @param blobID The ID of the blob.
+     * @return The chunk IDs, or none if the blob is stored whole.
+     */
+    private List<String> chunksOf(File store, String blobID) {
+        File manifest = Pack.objectFile(store, Pack.MANIFEST, blobID);
+        if (!exists(manifest)) {
+            return List.of();
+        }
+        return Chunker.readManifest(manifest);
+    }
 
-        // Collect IDs of all ancestors of the current branch
-        Set<String> currentAncestors = new HashSet<>();
-        Queue<Commit> queue = new LinkedList<>();
-        queue.add(currentCommit);
+    /**
+     * Returns the file holding the manifest of a chunked blob.
+     *
+     * @param blobID The ID of the blob.
+     * @return The manifest's file, which does not exist if the blob is
+     *         stored whole or not at all.
+     */
+    private File manifestFile(String blobID) {
+        return objectFile(MANIFESTS_DIR, "manifests", blobID);
+    }
 
-        // Use BFS to traverse all ancestors of the current branch
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (commit == null) {
-                continue;
+    /**
+     * Returns whether a file in the working directory has the contents of
+     * a blob. A chunked blob is compared by hashing the file, which does
+     * not need the blob's contents at all.
+     *
+     * @param file   The file.
+     * @param blobID The ID of the blob.
+     * @return true if the contents are the same.
+     */
+    private boolean matchesBlob(File file, ObjectId blobID) {
+        String hex = blobID.toString();
+        File whole = objectFile(BLOBS_DIR, "blobs", hex);
+        if (exists(whole)) {
+            return contentsEqual(file, whole);
+        }
+        return sha1(file).equals(hex);
+    }
+
+    /**
+     * Opens the given blob for reading, from the blobs directory or,
+     * failing that, an alternate object store. A chunked blob is read
+     * straight from its chunk files, one after another, each opened only
+     * when the one before it is used up, so its contents are never
+     * assembled anywhere.
+     *
+     * @param blobID The ID of the blob.
+     * @return A stream of the blob's contents, to be closed by the caller.
+     */
+    private InputStream openBlob(ObjectId blobID) throws IOException {
+        String hex = blobID.toString();
+        File whole = objectFile(BLOBS_DIR, "blobs", hex);
+        File manifest = manifestFile(hex);
+        if (exists(whole) || !exists(manifest)) {
+            return new FileInputStream(whole);
+        }
+        Iterator<String> chunkIDs = Chunker.readManifest(manifest).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunkIDs.hasNext();
             }
-            currentAncestors.add(commit.returnID());
-            queue.add(commit.getParent());
-            if (commit.isMerge()) {
-                queue.add(commit.getMergeParent());
+
+            @Override
+            public InputStream nextElement() {
+                File chunk = objectFile(CHUNKS_DIR, "chunks", chunkIDs.next());
+                try {
+                    return new FileInputStream(chunk);
+                } catch (FileNotFoundException e) {
+                    throw error("Internal error reading blob.");
+                }
             }
+        });
+    }
+
+    /**
+     * Returns the lines of the given blob, each with its line terminator.
+     *
+     * @param blobID The ID of the blob.
+     * @return Its lines.
+     */
+    private List<String> readBlobLines(ObjectId blobID) {
+        try (InputStream in = openBlob(blobID)) {
+            List<String> lines = Diff.readLines(in);
+            trace.count(Trace.BYTES_READ, lines.stream().mapToLong(String::length).sum());
+            return lines;
+        } catch (IOException e) {
+            throw error("Internal error reading blob.");
         }
+    }
 
-        // Use BFS to traverse all ancestors of the given branch
-        queue.add(givenCommit);
-        while (!queue.isEmpty()) {
-            Commit commit = queue.poll();
-            if (commit == null) {
-                continue;
+    /**
+     * Writes the contents of a blob in an object store to a file, copying
+     * a whole blob or concatenating the chunks of a chunked one.
+     *
+     * @param store  The .gitlet directory holding the blob.
+     * @param blobID The ID of the blob.
+     * @param target The file to write.
+     */
+    private void copyBlob(File store, ObjectId blobID, File target) {
+        String hex = blobID.toString();
+        File whole = Pack.objectFile(store, Pack.BLOB, hex);
+        File manifest = Pack.objectFile(store, Pack.MANIFEST, hex);
+        if (exists(whole) || !exists(manifest)) {
+            copyFile(whole, target);
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(target)) {
+            for (String chunkID : Chunker.readManifest(manifest)) {
+                trace.count(Trace.BYTES_COPIED,
+                        Files.copy(Pack.objectFile(store, Pack.CHUNK, chunkID).toPath(), out));
             }
-            if (currentAncestors.contains(commit.returnID())) {
-                return commit;
+        } catch (IOException e) {
+            throw error("Internal error reading blob.");
+        }
+    }
+
+    /**
+     * Returns the file holding the given commit, in the commits directory
+     * or, failing that, in an alternate object store.
+     *
+     * @param commitID The full ID of the commit.
+     * @return The commit's file.
+     */
+    private File commitFile(String commitID) {
+        return objectFile(COMMITS_DIR, "commits", commitID);
+    }
+
+    /**
+     * Returns the file holding an object. Without alternates this is
+     * always the local file, found without touching the file system.
+     */
+    private File objectFile(File localDir, String dirName, String id) {
+        File local = Utils.join(localDir, id);
+        if (alternates().isEmpty() || exists(local)) {
+            return local;
+        }
+        for (File store : alternates()) {
+            File file = Utils.join(store, dirName, id);
+            if (exists(file)) {
+                return file;
             }
-            queue.add(commit.getParent());
-            if (commit.isMerge()) {
-                queue.add(commit.getMergeParent());
+        }
+        return local;
+    }
+
+    /**
+     * Returns the object stores listed in the alternates file, reading it
+     * on first use.
+     *
+     * @return The alternate .gitlet directories, possibly none.
+     */
+    private List<File> alternates() {
+        if (alternates == null) {
+            alternates = Pack.readAlternates(GITLET_DIR);
+        }
+        return alternates;
+    }
+
+    /**
+     * Returns the IDs of every stored commit, local or in an alternate
+     * object store, in order.
+     *
+     * @return The commit IDs.
+     */
+    private List<String> listCommitIDs() {
+        if (alternates().isEmpty()) {
+            return plainFilenamesIn(COMMITS_DIR);
+        }
+        Set<String> commitIDs = new TreeSet<>(plainFilenamesIn(COMMITS_DIR));
+        for (File store : alternates()) {
+            List<String> storeIDs = plainFilenamesIn(Utils.join(store, "commits"));
+            if (storeIDs != null) {
+                commitIDs.addAll(storeIDs);
             }
         }
+        return new ArrayList<>(commitIDs);
+    }
+
+    /**
+     * Overwrites a file in the working directory with the given blob.
+     *
+     * @param blobID   The ID of the blob to check out.
+     * @param fileName The name of the file to write.
+     */
+    private void checkoutBlob(ObjectId blobID, String fileName) {
+        Event event = events.begin(FlightEvents.CHECKOUT);
+        File target = Utils.join(CWD, fileName);
+        copyBlob(GITLET_DIR, blobID, target);
+        if (event != null) {
+            events.commit(event, fileName, blobID.toString(), target.length());
+        }
+    }
+
+    private void copyFile(File source, File target) {
+        trace.count(Trace.BYTES_COPIED, Utils.copyFile(source, target));
+    }
+
+    private boolean contentsEqual(File a, File b) {
+        if (trace.isEnabled()) {
+            trace.count(Trace.FILES_STATTED, 2);
+            trace.count(Trace.BYTES_MAPPED, a.length() == b.length() ? 2 * a.length() : 0);
+        }
+        return Utils.contentsEqual(a, b);
+    }
+
+    private String sha1(File file) {
+        if (trace.isEnabled()) {
+            trace.count(Trace.SHA1_BYTES, file.length());
+        }
+        return Utils.sha1(file);
+    }
+
+    private String sha1(byte[] contents) {
+        trace.count(Trace.SHA1_BYTES, contents.length);
+        return Utils.sha1(contents);
+    }
+
+    private boolean exists(File file) {
+        trace.count(Trace.FILES_STATTED, 1);
+        return file.exists();
+    }
+
+    private boolean isPlainFile(File file) {
+        trace.count(Trace.FILES_STATTED, 1);
+        return file.isFile();
+    }
+
+    private List<String> plainFilenamesIn(File dir) {
+        List<String> files = Utils.plainFilenamesIn(dir);
+        trace.count(Trace.DIRECTORY_LISTINGS, 1);
+        if (files != null) {
+            trace.count(Trace.FILES_STATTED, files.size());
+        }
+        return files;
+    }
+
+    private File[] listFiles(File dir) {
+        trace.count(Trace.DIRECTORY_LISTINGS, 1);
+        return dir.listFiles();
+    }
 
-        return null; // Should not reach here if branches have a common ancestor
+    private File[] listFiles(File dir, FileFilter filter) {
+        trace.count(Trace.DIRECTORY_LISTINGS, 1);
+        return dir.listFiles(filter);
     }
 
 }
@@ -0,0 +1,122 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+import jdk.jfr.Event;
+
+/**
+ * An exclusive lock on a repository, held by a command for as long as it
+ * changes the staging area, HEAD or the working files. Branches are not
+ * covered: each is moved by a compare-and-swap under its own lock (see
+ * Refs), so commands moving different branches never wait for each
+ * other. The lock is an operating system lock on the file
+ * .gitlet/index.lock, taken with FileChannel.tryLock: the file itself
+ * stays in place, and the lock goes away with the process holding it, so
+ * a crashed command never leaves the repository locked.
+ *
+ * Only writers lock. Readers rely on every change being published by an
+ * atomic rename, and on objects never changing once stored, so they see
+ * a consistent repository without waiting.
+ *
+ * @author Zien Zeng
+ */
+class RepositoryLock implements AutoCloseable {
+
+    /** Name of the lock file in a .gitlet directory. */
+    static final String FILE_NAME = "index.lock";
+
+    /** Trace counter for lock attempts that found the lock held. */
+    static final String CONTENDED = "lockContended";
+
+    /** Longest pause between attempts, in milliseconds. */
+    private static final long MAX_BACKOFF_MILLIS = 50;
+
+    /**
+     * Locks a repository, retrying with growing pauses while another
+     * process, or another part of this one, holds the lock.
+     *
+     * @param store         The .gitlet directory to lock.
+     * @param timeoutMillis How long to keep trying.
+     * @param trace         Receives the contention counter and wait time.
+     * @param events        Receives a lock-wait event.
+     * @return The held lock, or null if it could not be taken in time.
+     */
+    static RepositoryLock acquire(File store, long timeoutMillis, Trace trace,
+                                  FlightEvents events) {
+        Event event = events.begin(FlightEvents.LOCK_WAIT);
+        long phase = trace.start();
+        File file = Utils.join(store, FILE_NAME);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long backoff = 1;
+        int attempts = 0;
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            while (true) {
+                attempts += 1;
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException excp) {
+                    // Held through another channel of this process
+                    lock = null;
+                }
+                if (lock != null) {
+                    RepositoryLock held = new RepositoryLock(channel, lock);
+                    channel = null;
+                    return held;
+                }
+                trace.count(CONTENDED, 1);
+                if (System.currentTimeMillis() >= deadline) {
+                    return null;
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException excp) {
+                    // Nothing was locked through it
+                }
+            }
+            trace.stop("lock.wait", phase);
+            events.commit(event, file.getPath(), attempts);
+        }
+    }
+
+    private RepositoryLock(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Releases the lock.
+     */
+    @Override
+    public void close() {
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /** The open lock file. */
+    private final FileChannel channel;
+    /** The lock held on it. */
+    private final FileLock lock;
+}
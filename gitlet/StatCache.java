@@ -0,0 +1,346 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Remembers, for files of the working directory, the blob each had when
+ * it was last hashed or compared, together with its size and
+ * modification time then. A file whose size and modification time still
+ * match has the same blob, so it need not be read again: a command that
+ * asks which blob every tracked file has then costs one stat per clean
+ * file and reads only the dirty ones.
+ *
+ * A file changed within the modification time's granularity of being
+ * recorded could keep its time, so files modified in the last
+ * RACY_MILLIS are not recorded at all; they are read again until they
+ * have been left alone for that long.
+ *
+ * While a Monitor runs, even the stat is saved: an entry checked against
+ * its file is marked verified, and stays so until the monitor journals a
+ * change to the file, so a verified file is known unchanged without
+ * being looked at. The cache remembers the monitor session and journal
+ * position its marks are good up to, and on first use asks the monitor
+ * what changed since then and clears those files' marks, or every mark
+ * if the monitor cannot say.
+ *
+ * The cache lives in .gitlet/stat-cache as a magic number, a version, a
+ * random stamp, a count and one record per file: name (UTF-8, after its
+ * length as a short), size (long), modification time in milliseconds (long), blob ID (40
+ * ASCII bytes), verified (boolean). The session and position live in
+ * .gitlet/stat-cache-token with the stamp of the cache they belong to,
+ * so that the small token can be rewritten alone when no file changed;
+ * a token whose stamp does not match the cache is ignored. The cache is
+ * only a hint: a missing or unreadable cache is an empty one, and both
+ * files are replaced atomically, so concurrent commands never see them
+ * half written. Lookups and records may come from several threads at
+ * once.
+ *
+ * @author Zien Zeng
+ */
+class StatCache {
+
+    /** Name of the file in a .gitlet directory. */
+    static final String FILE_NAME = "stat-cache";
+
+    /** Name of the token file in a .gitlet directory. */
+    static final String TOKEN_FILE_NAME = "stat-cache-token";
+
+    /** Trace counter for files found clean by their stat. */
+    static final String HITS = "statCacheHits";
+    /** Trace counter for files found clean without a stat. */
+    static final String VERIFIED_HITS = "statCacheVerifiedHits";
+
+    /** How long a file must be left alone before it is recorded. */
+    private static final long RACY_MILLIS = 2000;
+    /** Leading int of the cache file: "GLSC". */
+    private static final int MAGIC = 0x474c5343;
+    /** Format version written and accepted. */
+    private static final int VERSION = 1;
+
+    /**
+     * Creates a cache kept in the given files, which are read on first
+     * use.
+     *
+     * @param file      The cache file.
+     * @param tokenFile The file holding the monitor session and position.
+     * @param monitor   The monitor of the working directory, which may or
+     *                  may not be running.
+     * @param trace     Receives counters.
+     */
+    StatCache(File file, File tokenFile, Monitor monitor, Trace trace) {
+        this.file = file;
+        this.tokenFile = tokenFile;
+        this.monitor = monitor;
+        this.trace = trace;
+    }
+
+    /**
+     * Returns the blob a file has, if its stat shows it unchanged since it
+     * was recorded.
+     *
+     * @param fileName The file's name in the working directory.
+     * @param workFile The file.
+     * @return The blob ID, or null if the file must be read.
+     */
+    ObjectId lookup(String fileName, File workFile) {
+        Entry entry = entries().get(fileName);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.verified && session != null) {
+            trace.count(VERIFIED_HITS, 1);
+            return entry.blobID;
+        }
+        BasicFileAttributes attributes = stat(workFile);
+        if (attributes == null || attributes.size() != entry.size
+                || attributes.lastModifiedTime().toMillis() != entry.modified) {
+            return null;
+        }
+        if (session != null) {
+            entries.put(fileName, entry.withVerified(true));
+            changed = true;
+        }
+        trace.count(HITS, 1);
+        return entry.blobID;
+    }
+
+    /**
+     * Returns whether the monitor vouches for a file being unchanged
+     * since its entry was checked, and so still a regular file.
+     *
+     * @param fileName The file's name in the working directory.
+     * @return true if the file is known unchanged without a stat.
+     */
+    boolean isVerified(String fileName) {
+        Entry entry = entries().get(fileName);
+        return entry != null && entry.verified && session != null;
+    }
+
+    /**
+     * Records the blob a file has, unless it was modified too recently.
+     *
+     * @param fileName The file's name in the working directory.
+     * @param workFile The file.
+     * @param blobID   The ID of the blob with its contents.
+     */
+    void record(String fileName, File workFile, ObjectId blobID) {
+        BasicFileAttributes attributes = stat(workFile);
+        if (attributes == null) {
+            return;
+        }
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (modified > System.currentTimeMillis() - RACY_MILLIS) {
+            return;
+        }
+        Entry old = entries().get(fileName);
+        boolean verified = session != null;
+        if (old != null && old.size == attributes.size() && old.modified == modified
+                && old.blobID.equals(blobID) && old.verified == verified) {
+            return;
+        }
+        entries.put(fileName, new Entry(attributes.size(), modified, blobID, verified));
+        changed = true;
+    }
+
+    /**
+     * Writes the cache back if anything was recorded, and the token if
+     * the monitor was asked for changes.
+     */
+    synchronized void save() {
+        if (entries == null) {
+            return;
+        }
+        if (changed) {
+            stamp = ThreadLocalRandom.current().nextLong();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(stamp);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(name.length);
+                    out.write(name);
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().modified);
+                    out.write(entry.getValue().blobID.toString()
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.writeBoolean(entry.getValue().verified);
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp);
+            }
+            Refs.publish(file, bytes.toByteArray());
+            trace.count(Trace.BYTES_WRITTEN, bytes.size());
+            changed = false;
+            tokenChanged = true;
+        }
+        if (tokenChanged && session != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(session);
+                out.writeLong(position);
+                out.writeLong(stamp);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp);
+            }
+            Refs.publish(tokenFile, bytes.toByteArray());
+            trace.count(Trace.BYTES_WRITTEN, bytes.size());
+        }
+        tokenChanged = false;
+    }
+
+    /**
+     * Returns the entries, reading them on first use and then clearing
+     * the marks of the files the monitor saw change.
+     */
+    private synchronized Map<String, Entry> entries() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new ConcurrentHashMap<>();
+        read();
+        String tokenSession = null;
+        long tokenPosition = 0;
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Files.readAllBytes(tokenFile.toPath())))) {
+            String readSession = in.readUTF();
+            tokenPosition = in.readLong();
+            if (in.readLong() == stamp) {
+                tokenSession = readSession;
+            }
+        } catch (IOException excp) {
+            // No token, or a damaged one; the marks cannot be trusted
+        }
+        Monitor.Changes changes = monitor.changes(tokenSession, tokenPosition);
+        if (changes == null) {
+            return entries;
+        }
+        for (String fileName : changes.names != null ? changes.names : entries.keySet()) {
+            Entry entry = entries.get(fileName);
+            if (entry != null && entry.verified) {
+                entries.put(fileName, entry.withVerified(false));
+                changed = true;
+            }
+        }
+        session = changes.session;
+        position = changes.position;
+        tokenChanged = true;
+        return entries;
+    }
+
+    /**
+     * Reads the cache file into the entries, if it exists and is one.
+     */
+    private void read() {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException excp) {
+            return;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+        trace.count(Trace.BYTES_READ, contents.length);
+        ByteBuffer in = ByteBuffer.wrap(contents);
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return;
+            }
+            stamp = in.getLong();
+            int count = in.getInt();
+            entries = new ConcurrentHashMap<>(count);
+            for (int i = 0; i < count; i += 1) {
+                int nameLength = in.getShort() & 0xffff;
+                String fileName = new String(contents, in.position(), nameLength,
+                        StandardCharsets.UTF_8);
+                in.position(in.position() + nameLength);
+                long size = in.getLong();
+                long modified = in.getLong();
+                ObjectId blobID = ObjectId.fromHex(new String(contents, in.position(),
+                        Utils.UID_LENGTH, StandardCharsets.US_ASCII));
+                in.position(in.position() + Utils.UID_LENGTH);
+                boolean verified = in.get() != 0;
+                entries.put(fileName, new Entry(size, modified, blobID, verified));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                 | IllegalArgumentException excp) {
+            // A damaged cache; what was read is still right
+        }
+    }
+
+    /**
+     * Returns a file's attributes in one system call.
+     *
+     * @return The attributes, or null if the file does not exist or is
+     *         not a regular file.
+     */
+    private BasicFileAttributes stat(File workFile) {
+        trace.count(Trace.FILES_STATTED, 1);
+        try {
+            BasicFileAttributes attributes =
+                    Files.readAttributes(workFile.toPath(), BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * A file's recorded stat and blob, and whether the monitor vouches
+     * for them still.
+     */
+    private static class Entry {
+        final long size;
+        final long modified;
+        final ObjectId blobID;
+        final boolean verified;
+
+        Entry(long size, long modified, ObjectId blobID, boolean verified) {
+            this.size = size;
+            this.modified = modified;
+            this.blobID = blobID;
+            this.verified = verified;
+        }
+
+        Entry withVerified(boolean isVerified) {
+            return new Entry(size, modified, blobID, isVerified);
+        }
+    }
+
+    /** The cache file. */
+    private final File file;
+    /** The token file. */
+    private final File tokenFile;
+    /** The monitor asked for changes. */
+    private final Monitor monitor;
+    /** Receives counters. */
+    private final Trace trace;
+    /** The entries by file name, or null until read. */
+    private Map<String, Entry> entries;
+    /** Whether entries differ from the file. */
+    private volatile boolean changed;
+    /** Stamp of the cache file as read or last written. */
+    private long stamp;
+    /** Monitor session the marks are good in, or null if no monitor answered. */
+    private String session;
+    /** Journal position the marks are good up to. */
+    private long position;
+    /** Whether the session or position differ from the token file. */
+    private boolean tokenChanged;
+}
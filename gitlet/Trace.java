@@ -0,0 +1,184 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Opt-in counters and phase timers for one Gitlet process.
+ *
+ *  Tracing is enabled by passing --trace before the command name, or by
+ *  setting the GITLET_TRACE environment variable.  When GITLET_TRACE names
+ *  a file, each command appends a one-line JSON summary to it; otherwise
+ *  (or when its value is "1" or "stderr") the summary goes to System.err.
+ *  A disabled Trace ignores every call, so instrumented code pays only for
+ *  a field read and a branch.
+ *
+ *  @author Zien Zeng
+ */
+class Trace {
+
+    /** Name of the environment variable that enables tracing. */
+    static final String ENV_VARIABLE = "GITLET_TRACE";
+
+    /* COUNTER NAMES */
+
+    /** Serialized objects read from the object store. */
+    static final String OBJECTS_READ = "objectsRead";
+    /** Bytes of serialized objects read. */
+    static final String OBJECT_BYTES_READ = "objectBytesRead";
+    /** Serialized objects written to the object store. */
+    static final String OBJECTS_WRITTEN = "objectsWritten";
+    /** Bytes of serialized objects written. */
+    static final String OBJECT_BYTES_WRITTEN = "objectBytesWritten";
+    /** Bytes read through readContents. */
+    static final String BYTES_READ = "bytesRead";
+    /** Bytes written through writeContents. */
+    static final String BYTES_WRITTEN = "bytesWritten";
+    /** Bytes compared through memory-mapped windows. */
+    static final String BYTES_MAPPED = "bytesMapped";
+    /** Bytes copied file-to-file. */
+    static final String BYTES_COPIED = "bytesCopied";
+    /** Existence checks and other single-file metadata lookups. */
+    static final String FILES_STATTED = "filesStatted";
+    /** Directory listings. */
+    static final String DIRECTORY_LISTINGS = "directoryListings";
+    /** Bytes fed to SHA-1. */
+    static final String SHA1_BYTES = "sha1Bytes";
+
+    /** A Trace that is enabled iff REQUESTED is true or the GITLET_TRACE
+     *  environment variable is set. */
+    static Trace fromEnvironment(boolean requested) {
+        String destination = System.getenv(ENV_VARIABLE);
+        if (destination == null || destination.isEmpty()) {
+            return new Trace(requested, null);
+        }
+        if (destination.equals("1") || destination.equals("stderr")) {
+            return new Trace(true, null);
+        }
+        return new Trace(true, new File(destination));
+    }
+
+    /** A Trace that records nothing. */
+    static Trace disabled() {
+        return new Trace(false, null);
+    }
+
+    /** A Trace that is ENABLED and reports to OUTPUT, or to System.err if
+     *  OUTPUT is null. */
+    Trace(boolean enabled, File output) {
+        this.enabled = enabled;
+        this.output = output;
+        this.created = System.nanoTime();
+    }
+
+    /** Returns true iff this Trace is recording. */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Adds DELTA to the counter named NAME. */
+    void count(String name, long delta) {
+        if (enabled) {
+            counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+        }
+    }
+
+    /** Returns the total of the counter named NAME so far. */
+    long counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /** Returns a start time to pass to stop, or 0 when disabled. */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records the time since START as one call of PHASE. */
+    void stop(String phase, long start) {
+        if (enabled) {
+            long elapsed = System.nanoTime() - start;
+            phaseNanos.computeIfAbsent(phase, k -> new LongAdder()).add(elapsed);
+            phaseCalls.computeIfAbsent(phase, k -> new LongAdder()).increment();
+        }
+    }
+
+    /** Writes the JSON summary for COMMAND to this Trace's destination. */
+    void report(String command) {
+        if (!enabled) {
+            return;
+        }
+        String summary = toJson(command);
+        if (output == null) {
+            System.err.println(summary);
+            return;
+        }
+        try {
+            Files.write(output.toPath(),
+                    (summary + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            System.err.println(summary);
+        }
+    }
+
+    /** Returns the summary of everything recorded so far for COMMAND as
+     *  a single line of JSON. */
+    String toJson(String command) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"command\":").append(quote(command));
+        json.append(",\"wallNanos\":").append(System.nanoTime() - created);
+        json.append(",\"counters\":{");
+        String separator = "";
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            json.append(separator).append(quote(entry.getKey())).append(':')
+                    .append(entry.getValue().sum());
+            separator = ",";
+        }
+        json.append("},\"phases\":{");
+        separator = "";
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(phaseNanos).entrySet()) {
+            json.append(separator).append(quote(entry.getKey()))
+                    .append(":{\"calls\":").append(phaseCalls.get(entry.getKey()).sum())
+                    .append(",\"nanos\":").append(entry.getValue().sum()).append('}');
+            separator = ",";
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /** Returns S as a JSON string literal. */
+    private static String quote(String s) {
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < ' ') {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    /** True iff recording. */
+    private final boolean enabled;
+    /** File receiving the summary, or null for System.err. */
+    private final File output;
+    /** Time this Trace was created, in nanoseconds. */
+    private final long created;
+    /** Counter totals, by name. */
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    /** Total time spent in each phase, in nanoseconds. */
+    private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+    /** Number of times each phase ran. */
+    private final Map<String, LongAdder> phaseCalls = new ConcurrentHashMap<>();
+}
@@ -1,21 +1,26 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -47,13 +52,30 @@ class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+            return ObjectId.toHex(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns the SHA-1 hash of the contents of FILE, read through a
+     *  fixed-size buffer so that the file never has to fit in memory.
+     *  The result equals sha1(readContents(FILE)).  Throws
+     *  IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
             }
-            return result.toString();
+            return ObjectId.toHex(md.digest());
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
         }
     }
 
@@ -136,13 +158,120 @@ class Utils {
         }
     }
 
+    /* STREAMING FILE CONTENTS */
+
+    /** Size of the buffer used to stream file contents. */
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /** Largest region of a file mapped into memory at once. */
+    private static final long MAP_WINDOW_SIZE = 1L << 26;
+
+    /** Returns true iff files A and B have identical contents.  The files
+     *  are compared through memory-mapped windows, so neither is read
+     *  onto the heap, and files of different lengths are rejected without
+     *  being read at all.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static boolean contentsEqual(File a, File b) {
+        try (FileChannel first = FileChannel.open(a.toPath());
+             FileChannel second = FileChannel.open(b.toPath())) {
+            long size = first.size();
+            if (size != second.size()) {
+                return false;
+            }
+            for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+                long length = Math.min(MAP_WINDOW_SIZE, size - position);
+                MappedByteBuffer left =
+                        first.map(FileChannel.MapMode.READ_ONLY, position, length);
+                MappedByteBuffer right =
+                        second.map(FileChannel.MapMode.READ_ONLY, position, length);
+                if (left.mismatch(right) >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /** Copies the contents of SOURCE to TARGET, creating or overwriting
+     *  TARGET as needed, with FileChannel.transferTo so that the bytes
+     *  need not pass through the heap.  Returns the number of bytes
+     *  copied.  Throws IllegalArgumentException in case of problems. */
+    static long copyFile(File source, File target) {
+        try (FileChannel in = FileChannel.open(source.toPath());
+             FileChannel out = FileChannel.open(target.toPath(),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            return transfer(in, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /** Write the concatenation of PARTS to FILE, creating or overwriting
+     *  it as needed.  Each part may be a String, a byte array, a File
+     *  whose contents are transferred without passing through the heap,
+     *  or an InputStream, which is read to its end but not closed; a
+     *  FileInputStream is transferred like a File.
+     *  Throws IllegalArgumentException in case of problems. */
+    static void writeStreamed(File file, Object... parts) {
+        try (FileChannel out = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Object part : parts) {
+                if (part instanceof File) {
+                    try (FileChannel in = FileChannel.open(((File) part).toPath())) {
+                        transfer(in, out);
+                    }
+                } else if (part instanceof FileInputStream) {
+                    transfer(((FileInputStream) part).getChannel(), out);
+                } else if (part instanceof InputStream) {
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    for (int n = ((InputStream) part).read(buffer); n >= 0;
+                         n = ((InputStream) part).read(buffer)) {
+                        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                        while (chunk.hasRemaining()) {
+                            out.write(chunk);
+                        }
+                    }
+                } else {
+                    byte[] bytes = part instanceof byte[]
+                            ? (byte[]) part
+                            : ((String) part).getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+            }
+        } catch (IOException | ClassCastException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
+    /** Transfers all of IN, from its start, to the current end of OUT.
+     *  Returns the number of bytes transferred. */
+    private static long transfer(FileChannel in, FileChannel out) throws IOException {
+        long size = in.size();
+        long position = 0;
+        while (position < size) {
+            long transferred = in.transferTo(position, size - position, out);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+        }
+        return position;
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
                                                  Class<T> expectedClass) {
         try {
-            ObjectInputStream in =
-                    new ObjectInputStream(new FileInputStream(file));
+            ObjectInputStream in = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
             T result = expectedClass.cast(in.readObject());
             in.close();
             return result;